@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading a response body into a byte array, which replaced the original
+ * inputStreamToByteArray. With a known Content-Length the array is allocated once; without
+ * one it grows as the body arrives.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+    @Param({"16384", "1048576"})
+    public int bodySize;
+
+    private byte[] mBody;
+
+    @Setup
+    public void setUp() {
+        mBody = new byte[bodySize];
+    }
+
+    @Benchmark
+    public byte[] readFullyWithContentLength() throws IOException {
+        return StreamingDownloader.readFully(new ByteArrayInputStream(mBody), mBody.length);
+    }
+
+    @Benchmark
+    public byte[] readFullyWithoutContentLength() throws IOException {
+        return StreamingDownloader.readFully(new ByteArrayInputStream(mBody), -1);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graph.logger.DefaultLogger;
+import com.microsoft.graph.models.extensions.FileAttachment;
+import com.microsoft.graph.models.extensions.Message;
+import com.microsoft.graph.models.extensions.Permission;
+import com.microsoft.graph.models.extensions.SharingLink;
+import com.microsoft.graph.serializer.DefaultSerializer;
+import com.microsoft.graph.serializer.ISerializer;
+import com.microsoft.graphsample.connect.Constants;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU and allocation cost of building a message: the Message model with its address
+ * validation, the mail body templating, and the serialization of the picture attachment.
+ * The personalized body renders a template with recipient fields, as a mail merge does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class MessageBenchmark {
+    private static final String ADDRESS = "someone@contoso.com";
+
+    @Param({"16384", "1048576"})
+    public int attachmentSize;
+
+    private static final MailTemplate DEFAULT_TEMPLATE = MailTemplate.compile(Constants.MESSAGE_BODY);
+    private static final MailTemplate PERSONALIZED_TEMPLATE = MailTemplate.compile(
+            "<p>Hello {{name}},</p>" + Constants.MESSAGE_BODY + "<p>Your team: {{team}}. Sent to {{email}}</p>");
+
+    private SendAssets mAssets;
+    private MailRecipient mRecipient;
+    private FileAttachment mAttachment;
+    private ISerializer mSerializer;
+
+    @Setup
+    public void setUp() {
+        Permission permission = new Permission();
+        permission.link = new SharingLink();
+        permission.link.webUrl = "https://contoso-my.sharepoint.com/personal/someone/Documents/me2.png";
+        mAssets = new SendAssets(new byte[0], null, permission);
+        mRecipient = new MailRecipient(ADDRESS,
+                                   new String[]{"email", "name", "team"},
+                                   new String[]{ADDRESS, "Megan Bowen", "Research & Development"});
+        mAttachment = GraphServiceController.createFileAttachment("me.png", new byte[attachmentSize]);
+        mSerializer = new DefaultSerializer(new DefaultLogger());
+    }
+
+    @Benchmark
+    public Message createMessage() {
+        return GraphServiceController.createMessage(Constants.SUBJECT_TEXT, Constants.MESSAGE_BODY, ADDRESS);
+    }
+
+    @Benchmark
+    public boolean validateAddress() {
+        return EmailAddresses.isValid(ADDRESS);
+    }
+
+    @Benchmark
+    public String createMailBody() {
+        return GraphSendMail.createMailBody(DEFAULT_TEMPLATE, mRecipient, mAssets);
+    }
+
+    @Benchmark
+    public String createPersonalizedMailBody() {
+        return GraphSendMail.createMailBody(PERSONALIZED_TEMPLATE, mRecipient, mAssets);
+    }
+
+    @Benchmark
+    public String serializeFileAttachment() {
+        return mSerializer.serializeObject(mAttachment);
+    }
+}
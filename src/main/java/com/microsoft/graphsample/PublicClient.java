@@ -1,13 +1,17 @@
 package com.microsoft.graphsample;
 
-import com.gilecode.reflection.ReflectionAccessUtils;
 import com.microsoft.graph.models.extensions.User;
 import com.microsoft.graphsample.connect.AuthenticationManager;
+import com.microsoft.graphsample.connect.Constants;
 import com.microsoft.graphsample.connect.DebugLogger;
-import com.microsoft.graphsample.msgraph.GraphSendMail;
-import com.microsoft.graphsample.msgraph.SendMailException;
+import com.microsoft.graphsample.metrics.MetricsRegistry;
+import com.microsoft.graphsample.metrics.OperationMetrics;
+import com.microsoft.graphsample.metrics.PrometheusEndpoint;
+import com.microsoft.graphsample.msgraph.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.logging.Level;
 
@@ -21,10 +25,15 @@ public class PublicClient {
         mScanner = new Scanner(System.in, "UTF-8");
     }
 
+    /**
+     * Runs the interactive sample. When a recipient file (CSV or JSON lines) is passed as the
+     * first argument, the mail is sent to every address in the file instead.
+     */
     public static void main(String args[]) throws Exception {
+        HttpTransportOptions.fromConstants().setJdkClientProperties();
         PublicClient publicClient = new PublicClient();
         try {
-            publicClient.startConnect();
+            publicClient.startConnect(args.length > 0 ? new File(args[0]) : null);
         } catch(Exception ex) {
             System.out.println(ex.getMessage());
 
@@ -33,16 +42,116 @@ public class PublicClient {
         }
     }
 
-    private void startConnect() throws Exception {
+    private void startConnect(File recipientFile) throws Exception {
         System.out.println("Welcome to the Java Console Connect Sample!");
 
-        //If this call is removed, functionality of the sample is not
-        //affected. The call simply suppresses warnings generated from json deserialization
-        //in the Graph SDK
-        ReflectionAccessUtils.suppressIllegalReflectiveAccessWarnings();
-        authenticationManager = AuthenticationManager.getInstance();
-        authenticationManager.connect(mScanner);
-        startSendMail();
+        PrometheusEndpoint metricsEndpoint = null;
+        if (Constants.METRICS_PORT > 0) {
+            metricsEndpoint = new PrometheusEndpoint(Constants.METRICS_PORT, MetricsRegistry.getInstance());
+            System.out.println("Serving metrics at " + metricsEndpoint.getUrl());
+        }
+        try {
+            authenticationManager = AuthenticationManager.getInstance();
+            authenticationManager.connect(mScanner);
+            if (recipientFile != null) {
+                startBulkSendMail(recipientFile);
+            }
+            else {
+                startSendMail();
+            }
+        } finally {
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the bulk send with the outbox journal of the recipient file. The journal is
+     * deleted when every recipient was sent to, and kept otherwise so that running the same
+     * file again only sends what is left.
+     */
+    private BulkSendReport runWithOutbox(
+            BulkSendEngine engine,
+            RecipientSource recipients,
+            File recipientFile,
+            IBulkSendCallback printResult) throws Exception {
+        OutboxJournal journal = new OutboxJournal(OutboxJournal.fileFor(Constants.OUTBOX_DIRECTORY, recipientFile),
+                                                  Constants.OUTBOX_INITIAL_BYTES, Constants.OUTBOX_FORCE_WRITES);
+        if (journal.getRecoveredJobCount() > 0) {
+            System.out.println("Resuming a bulk run of " + journal.getRecoveredJobCount() + " started sends");
+        }
+        BulkSendReport report = null;
+        try {
+            report = engine.run(recipients, printResult, journal);
+            return report;
+        } finally {
+            if (report != null && report.getFailed() == 0) {
+                journal.delete();
+            }
+            else {
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the mail to every recipient in the file and prints each outcome and a summary.
+     *
+     * @param recipientFile CSV or JSON lines file of recipient addresses
+     * @throws Exception
+     */
+    private void startBulkSendMail(File recipientFile) throws Exception {
+        IBulkSendCallback printResult = new IBulkSendCallback() {
+            @Override
+            public void onResult(SendResult result) {
+                System.out.println(result);
+            }
+        };
+        try (GraphSendMail graphSendMail = new GraphSendMail();
+             RecipientSource recipients = new RecipientSource(recipientFile)) {
+            BulkSendEngine engine = new BulkSendEngine(graphSendMail,
+                                                       Constants.BULK_SEND_ASYNC
+                                                       ? Constants.BULK_SEND_ASYNC_MAX_IN_FLIGHT
+                                                       : Constants.BULK_SEND_CONCURRENCY,
+                                                       Constants.BULK_SEND_USE_BATCHING);
+            BulkSendReport report;
+            if (Constants.BULK_SEND_PACK_RECIPIENTS) {
+                report = engine.runPacked(recipients, Constants.BULK_SEND_MAX_RECIPIENTS_PER_MESSAGE,
+                                          RecipientGroup.Field.valueOf(Constants.BULK_SEND_PACKED_FIELD.toUpperCase()),
+                                          printResult);
+            }
+            else if (Constants.BULK_SEND_ASYNC) {
+                report = engine.runAsync(recipients, printResult);
+            }
+            else if (Constants.OUTBOX_ENABLED) {
+                report = runWithOutbox(engine, recipients, recipientFile, printResult);
+            }
+            else {
+                report = engine.run(recipients, printResult);
+            }
+            System.out.println(report);
+            SendPlanner planner = graphSendMail.getSendPlanner();
+            System.out.println(planner.getPlannedRoundTrips() + " send round trips, "
+                               + planner.getSavedRoundTrips() + " saved by the send planner");
+            for (Map.Entry<String, RetryPolicy.Counters> counters : RetryPolicy.getInstance().getCounters().entrySet()) {
+                if (counters.getValue().getRetries() > 0 || counters.getValue().getThrottled() > 0) {
+                    System.out.println(counters.getKey() + ": " + counters.getValue());
+                }
+            }
+            for (OperationMetrics operation : MetricsRegistry.getInstance().getOperations()) {
+                System.out.println(operation);
+            }
+            if (mLogger.getDroppedCount() > 0) {
+                System.out.println(mLogger.getDroppedCount() + " log messages were dropped");
+            }
+            if (recipients.getSkippedLineCount() > 0) {
+                System.out.println(recipients.getSkippedLineCount() + " lines without an address were skipped");
+            }
+        } catch (SendMailException ex) {
+            mLogger.writeLog(Level.SEVERE, ex.getMessage(), ex);
+            System.out.println(ex.getMessage());
+        }
     }
 
     /**
@@ -53,9 +162,8 @@ public class PublicClient {
      * @throws Exception
      */
     private void startSendMail() throws Exception {
-        GraphSendMail graphSendMail = new GraphSendMail();
-        User          meUser        = null;
-        try {
+        User meUser = null;
+        try (GraphSendMail graphSendMail = new GraphSendMail()) {
             meUser = graphSendMail.getMeUser();
 
             String  preferredName   = meUser.displayName;
@@ -7,13 +7,28 @@ package com.microsoft.graphsample.connect;
 import com.github.scribejava.core.builder.ServiceBuilder;
 import com.github.scribejava.core.model.*;
 import com.github.scribejava.core.oauth.OAuth20Service;
+import com.github.scribejava.core.pkce.PKCE;
+import com.github.scribejava.core.pkce.PKCEService;
 import com.microsoft.graph.logger.LoggerLevel;
+import com.microsoft.graphsample.metrics.MetricsRegistry;
+import com.microsoft.graphsample.metrics.OperationMetrics;
+import com.microsoft.graphsample.metrics.Span;
+import com.microsoft.graphsample.metrics.Tracer;
 
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.Scanner;
 
@@ -25,84 +40,104 @@ import static java.awt.Desktop.isDesktopSupported;
  */
 public class AuthenticationManager {
 
-    private static AuthenticationManager INSTANCE;
-    private OAuth20Service mOAuthService = null;
-    private OAuth2AccessToken mAccessToken;
+    // Read without locking by every Graph request, so it must be volatile
+    private static volatile AuthenticationManager INSTANCE;
+    // Built on first use, as a run that restores a valid cached token never needs it
+    private volatile OAuth20Service mOAuthService = null;
+    private final TokenHolder mTokenHolder;
+    private final TokenCache mTokenCache;
 
     /**
-     * Initialization block. Runs before constructor to get a logger and start up the ScribeJava OAuth2
-     * authentication service
+     * Builds a ScribeJava OAuth2 service that redirects to the given url
+     *
+     * @param callback The redirect url registered for the app
      */
-    {
+    private static OAuth20Service createOAuthService(String callback) {
+        ServiceBuilder builder = new ServiceBuilder(Constants.CLIENT_ID)
+                .callback(callback)
+                .scope(Constants.SCOPES)
+                .apiKey(Constants.CLIENT_ID);
         if (Debug.DebugLevel == LoggerLevel.DEBUG) {
-            DebugLogger.getInstance().writeLog(Level.INFO, "AuthenticationManager initialization block called");
-
-            try (OAuth20Service service = new ServiceBuilder(Constants.CLIENT_ID)
-                    .callback(Constants.REDIRECT_URL)
-                    .scope(Constants.SCOPES)
-                    .apiKey(Constants.CLIENT_ID)
-                    .debugStream(System.out)
-                    .debug()
-                    .build(MicrosoftAzureAD20Api.instance())
-            ) {
-                mOAuthService = service;
-            } catch (java.io.IOException | IllegalArgumentException ex) {
-                try {
-                    throw ex;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-        else {
-            try (OAuth20Service service = new ServiceBuilder(Constants.CLIENT_ID)
-                    .callback(Constants.REDIRECT_URL)
-                    .scope(Constants.SCOPES)
-                    .apiKey(Constants.CLIENT_ID)
-                    .build(MicrosoftAzureAD20Api.instance())
-            ) {
-                mOAuthService = service;
-            } catch (java.io.IOException | IllegalArgumentException ex) {
-                try {
-                    throw ex;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            builder.debugStream(System.out).debug();
         }
+        return builder.build(MicrosoftAzureAD20Api.instance());
     }
 
     private AuthenticationManager() throws IOException {
         DebugLogger.getInstance().writeLog(Level.INFO, "AuthenticationManager constructor called");
+        mTokenHolder = new TokenHolder(new Supplier<OAuth20Service>() {
+            @Override
+            public OAuth20Service get() {
+                return getOAuthService();
+            }
+        });
+        mTokenCache = new TokenCache(new File(Constants.TOKEN_CACHE_FILE), new File(Constants.TOKEN_CACHE_KEY_FILE));
     }
 
-    public static synchronized AuthenticationManager getInstance() throws java.io.IOException {
-        if (INSTANCE == null) {
-            INSTANCE = new AuthenticationManager();
+    public static AuthenticationManager getInstance() throws java.io.IOException {
+        AuthenticationManager instance = INSTANCE;
+        if (instance == null) {
+            synchronized (AuthenticationManager.class) {
+                instance = INSTANCE;
+                if (instance == null) {
+                    INSTANCE = instance = new AuthenticationManager();
+                }
+            }
         }
-        return INSTANCE;
+        return instance;
     }
 
+    /**
+     * @return The ScribeJava OAuth2 service for the registered redirect url, built on first use
+     */
     public OAuth20Service getOAuthService() {
-        return mOAuthService;
+        OAuth20Service service = mOAuthService;
+        if (service == null) {
+            synchronized (this) {
+                service = mOAuthService;
+                if (service == null) {
+                    if (Debug.DebugLevel == LoggerLevel.DEBUG) {
+                        DebugLogger.getInstance().writeLog(Level.INFO, "Building the OAuth service");
+                    }
+                    mOAuthService = service = createOAuthService(Constants.REDIRECT_URL);
+                }
+            }
+        }
+        return service;
     }
 
-    public static synchronized void resetInstance() {
-        INSTANCE = null;
+    public static void resetInstance() {
+        synchronized (AuthenticationManager.class) {
+            if (INSTANCE != null) {
+                INSTANCE.mTokenHolder.shutdown();
+            }
+            INSTANCE = null;
+        }
+    }
+
+    /**
+     * @return The holder that keeps the access token fresh
+     */
+    public TokenHolder getTokenHolder() {
+        return mTokenHolder;
     }
 
     public String getRefreshToken() {
-        if (mAccessToken == null) {
-            return "";
-        }
-        return mAccessToken.getRefreshToken();
+        return mTokenHolder.getRefreshToken();
     }
 
+    /**
+     * Gets the current access token without locking. The token is refreshed in the background
+     * before it expires. The time taken is recorded as the acquireToken operation.
+     */
+    @SuppressWarnings("try")
     public String getAccessToken() {
-        if (mAccessToken == null) {
-            return "";
+        try (Span ignored = Tracer.getInstance().startSpan("acquireToken")) {
+            long start = System.nanoTime();
+            String accessToken = mTokenHolder.getAccessToken();
+            MetricsRegistry.getInstance().operation("acquireToken").recordSuccess(System.nanoTime() - start);
+            return accessToken;
         }
-        return mAccessToken.getAccessToken();
     }
 
     /**
@@ -123,7 +158,20 @@ public class AuthenticationManager {
 
     public void connect(Scanner inputScanner) throws URISyntaxException, IOException, InterruptedException, ExecutionException {
         try {
-            mAccessToken = mOAuthService.getAccessToken(getAuthorizationCode(inputScanner));
+            if (connectFromCache()) {
+                return;
+            }
+            mTokenHolder.setTokenCache(mTokenCache);
+            if (Constants.USE_LOOPBACK_REDIRECT) {
+                try {
+                    mTokenHolder.setToken(getAccessTokenFromLoopback());
+                } catch (TimeoutException ex) {
+                    throw new IOException("No authorization redirect arrived in time", ex);
+                }
+            }
+            else {
+                mTokenHolder.setToken(redeemAuthorizationCode(getOAuthService(), getAuthorizationCode(inputScanner), null));
+            }
             showAuthTokenToUser();
             makeAuthenticatedMeRequest();
         } finally {
@@ -131,6 +179,42 @@ public class AuthenticationManager {
     }
 
 
+    /**
+     * Restores the token saved by an earlier run, refreshing it first if it has expired. When
+     * this succeeds the interactive sign in and the verification request are skipped.
+     *
+     * @return True if a usable token was restored
+     */
+    private boolean connectFromCache() throws IOException {
+        OAuth2AccessToken cachedToken = mTokenCache.load();
+        if (cachedToken == null) {
+            return false;
+        }
+        mTokenHolder.setToken(cachedToken);
+        mTokenHolder.setTokenCache(mTokenCache);
+        if (mTokenHolder.isExpired()) {
+            if (getRefreshToken().isEmpty()) {
+                return false;
+            }
+            try {
+                mTokenHolder.refresh().get();
+            } catch (InterruptedException | ExecutionException ex) {
+                DebugLogger.getInstance().writeLog(Level.INFO, "Cached token could not be refreshed", ex);
+                mTokenCache.clear();
+                return false;
+            }
+        }
+        System.out.println("Signed in with the cached token");
+        return true;
+    }
+
+    /**
+     * Deletes the token saved for the next run, so the next connect signs in interactively.
+     */
+    public void clearTokenCache() {
+        mTokenCache.clear();
+    }
+
     /**
      * Connects the user to Microsoft Graph API asynchronously
      *
@@ -151,12 +235,13 @@ public class AuthenticationManager {
         Future<OAuth2AccessToken> future = null;
         try {
             final String code = getAuthorizationCode(inputScanner);
-            future = mOAuthService
+            future = getOAuthService()
                     .getAccessToken(code, new OAuthAsyncRequestCallback<OAuth2AccessToken>() {
 
                         @Override
                         public void onCompleted(OAuth2AccessToken oAuth2AccessToken) {
-                            mAccessToken = oAuth2AccessToken;
+                            mTokenHolder.setTokenCache(mTokenCache);
+                            mTokenHolder.setToken(oAuth2AccessToken);
                             showAuthTokenToUser();
 
                             try {
@@ -182,6 +267,81 @@ public class AuthenticationManager {
     }
 
 
+    /**
+     * Connects the user to Microsoft Graph API asynchronously. The authorization code is
+     * received on a loopback redirect and redeemed as soon as it arrives, with the PKCE
+     * verifier of the sign in. Returns once the browser is opened, without waiting for the
+     * user to sign in.
+     *
+     * @param callback handles the authentication result.
+     * @return A future completed with the token, or failed with a TimeoutException if no
+     * redirect arrived in time
+     */
+    public CompletableFuture<OAuth2AccessToken> connectAsync(final IConnectCallback callback) throws
+            URISyntaxException,
+            IOException
+    {
+        final String state = newState();
+        final PKCE pkce = new PKCEService().generatePKCE();
+        final LoopbackRedirectListener listener = new LoopbackRedirectListener(state);
+        final OAuth20Service service;
+        try {
+            service = createOAuthService(listener.getRedirectUrl());
+            browseToAuthorizationUrl(service, state, pkce);
+        } catch (URISyntaxException | IOException | RuntimeException ex) {
+            listener.close();
+            throw ex;
+        }
+        final CompletableFuture<OAuth2AccessToken> token = new CompletableFuture<>();
+        listener.getCode()
+                .orTimeout(Constants.LOOPBACK_REDIRECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete(new BiConsumer<String, Throwable>() {
+                    @Override
+                    public void accept(String code, Throwable error) {
+                        listener.close();
+                        if (error != null) {
+                            token.completeExceptionally(error);
+                            callback.onThrowable(error);
+                            return;
+                        }
+                        redeemAuthorizationCodeAsync(service, code, pkce, token, callback);
+                    }
+                });
+        return token;
+    }
+
+    /**
+     * Redeems an authorization code without blocking, completing the token future and the
+     * callback when the token endpoint answers
+     */
+    private void redeemAuthorizationCodeAsync(
+            OAuth20Service service,
+            String code,
+            PKCE pkce,
+            final CompletableFuture<OAuth2AccessToken> token,
+            final IConnectCallback callback) {
+        service.getAccessToken(code, new OAuthAsyncRequestCallback<OAuth2AccessToken>() {
+
+            @Override
+            public void onCompleted(OAuth2AccessToken oAuth2AccessToken) {
+                mTokenHolder.setTokenCache(mTokenCache);
+                mTokenHolder.setToken(oAuth2AccessToken);
+                token.complete(oAuth2AccessToken);
+                try {
+                    callback.onCompleted();
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void onThrowable(Throwable throwable) {
+                token.completeExceptionally(throwable);
+                callback.onThrowable(throwable);
+            }
+        }, pkce.getCodeVerifier());
+    }
+
     /**
      * Disconnects the app from Office 365 by clearing the token cache, setting the client objects
      * to null, and removing the user id from shred preferences.
@@ -189,7 +349,7 @@ public class AuthenticationManager {
     public void disconnect() throws Exception {
         try {
             // Commented out - ScribeJava does not support revoking access tokens yet.
-            //  mOAuthService.revokeToken(mAccessToken.getAccessToken());
+            //  mOAuthService.revokeToken(getAccessToken());
         } finally {
         }
     }
@@ -200,7 +360,7 @@ public class AuthenticationManager {
     private void showAuthTokenToUser() {
         System.out.println("Got the Access Token!");
         System.out.println(
-                "(if you're curious the raw answer looks like this: " + mAccessToken.getRawResponse() + "')");
+                "(if you're curious the raw answer looks like this: " + mTokenHolder.getToken().getRawResponse() + "')");
         System.out.println();
         // Now let's go and ask for a protected resource!
         System.out.println("Now we're going to access a protected resource...");
@@ -216,9 +376,10 @@ public class AuthenticationManager {
      */
     private void makeAuthenticatedMeRequest() throws InterruptedException, ExecutionException, IOException {
         final OAuthRequest request = new OAuthRequest(Verb.GET, Constants.PROTECTED_RESOURCE_URL);
-        mOAuthService.signRequest(mAccessToken, request);
+        OAuth20Service service = getOAuthService();
+        service.signRequest(mTokenHolder.getAccessToken(), request);
         request.addHeader("Accept", "application/json, text/plain, */*");
-        final Response response = mOAuthService.execute(request);
+        final Response response = service.execute(request);
         System.out.println("Got it! Let's see what we found...");
         System.out.println();
         System.out.println(response.getCode());
@@ -227,6 +388,83 @@ public class AuthenticationManager {
         System.out.println("Thats it! Go and build something awesome with Microsoft Graph! :)");
     }
 
+    /**
+     * Signs the user in with the authorization code flow, receiving the code on an embedded
+     * loopback listener. The code is redeemed with a service that uses the loopback redirect
+     * url, since the token request must repeat the redirect url of the authorization request.
+     * Other local processes may see the redirect, so the sign in uses PKCE: only this process
+     * knows the verifier that redeems the code.
+     *
+     * @return The access token
+     * @throws TimeoutException If no redirect arrived before the timeout
+     */
+    private OAuth2AccessToken getAccessTokenFromLoopback()
+            throws IOException, URISyntaxException, InterruptedException, ExecutionException, TimeoutException {
+        final String state = newState();
+        final PKCE pkce = new PKCEService().generatePKCE();
+        try (LoopbackRedirectListener listener = new LoopbackRedirectListener(state)) {
+            OAuth20Service service = createOAuthService(listener.getRedirectUrl());
+            browseToAuthorizationUrl(service, state, pkce);
+            System.out.println("Waiting for the sign in to complete in the browser...");
+            String code = listener.awaitCode(Constants.LOOPBACK_REDIRECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            System.out.println("Trading the Request Token for an Access Token...");
+            return redeemAuthorizationCode(service, code, pkce.getCodeVerifier());
+        }
+    }
+
+    /**
+     * Trades an authorization code for tokens at the token endpoint, recording the call as the
+     * redeemAuthorizationCode operation
+     *
+     * @param codeVerifier The PKCE verifier of the authorization request, or null if it sent no challenge
+     */
+    private static OAuth2AccessToken redeemAuthorizationCode(OAuth20Service service, String code, String codeVerifier)
+            throws IOException, InterruptedException, ExecutionException {
+        OperationMetrics metrics = MetricsRegistry.getInstance().operation("redeemAuthorizationCode");
+        long start = System.nanoTime();
+        try (Span span = Tracer.getInstance().startSpan("redeemAuthorizationCode")) {
+            try {
+                OAuth2AccessToken token = codeVerifier == null
+                                          ? service.getAccessToken(code)
+                                          : service.getAccessToken(code, codeVerifier);
+                metrics.recordSuccess(System.nanoTime() - start);
+                return token;
+            } catch (IOException | InterruptedException | ExecutionException | RuntimeException ex) {
+                metrics.recordError(System.nanoTime() - start);
+                span.setError(ex);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Opens the authorization url in the browser, or prints it when there is no desktop
+     *
+     * @param pkce The PKCE challenge to send, whose verifier redeems the code
+     */
+    private static void browseToAuthorizationUrl(OAuth20Service service, String state, PKCE pkce)
+            throws IOException, URISyntaxException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("state", state);
+        final String authorizationUrl = service.getAuthorizationUrl(parameters, pkce);
+        if (isDesktopSupported()) {
+            getDesktop().browse(new URI(authorizationUrl));
+        }
+        else {
+            System.out.println("Now go and authorize Java-Native-Console-Connect here:");
+            System.out.println(authorizationUrl);
+        }
+    }
+
+    /**
+     * @return An unguessable state value that ties the redirect to this sign in
+     */
+    private static String newState() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
     /**
      * Gets the user authorization grant flow URL, opens a browser tab with the resulting authorization token
      * embedded in the address URL. User copies the URL, extracts the token, and pastes it into the system console.
@@ -245,7 +483,7 @@ public class AuthenticationManager {
         System.out.println();
         // Obtain the Authorization URL
         System.out.println("Fetching the Authorization URL...");
-        final String authorizationUrl = mOAuthService.getAuthorizationUrl();
+        final String authorizationUrl = getOAuthService().getAuthorizationUrl();
         System.out.println("Got the Authorization URL!");
         if (isDesktopSupported()) {
             getDesktop().browse(new URI(authorizationUrl));
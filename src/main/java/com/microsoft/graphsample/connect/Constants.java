@@ -7,11 +7,123 @@ package com.microsoft.graphsample.connect;
 public class Constants {
 
     public static final String DEFAULT_IMAGE_FILENAME = "test.jpg";
+    public static final String ONEDRIVE_PICTURE_FILENAME = "me2.png";
+    // How often the default picture file is checked for changes
+    public static final long DEFAULT_PICTURE_CHECK_MILLIS = 1000;
     public static final String NETWORK_NAME = "Microsoft Azure Active Directory";
     public final static String CLIENT_ID = "ENTER_YOUR_CLIENT_ID";
     public final static String REDIRECT_URL = "https://login.microsoftonline.com/common/oauth2/nativeclient";
+    // The authorize and token endpoints. Override with -Dgraphsample.authority to sign in
+    // against a stand-in authorization server
+    public final static String AUTHORITY =
+            System.getProperty("graphsample.authority", "https://login.microsoftonline.com/common/oauth2/v2.0");
+    // Receive the authorization code on a loopback redirect (http://127.0.0.1) instead of
+    // having the user paste it. The app registration needs http://127.0.0.1 as a redirect URI
+    public final static boolean USE_LOOPBACK_REDIRECT = false;
+    public final static int LOOPBACK_REDIRECT_TIMEOUT_SECONDS = 300;
     public final static String SCOPES = "Files.ReadWrite openid User.Read Mail.Send Mail.ReadWrite";
     public static final String PROTECTED_RESOURCE_URL = "https://graph.microsoft.com/v1.0/me";
+    // The access token is refreshed this long before it expires
+    public static final int TOKEN_REFRESH_AHEAD_SECONDS = 300;
+    // Tokens are kept between runs in this encrypted file; delete it to force an interactive sign in
+    public static final String TOKEN_CACHE_FILE = System.getProperty("user.home") + "/.graphsample/token.bin";
+    public static final String TOKEN_CACHE_KEY_FILE = System.getProperty("user.home") + "/.graphsample/token.key";
+
+    // Number of sends a bulk run keeps in flight at once
+    public static final int BULK_SEND_CONCURRENCY = 8;
+    // Coalesce bulk sends into $batch requests. Needs BULK_SEND_CONCURRENCY well above 1 to pay off
+    public static final boolean BULK_SEND_USE_BATCHING = false;
+    // Send bulk runs with the non-blocking pipeline, which keeps up to BULK_SEND_ASYNC_MAX_IN_FLIGHT
+    // sends in flight without a thread per send. Needs the http2 transport to pay off
+    public static final boolean BULK_SEND_ASYNC = false;
+    public static final int BULK_SEND_ASYNC_MAX_IN_FLIGHT = 256;
+    // Threads, shared by every account, that run the Graph calls of the non-blocking pipeline that
+    // can only block: calls over the SDK transport, and attachment upload sessions
+    public static final int ASYNC_BLOCKING_CALL_THREADS = 16;
+    // Send identical mail as one message per group of recipients instead of one per recipient.
+    // The body is then rendered without recipient fields. Exchange Online accepts up to 500
+    // recipients per message; Bcc keeps the recipients from seeing each other
+    public static final boolean BULK_SEND_PACK_RECIPIENTS = false;
+    public static final int BULK_SEND_MAX_RECIPIENTS_PER_MESSAGE = 100;
+    public static final String BULK_SEND_PACKED_FIELD = "bcc";
+    // Bulk runs on the worker threads record each send and its completed steps in a journal in
+    // this directory, so a run that stopped resumes without sending twice. Flushing each record
+    // to disk also survives a power loss, at the cost of a disk flush per step
+    public static final boolean OUTBOX_ENABLED = true;
+    public static final String OUTBOX_DIRECTORY = System.getProperty("user.home") + "/.graphsample/outbox";
+    public static final int OUTBOX_INITIAL_BYTES = 1024 * 1024;
+    public static final boolean OUTBOX_FORCE_WRITES = false;
+
+    // A GraphClientPool keeps the tokens of each account encrypted in this directory and holds
+    // at most this many accounts, and about this much memory, before it evicts the least
+    // recently used. Evicted accounts are restored from their token file on their next use
+    public static final String ACCOUNT_POOL_DIRECTORY = System.getProperty("user.home") + "/.graphsample/accounts";
+    public static final int ACCOUNT_POOL_MAX_ACCOUNTS = 10000;
+    public static final long ACCOUNT_POOL_MAX_BYTES = 256L * 1024 * 1024;
+    // Token refreshes of pooled accounts that can run at once
+    public static final int ACCOUNT_POOL_REFRESH_THREADS = 4;
+
+    // How long a batchable Graph operation waits for others to share its $batch request
+    public static final long BATCH_LINGER_MILLIS = 20;
+
+    // Profile photos are cached here and revalidated with their ETag instead of downloaded on every send
+    public static final String PHOTO_CACHE_DIRECTORY =
+            System.getProperty("user.home") + "/.graphsample/photos";
+    public static final long PHOTO_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    // Pictures uploaded and shared before are found here by content hash, so sends of the same
+    // picture skip the upload and createLink calls. Entries are used this long; 0 turns the index off
+    public static final String UPLOAD_INDEX_FILE =
+            System.getProperty("user.home") + "/.graphsample/uploads.properties";
+    public static final long UPLOAD_INDEX_TTL_HOURS = 24;
+
+    // Largest attachment sent inline in a message body. Graph rejects requests over 4 MB,
+    // and base64 encoding grows the attachment by a third
+    public static final int INLINE_ATTACHMENT_MAX_BYTES = 3 * 1024 * 1024;
+
+    // Files above the simple upload limit go through a chunked, resumable upload session.
+    // Chunk sizes must be a multiple of 320 KiB; OneDrive expects chunks in order, so one is in flight
+    public static final int SIMPLE_UPLOAD_MAX_BYTES = 4 * 1024 * 1024;
+    public static final int UPLOAD_CHUNK_SIZE = 10 * 320 * 1024;
+    public static final int UPLOAD_MAX_IN_FLIGHT = 1;
+    public static final int UPLOAD_MAX_RETRIES = 5;
+
+    // The HTTP transport Graph requests go over: "http2" multiplexes requests over a few pooled
+    // HTTP/2 connections (Java 11+), anything else keeps the SDK's HttpURLConnection transport
+    public static final String HTTP_TRANSPORT = System.getProperty("graphsample.transport", "http2");
+    public static final long HTTP_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final long HTTP_REQUEST_TIMEOUT_MILLIS = 60000;
+    // How long idle pooled connections stay open, and how many HTTP/1.1 connections the pool keeps.
+    // Set by the sample's main methods as the JVM-wide jdk.httpclient.* properties
+    public static final int HTTP_KEEP_ALIVE_SECONDS = 120;
+    public static final int HTTP_MAX_POOLED_CONNECTIONS = 8;
+
+    // Throttled and transiently failed Graph calls are retried up to this many attempts, waiting
+    // for Retry-After or an exponential backoff with jitter. Waits longer than the maximum are not made
+    public static final int RETRY_MAX_ATTEMPTS = 6;
+    public static final long RETRY_BASE_DELAY_MILLIS = 500;
+    public static final long RETRY_MAX_DELAY_MILLIS = 120000;
+    // Each Graph call earns this fraction of a retry, on top of a reserve of retries that can be
+    // spent up front. Spent budget turns failures into errors rather than more load
+    public static final double RETRY_BUDGET_RATIO = 0.2;
+    public static final int RETRY_BUDGET_RESERVE = 20;
+
+    // Loopback port of the Prometheus metrics endpoint (http://localhost:<port>/metrics).
+    // Set with -Dgraphsample.metrics.port; 0 leaves the endpoint off. Metrics are always on JMX
+    public static final int METRICS_PORT = Integer.getInteger("graphsample.metrics.port", 0);
+
+    // UTF-8 HTML file to use as the mail body instead of MESSAGE_BODY. Set with
+    // -Dgraphsample.mail.template. {{link}} is the sharing link to the photo, {{email}} the
+    // recipient address, and any other {{field}} a property or CSV column of the recipient
+    public static final String MAIL_TEMPLATE_FILE = System.getProperty("graphsample.mail.template");
+
+    // Log messages waiting for the DebugLogger's writer thread. More are dropped, except SEVERE
+    // ones, which the caller then writes itself. Must be a power of two
+    public static final int LOG_BUFFER_CAPACITY = 4096;
+
+    // Chrome trace event file that every send's spans are written to, for viewing in Perfetto.
+    // Set with -Dgraphsample.trace.file; unset leaves tracing off. Spans beyond the buffer are dropped
+    public static final String TRACE_FILE = System.getProperty("graphsample.trace.file");
+    public static final int TRACE_BUFFER_CAPACITY = 65536;
 
     public static final String SUBJECT_TEXT = "Welcome to Microsoft Graph development for Java with the Connect sample";
 
@@ -24,7 +136,7 @@ public class Constants {
                                                "</head>\n" +
                                                "<body style=\'font-family:calibri\'>\n" +
                                                "<h2>Congratulations!</h2>\n" +
-                                               "<p>This is a message from the Microsoft Graph Connect Sample. You are well on your way to incorporating Microsoft Graph endpoints in your apps.</p><a href=%s>See the photo you just uploaded!</a>\n" +
+                                               "<p>This is a message from the Microsoft Graph Connect Sample. You are well on your way to incorporating Microsoft Graph endpoints in your apps.</p><a href=\'{{link}}\'>See the photo you just uploaded!</a>\n" +
                                                "<h3>What\'s next?</h3><ul>\n" +
                                                "<li>Check out <a href=\'https://developer.microsoft.com/graph\'>developer.microsoft.com/graph</a> to start building Microsoft Graph apps today with all the latest tools, templates, and guidance to get started quickly.</li>\n" +
                                                "<li>Use the <a href=\'https://developer.microsoft.com/graph/graph-explorer\'>Graph Explorer</a> to explore the rest of the APIs and start your testing.</li>\n" +
@@ -2,59 +2,342 @@ package com.microsoft.graphsample.connect;
 
 import com.microsoft.graph.logger.LoggerLevel;
 
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
+/**
+ * Writes the sample's log messages to the console without making the caller wait for it.
+ * <p>
+ * Messages that pass {@link #isEnabled(Level)} are put in a bounded ring buffer of
+ * preallocated slots, and a background thread formats and writes them. When the buffer is
+ * full, messages are dropped and counted, except SEVERE messages, which are then written on
+ * the caller's thread. The writer reports how many messages were dropped.
+ * <p>
+ * Messages that take work to build should be passed as a pattern with {} placeholders or as
+ * a supplier, so that nothing is built when logging is off. Pattern arguments are rendered by
+ * the writer thread, so they should be immutable values such as strings and numbers.
+ */
 public final class DebugLogger {
 
-    private static Logger log;
-    private static DebugLogger INSTANCE;
+    private static final String LOGGER_NAME = "com.microsoft.graphsample.connect";
+    // How long the writer sleeps when the buffer is empty and no one wakes it
+    private static final long WRITER_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
 
+    private static final DebugLogger INSTANCE = new DebugLogger(Constants.LOG_BUFFER_CAPACITY);
 
-    /**
-     * Initialization block called before default constructor
-     * Configures
-     */
-    {
-        String         loggerName = "com.microsoft.graphsample.connect";
-        log        = Logger.getLogger(loggerName);
-        ConsoleHandler handler    = new ConsoleHandler();
+    private final Logger mLog;
+    private final Slot[] mSlots;
+    private final int mMask;
+    // Next slot to claim. Slots up to mHead have been written
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile long mHead;
+    private final LongAdder mDropped = new LongAdder();
+    private final LongAdder mWrittenByCaller = new LongAdder();
+    private long mDroppedReported;
+    private final Thread mWriter;
+    private volatile boolean mWriterIdle;
+
+    private DebugLogger(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The log buffer capacity must be a power of two.");
+        }
+        mLog = Logger.getLogger(LOGGER_NAME);
+        ConsoleHandler handler = new ConsoleHandler();
         handler.setLevel(Level.ALL);
-        log.addHandler(handler);
-        log.setLevel(Level.ALL);
-    }
+        mLog.addHandler(handler);
+        // The root logger's console handler would print every message a second time
+        mLog.setUseParentHandlers(false);
+        mLog.setLevel(Level.ALL);
 
-    public static synchronized DebugLogger getInstance() throws java.io.IOException {
+        mSlots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Slot(i);
+        }
+        mMask = capacity - 1;
 
-        if (INSTANCE == null) {
-            INSTANCE = new DebugLogger();
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "debug-logger");
+        mWriter.setDaemon(true);
+        // Nothing is ever queued while logging is compiled out
+        if (Debug.DebugLevel == LoggerLevel.DEBUG) {
+            mWriter.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flush(1000);
+                }
+            }, "debug-logger-flush"));
         }
+    }
+
+    public static DebugLogger getInstance() {
         return INSTANCE;
     }
 
+    /**
+     * @return True if messages of the level are written. Callers that need more than a pattern
+     * with two arguments to describe an event check this before building the message
+     */
+    public boolean isEnabled(Level logLevel) {
+        return Debug.DebugLevel == LoggerLevel.DEBUG && mLog.isLoggable(logLevel);
+    }
 
     /**
-     * Writes an exception to system.out
+     * Writes info messages to system.out
      * @param logLevel
      * @param message
-     * @param exception
      */
-    public  void writeLog(Level logLevel, String message, Exception exception) {
-        if (Debug.DebugLevel == LoggerLevel.DEBUG) {
-            log.log(logLevel, message, exception);
+    public void writeLog(Level logLevel, String message) {
+        if (isEnabled(logLevel)) {
+            enqueue(logLevel, message, null, null, 0, null);
         }
     }
 
     /**
-     * Writes info messages to system.out
+     * Writes an exception to system.out
      * @param logLevel
      * @param message
+     * @param exception
      */
-    public  void writeLog(Level logLevel, String message) {
-        if (Debug.DebugLevel == LoggerLevel.DEBUG) {
-            log.log(logLevel, message);
+    public void writeLog(Level logLevel, String message, Throwable exception) {
+        if (isEnabled(logLevel)) {
+            enqueue(logLevel, message, null, null, 0, exception);
+        }
+    }
+
+    /**
+     * Writes a message with one {} placeholder
+     */
+    public void writeLog(Level logLevel, String pattern, Object argument) {
+        if (isEnabled(logLevel)) {
+            enqueue(logLevel, pattern, argument, null, 1, null);
+        }
+    }
+
+    /**
+     * Writes a message with one {} placeholder and an exception
+     */
+    public void writeLog(Level logLevel, String pattern, Object argument, Throwable exception) {
+        if (isEnabled(logLevel)) {
+            enqueue(logLevel, pattern, argument, null, 1, exception);
+        }
+    }
+
+    /**
+     * Writes a message with two {} placeholders
+     */
+    public void writeLog(Level logLevel, String pattern, Object argument1, Object argument2) {
+        if (isEnabled(logLevel)) {
+            enqueue(logLevel, pattern, argument1, argument2, 2, null);
+        }
+    }
+
+    /**
+     * Writes a message built by the supplier. The supplier runs on the caller's thread, and
+     * only if the level is enabled
+     */
+    public void writeLog(Level logLevel, Supplier<String> message) {
+        if (isEnabled(logLevel)) {
+            enqueue(logLevel, message.get(), null, null, 0, null);
+        }
+    }
+
+    /**
+     * Writes a message built by the supplier, with an exception
+     */
+    public void writeLog(Level logLevel, Supplier<String> message, Throwable exception) {
+        if (isEnabled(logLevel)) {
+            enqueue(logLevel, message.get(), null, null, 0, exception);
+        }
+    }
+
+    /**
+     * @return Messages dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return mDropped.sum();
+    }
+
+    /**
+     * @return SEVERE messages written on the caller's thread because the buffer was full
+     */
+    public long getWrittenByCallerCount() {
+        return mWrittenByCaller.sum();
+    }
+
+    /**
+     * @return Messages waiting to be written
+     */
+    public long getPendingCount() {
+        return Math.max(0, mTail.get() - mHead);
+    }
+
+    /**
+     * Waits until the messages logged before the call have been written
+     *
+     * @param timeoutMillis The longest time to wait
+     * @return True if they were all written in time
+     */
+    public boolean flush(long timeoutMillis) {
+        long target = mTail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (mHead < target) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.unpark(mWriter);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    /**
+     * Claims a slot and publishes the message in it. Slots are claimed in order; a slot that
+     * has not been written yet since its last use means the buffer is full
+     */
+    private void enqueue(Level level, String pattern, Object argument1, Object argument2,
+                         int argumentCount, Throwable thrown) {
+        long position = mTail.get();
+        while (true) {
+            Slot slot = mSlots[(int) position & mMask];
+            long sequence = slot.mSequence;
+            if (sequence == position) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    slot.mLevel = level;
+                    slot.mPattern = pattern;
+                    slot.mArgument1 = argument1;
+                    slot.mArgument2 = argument2;
+                    slot.mArgumentCount = argumentCount;
+                    slot.mThrown = thrown;
+                    slot.mMillis = System.currentTimeMillis();
+                    slot.mThreadId = Thread.currentThread().getId();
+                    slot.mSequence = position + 1;
+                    if (mWriterIdle) {
+                        LockSupport.unpark(mWriter);
+                    }
+                    return;
+                }
+                position = mTail.get();
+            }
+            else if (sequence < position) {
+                if (level == Level.SEVERE) {
+                    mWrittenByCaller.increment();
+                    write(level, pattern, argument1, argument2, argumentCount, thrown,
+                          System.currentTimeMillis(), Thread.currentThread().getId());
+                }
+                else {
+                    mDropped.increment();
+                }
+                return;
+            }
+            else {
+                position = mTail.get();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long head = mHead;
+            Slot slot = mSlots[(int) head & mMask];
+            if (slot.mSequence != head + 1) {
+                reportDropped();
+                mWriterIdle = true;
+                // Checked again after announcing the wait, so a message published meanwhile is not missed
+                if (slot.mSequence != head + 1) {
+                    LockSupport.parkNanos(WRITER_IDLE_NANOS);
+                }
+                mWriterIdle = false;
+                continue;
+            }
+            try {
+                write(slot.mLevel, slot.mPattern, slot.mArgument1, slot.mArgument2, slot.mArgumentCount,
+                      slot.mThrown, slot.mMillis, slot.mThreadId);
+            } catch (RuntimeException ex) {
+                // A failing toString() or handler must not stop the writer
+                ex.printStackTrace();
+            }
+            slot.clear();
+            slot.mSequence = head + mSlots.length;
+            mHead = head + 1;
+        }
+    }
+
+    private void reportDropped() {
+        long dropped = mDropped.sum();
+        if (dropped > mDroppedReported) {
+            write(Level.WARNING, "{} log messages dropped because the log buffer was full",
+                  dropped - mDroppedReported, null, 1, null, System.currentTimeMillis(), mWriter.getId());
+            mDroppedReported = dropped;
+        }
+    }
+
+    private void write(Level level, String pattern, Object argument1, Object argument2, int argumentCount,
+                       Throwable thrown, long millis, long threadId) {
+        LogRecord record = new LogRecord(level, format(pattern, argument1, argument2, argumentCount));
+        record.setLoggerName(LOGGER_NAME);
+        record.setThrown(thrown);
+        record.setInstant(Instant.ofEpochMilli(millis));
+        record.setThreadID((int) threadId);
+        mLog.log(record);
+    }
+
+    /**
+     * Replaces the {} placeholders of the pattern with the arguments, in order
+     */
+    private static String format(String pattern, Object argument1, Object argument2, int argumentCount) {
+        if (argumentCount == 0 || pattern == null) {
+            return pattern;
         }
+        StringBuilder message = new StringBuilder(pattern.length() + 32);
+        int start = 0;
+        for (int i = 0; i < argumentCount; i++) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            message.append(pattern, start, placeholder).append(i == 0 ? argument1 : argument2);
+            start = placeholder + 2;
+        }
+        return message.append(pattern, start, pattern.length()).toString();
     }
 
+    /**
+     * One message in the ring buffer. The sequence tells producers and the writer whose turn
+     * it is: the slot's position when free, one past it when written
+     */
+    private static final class Slot {
+        volatile long mSequence;
+        Level mLevel;
+        String mPattern;
+        Object mArgument1;
+        Object mArgument2;
+        int mArgumentCount;
+        Throwable mThrown;
+        long mMillis;
+        long mThreadId;
+
+        Slot(long sequence) {
+            mSequence = sequence;
+        }
+
+        void clear() {
+            mPattern = null;
+            mArgument1 = null;
+            mArgument2 = null;
+            mThrown = null;
+        }
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.connect;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A one-shot HTTP listener on an ephemeral loopback port that receives the authorization
+ * redirect and extracts the authorization code, so the user does not have to copy and paste
+ * it. The listener only accepts a redirect that carries the expected state value.
+ * <p>
+ * The listener binds to the IPv4 loopback address and redirects to its literal, 127.0.0.1,
+ * since "localhost" may resolve to the IPv6 loopback address the listener does not bind to.
+ */
+public class LoopbackRedirectListener implements Closeable {
+    private static final String RESPONSE_PAGE =
+            "<html><body style='font-family:calibri'><p>%s You can close this window.</p></body></html>";
+
+    private final HttpServer mServer;
+    private final String mExpectedState;
+    private final CompletableFuture<String> mCode = new CompletableFuture<>();
+
+    /**
+     * Starts listening on a free port of the loopback interface.
+     *
+     * @param expectedState The state sent with the authorization request
+     */
+    public LoopbackRedirectListener(String expectedState) throws IOException {
+        mExpectedState = expectedState;
+        InetAddress loopback = InetAddress.getByAddress(new byte[] {127, 0, 0, 1});
+        mServer = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRedirect(exchange);
+            }
+        });
+        mServer.start();
+    }
+
+    /**
+     * @return The redirect url to register with the authorization request
+     */
+    public String getRedirectUrl() {
+        InetSocketAddress address = mServer.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    /**
+     * @return A future completed with the authorization code when the authorization server
+     * redirects the browser to the listener, or failed with an IOException if the server
+     * returned an error
+     */
+    public CompletableFuture<String> getCode() {
+        return mCode.copy();
+    }
+
+    /**
+     * Waits for the authorization server to redirect the browser to the listener.
+     *
+     * @param timeout How long to wait
+     * @param unit    The unit of the timeout
+     * @return The authorization code
+     * @throws IOException      If the authorization server returned an error
+     * @throws TimeoutException If no redirect arrived in time
+     */
+    public String awaitCode(long timeout, TimeUnit unit)
+            throws IOException, InterruptedException, TimeoutException {
+        try {
+            return mCode.get(timeout, unit);
+        } catch (ExecutionException ex) {
+            throw new IOException("Authorization failed: " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+    }
+
+    private void handleRedirect(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String code = query.get("code");
+        String error = query.get("error");
+        if ((code == null && error == null) || !mExpectedState.equals(query.get("state"))) {
+            // Browsers also ask for /favicon.ico; anything that is not our redirect is ignored
+            respond(exchange, 404, "Not found.");
+            return;
+        }
+        if (code != null) {
+            respond(exchange, 200, "Sign in complete.");
+            mCode.complete(code);
+        }
+        else {
+            String description = query.get("error_description");
+            respond(exchange, 400, "Sign in failed.");
+            mCode.completeExceptionally(new IOException(error + (description == null ? "" : ": " + description)));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = String.format(RESPONSE_PAGE, message).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                          URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+}
@@ -6,27 +6,39 @@ import com.github.scribejava.core.oauth2.clientauthentication.RequestBodyAuthent
 
 public class MicrosoftAzureAD20Api extends DefaultApi20 {
 
-    private MicrosoftAzureAD20Api() {
+    private final String mAuthority;
+
+    private MicrosoftAzureAD20Api(String authority) {
+        mAuthority = authority;
     }
 
     private static class InstanceHolder {
-        static MicrosoftAzureAD20Api INSTANCE = new MicrosoftAzureAD20Api();
+        static MicrosoftAzureAD20Api INSTANCE = new MicrosoftAzureAD20Api(Constants.AUTHORITY);
     }
 
     @Override
     public String getAccessTokenEndpoint() {
-        return "https://login.microsoftonline.com/common/oauth2/v2.0/token";
+        return mAuthority + "/token";
     }
 
     @Override
     protected String getAuthorizationBaseUrl() {
-        return "https://login.microsoftonline.com/common/oauth2/v2.0/authorize";
+        return mAuthority + "/authorize";
     }
 
     public static DefaultApi20 instance() {
         return InstanceHolder.INSTANCE;
     }
 
+    /**
+     * Creates the API for another authority, such as a local stand-in authorization server.
+     *
+     * @param authority The base url of the authorize and token endpoints
+     */
+    public static DefaultApi20 withAuthority(String authority) {
+        return new MicrosoftAzureAD20Api(authority);
+    }
+
     @Override
     public ClientAuthentication getClientAuthentication() {
         return RequestBodyAuthenticationScheme.instance();
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.connect;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.logging.Level;
+
+/**
+ * Keeps the access token, refresh token and expiry between runs so the sample can skip the
+ * interactive sign in. The tokens are encrypted with AES-GCM under a random key stored in a
+ * separate file. Both files are readable by the owner only, where the file system supports it.
+ * <p>
+ * The encryption keeps tokens unreadable in copies or backups of the cache file; anyone who
+ * can read both files as the user can still decrypt them.
+ */
+public class TokenCache {
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    private final File mTokenFile;
+    private final File mKeyFile;
+
+    public TokenCache(File tokenFile, File keyFile) {
+        mTokenFile = tokenFile;
+        mKeyFile = keyFile;
+    }
+
+    /**
+     * Encrypts and stores a token.
+     *
+     * @param token           The token to store
+     * @param expiresAtMillis The time the access token expires, in epoch milliseconds
+     */
+    public synchronized void save(OAuth2AccessToken token, long expiresAtMillis) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("access_token", token.getAccessToken());
+            json.put("refresh_token", token.getRefreshToken());
+            json.put("token_type", token.getTokenType());
+            json.put("scope", token.getScope());
+            json.put("expires_at", expiresAtMillis);
+
+            byte[] iv = new byte[IV_BYTES];
+            new SecureRandom().nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, getOrCreateKey(), new GCMParameterSpec(TAG_BITS, iv));
+            byte[] encrypted = cipher.doFinal(json.toString().getBytes(StandardCharsets.UTF_8));
+
+            byte[] contents = Arrays.copyOf(iv, IV_BYTES + encrypted.length);
+            System.arraycopy(encrypted, 0, contents, IV_BYTES, encrypted.length);
+            writeOwnerOnly(mTokenFile, contents);
+        } catch (IOException | GeneralSecurityException | JSONException ex) {
+            log("Could not save the token cache", ex);
+        }
+    }
+
+    /**
+     * Reads the stored token. The returned token's expiresIn is the time it has left, and is
+     * zero or negative if it has already expired.
+     *
+     * @return The stored token, or null if there is none or it cannot be decrypted
+     */
+    public synchronized OAuth2AccessToken load() {
+        if (!mTokenFile.exists() || !mKeyFile.exists()) {
+            return null;
+        }
+        try {
+            byte[] contents = Files.readAllBytes(mTokenFile.toPath());
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, readKey(),
+                        new GCMParameterSpec(TAG_BITS, contents, 0, IV_BYTES));
+            byte[] decrypted = cipher.doFinal(contents, IV_BYTES, contents.length - IV_BYTES);
+            JSONObject json = new JSONObject(new String(decrypted, StandardCharsets.UTF_8));
+
+            long remainingSeconds = (json.getLong("expires_at") - System.currentTimeMillis()) / 1000;
+            return new OAuth2AccessToken(json.getString("access_token"),
+                                         json.optString("token_type", null),
+                                         (int) Math.max(Integer.MIN_VALUE, remainingSeconds),
+                                         json.optString("refresh_token", null),
+                                         json.optString("scope", null),
+                                         null);
+        } catch (IOException | GeneralSecurityException | JSONException ex) {
+            log("Ignoring unreadable token cache", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the stored token, for example on sign out.
+     */
+    public synchronized void clear() {
+        mTokenFile.delete();
+    }
+
+    private SecretKey getOrCreateKey() throws IOException, GeneralSecurityException {
+        // Caches of different accounts can share a key file, so its creation is process wide
+        synchronized (TokenCache.class) {
+            if (mKeyFile.exists()) {
+                return readKey();
+            }
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256);
+            SecretKey key = generator.generateKey();
+            writeOwnerOnly(mKeyFile, key.getEncoded());
+            return key;
+        }
+    }
+
+    private SecretKey readKey() throws IOException {
+        return new SecretKeySpec(Files.readAllBytes(mKeyFile.toPath()), "AES");
+    }
+
+    /**
+     * Writes the file through a temporary file that is restricted to the owner before any
+     * secret is written to it, then moves it into place.
+     */
+    private static void writeOwnerOnly(File file, byte[] contents) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        Path temp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+        boolean moved = false;
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, EnumSet.of(PosixFilePermission.OWNER_READ,
+                                                               PosixFilePermission.OWNER_WRITE));
+            } catch (UnsupportedOperationException ex) {
+                // Not a POSIX file system; the temp file is created with the user's default access
+            }
+            Files.write(temp, contents);
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            if (!moved) {
+                // The temp file may hold a token; a failed write must not leave it behind
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private static void log(String message, Exception ex) {
+        DebugLogger.getInstance().writeLog(Level.WARNING, message, ex);
+    }
+}
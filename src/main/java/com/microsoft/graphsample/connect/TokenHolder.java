@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.connect;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+import com.github.scribejava.core.oauth.OAuth20Service;
+import com.microsoft.graphsample.metrics.MetricsRegistry;
+import com.microsoft.graphsample.metrics.OperationMetrics;
+import com.microsoft.graphsample.metrics.Span;
+import com.microsoft.graphsample.metrics.Tracer;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Holds the access token of the signed in user. Request threads read the token with a single
+ * volatile read and never take a lock.
+ * <p>
+ * The token is refreshed with its refresh token on a background thread shortly before it
+ * expires. Refreshes requested while one is already running join it instead of starting
+ * another, so a burst of requests that find an expired token causes a single refresh.
+ */
+public class TokenHolder {
+    // Lifetime assumed when the token response does not state one
+    private static final int DEFAULT_EXPIRES_IN_SECONDS = 3600;
+    // Delay before a failed background refresh is tried again
+    private static final long REFRESH_RETRY_MILLIS = 30000;
+
+    private final Supplier<OAuth20Service> mOAuthService;
+    private final ScheduledExecutorService mScheduler;
+    private final boolean mOwnsScheduler;
+    private final AtomicReference<CompletableFuture<OAuth2AccessToken>> mRefreshInFlight = new AtomicReference<>();
+    private volatile TokenState mState;
+    private volatile ScheduledFuture<?> mScheduledRefresh;
+    private volatile TokenCache mTokenCache;
+
+    /**
+     * @param oAuthService The service used to redeem refresh tokens
+     */
+    public TokenHolder(final OAuth20Service oAuthService) {
+        this(new Supplier<OAuth20Service>() {
+            @Override
+            public OAuth20Service get() {
+                return oAuthService;
+            }
+        });
+    }
+
+    /**
+     * @param oAuthService Provides the service used to redeem refresh tokens. It is only asked
+     *                     for the service when a refresh runs
+     */
+    public TokenHolder(Supplier<OAuth20Service> oAuthService) {
+        this(oAuthService, newRefreshScheduler(1), true);
+    }
+
+    /**
+     * Creates a holder that refreshes on a scheduler shared with other holders, so that
+     * holding the tokens of many accounts does not take a thread each.
+     *
+     * @param oAuthService Provides the service used to redeem refresh tokens
+     * @param scheduler    Runs the refreshes. {@link #shutdown()} leaves it running
+     */
+    public TokenHolder(Supplier<OAuth20Service> oAuthService, ScheduledExecutorService scheduler) {
+        this(oAuthService, scheduler, false);
+    }
+
+    private TokenHolder(Supplier<OAuth20Service> oAuthService, ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        mOAuthService = oAuthService;
+        mScheduler = scheduler;
+        mOwnsScheduler = ownsScheduler;
+    }
+
+    /**
+     * @param threads The refreshes that can run at once
+     * @return A scheduler of daemon threads for token refreshes
+     */
+    public static ScheduledExecutorService newRefreshScheduler(int threads) {
+        return Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "token-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Persists every token the holder receives, including refreshed ones, to the cache.
+     *
+     * @param tokenCache The cache, or null to stop persisting tokens
+     */
+    public void setTokenCache(TokenCache tokenCache) {
+        mTokenCache = tokenCache;
+    }
+
+    /**
+     * Replaces the held token and schedules its refresh.
+     */
+    public void setToken(OAuth2AccessToken token) {
+        TokenState state = new TokenState(token, System.currentTimeMillis());
+        mState = state;
+        scheduleRefresh(state);
+        TokenCache tokenCache = mTokenCache;
+        if (tokenCache != null) {
+            tokenCache.save(token, state.mExpiresAt);
+        }
+    }
+
+    /**
+     * @return True if the held token has expired or there is none
+     */
+    public boolean isExpired() {
+        TokenState state = mState;
+        return state == null || state.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * @return The held token, or null before sign in
+     */
+    public OAuth2AccessToken getToken() {
+        TokenState state = mState;
+        return state == null ? null : state.mToken;
+    }
+
+    /**
+     * Gets the access token for a request. Only when the token has already expired, because
+     * the background refresh failed or the process was suspended, does the caller wait for a
+     * refresh.
+     *
+     * @return The access token, or an empty string before sign in
+     */
+    public String getAccessToken() {
+        TokenState state = mState;
+        if (state == null) {
+            return "";
+        }
+        if (state.isExpired(System.currentTimeMillis()) && hasRefreshToken(state)) {
+            try {
+                return refresh().get().getAccessToken();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                log("Refreshing the expired access token failed", ex);
+            }
+            // Let the request fail with the expired token rather than hide the failure here
+            return mState.mToken.getAccessToken();
+        }
+        return state.mToken.getAccessToken();
+    }
+
+    /**
+     * @return The refresh token, or an empty string before sign in
+     */
+    public String getRefreshToken() {
+        TokenState state = mState;
+        if (state == null || state.mToken.getRefreshToken() == null) {
+            return "";
+        }
+        return state.mToken.getRefreshToken();
+    }
+
+    /**
+     * @return The time the held token expires, in epoch milliseconds, or 0 before sign in
+     */
+    public long getExpiresAtMillis() {
+        TokenState state = mState;
+        return state == null ? 0 : state.mExpiresAt;
+    }
+
+    /**
+     * Redeems the refresh token for a new access token. If a refresh is already running, the
+     * returned future is the running one.
+     */
+    public CompletableFuture<OAuth2AccessToken> refresh() {
+        CompletableFuture<OAuth2AccessToken> running = mRefreshInFlight.get();
+        if (running != null) {
+            return running;
+        }
+        final CompletableFuture<OAuth2AccessToken> refresh = new CompletableFuture<>();
+        if (!mRefreshInFlight.compareAndSet(null, refresh)) {
+            return mRefreshInFlight.get();
+        }
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                OperationMetrics metrics = MetricsRegistry.getInstance().operation("refreshToken");
+                long start = System.nanoTime();
+                Span span = Tracer.getInstance().startSpan("refreshToken");
+                try {
+                    TokenState state = mState;
+                    OAuth2AccessToken token = mOAuthService.get().refreshAccessToken(state.mToken.getRefreshToken());
+                    if (token.getRefreshToken() == null) {
+                        // The token endpoint may omit the refresh token when it does not rotate it
+                        token = new OAuth2AccessToken(token.getAccessToken(), token.getTokenType(),
+                                                      token.getExpiresIn(), state.mToken.getRefreshToken(),
+                                                      token.getScope(), token.getRawResponse());
+                    }
+                    setToken(token);
+                    metrics.recordSuccess(System.nanoTime() - start);
+                    refresh.complete(token);
+                } catch (Exception ex) {
+                    metrics.recordError(System.nanoTime() - start);
+                    span.setError(ex);
+                    refresh.completeExceptionally(ex);
+                } finally {
+                    span.close();
+                    mRefreshInFlight.compareAndSet(refresh, null);
+                }
+            }
+        });
+        return refresh;
+    }
+
+    /**
+     * Stops background refreshes.
+     */
+    public void shutdown() {
+        ScheduledFuture<?> scheduledRefresh = mScheduledRefresh;
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        if (mOwnsScheduler) {
+            mScheduler.shutdownNow();
+        }
+    }
+
+    private void scheduleRefresh(final TokenState state) {
+        ScheduledFuture<?> previous = mScheduledRefresh;
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        if (!hasRefreshToken(state)) {
+            return;
+        }
+        long lifetime = state.mExpiresAt - state.mAcquiredAt;
+        long refreshAhead = Math.min(Constants.TOKEN_REFRESH_AHEAD_SECONDS * 1000L, lifetime / 2);
+        long delay = Math.max(0, state.mExpiresAt - refreshAhead - System.currentTimeMillis());
+        mScheduledRefresh = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refreshInBackground(state);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshInBackground(final TokenState state) {
+        if (mState != state) {
+            // The token was replaced since this refresh was scheduled
+            return;
+        }
+        refresh().whenComplete(new BiConsumer<OAuth2AccessToken, Throwable>() {
+            @Override
+            public void accept(OAuth2AccessToken token, Throwable throwable) {
+                if (throwable != null && !state.isExpired(System.currentTimeMillis())) {
+                    log("Background token refresh failed, retrying", throwable);
+                    mScheduledRefresh = mScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            refreshInBackground(state);
+                        }
+                    }, REFRESH_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    private static boolean hasRefreshToken(TokenState state) {
+        String refreshToken = state.mToken.getRefreshToken();
+        return refreshToken != null && !refreshToken.isEmpty();
+    }
+
+    private static void log(String message, Throwable throwable) {
+        DebugLogger.getInstance().writeLog(Level.WARNING, message, throwable);
+    }
+
+    /**
+     * A token and the time it expires, published together
+     */
+    private static final class TokenState {
+        final OAuth2AccessToken mToken;
+        final long mAcquiredAt;
+        final long mExpiresAt;
+
+        TokenState(OAuth2AccessToken token, long acquiredAt) {
+            Integer expiresIn = token.getExpiresIn();
+            mToken = token;
+            mAcquiredAt = acquiredAt;
+            mExpiresAt = acquiredAt + 1000L * (expiresIn == null ? DEFAULT_EXPIRES_IN_SECONDS : expiresIn);
+        }
+
+        boolean isExpired(long now) {
+            return now >= mExpiresAt;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.loadtest;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/**
+ * How a {@link FakeGraphServer} departs from an ideal service: how long it takes to answer,
+ * how often it fails, and when it throttles.
+ * <ul>
+ * <li>Latency follows a log-normal distribution fitted to a median and a 99th percentile,
+ * which resembles the long tail of a real service.</li>
+ * <li>A fraction of operations fail with 500 Internal Server Error.</li>
+ * <li>Operations are throttled with 429 Too Many Requests and a Retry-After header, either
+ * at random or when more than a set number of operations arrive in one second, the way
+ * Graph enforces mailbox limits.</li>
+ * </ul>
+ * Faults are decided per operation, so the operations inside a $batch request fail and are
+ * throttled independently, as they are in Graph.
+ * <p>
+ * For repeatable tests, {@link #throttleNext(String, int)} scripts 429s for the next calls
+ * of one operation, on top of the random faults.
+ */
+public final class FakeGraphBehavior {
+    // The 99th percentile of the standard normal distribution
+    private static final double Z_99 = 2.3263;
+
+    private final long mMedianLatencyMillis;
+    private final long mP99LatencyMillis;
+    private final double mErrorRate;
+    private final double mThrottleRate;
+    private final int mMaxOperationsPerSecond;
+    private final int mRetryAfterSeconds;
+    private final double mSigma;
+    private final List<ScriptedThrottle> mScriptedThrottles = new ArrayList<>();
+
+    /**
+     * @param medianLatencyMillis    The median time to answer a request, 0 to answer at once
+     * @param p99LatencyMillis       The 99th percentile time to answer a request
+     * @param errorRate              The fraction of operations answered with 500, 0 to 1
+     * @param throttleRate           The fraction of operations answered with 429 at random, 0 to 1
+     * @param maxOperationsPerSecond The operations accepted per second before the rest of the
+     *                               second is answered with 429, 0 for no limit
+     * @param retryAfterSeconds      The Retry-After sent with a 429
+     */
+    public FakeGraphBehavior(
+            long medianLatencyMillis,
+            long p99LatencyMillis,
+            double errorRate,
+            double throttleRate,
+            int maxOperationsPerSecond,
+            int retryAfterSeconds) {
+        if (p99LatencyMillis < medianLatencyMillis) {
+            throw new IllegalArgumentException("The p99 latency can't be below the median latency");
+        }
+        mMedianLatencyMillis = medianLatencyMillis;
+        mP99LatencyMillis = p99LatencyMillis;
+        mErrorRate = errorRate;
+        mThrottleRate = throttleRate;
+        mMaxOperationsPerSecond = maxOperationsPerSecond;
+        mRetryAfterSeconds = retryAfterSeconds;
+        mSigma = medianLatencyMillis > 0
+                 ? Math.log((double) p99LatencyMillis / medianLatencyMillis) / Z_99
+                 : 0;
+    }
+
+    /**
+     * @return A server that answers at once and never fails
+     */
+    public static FakeGraphBehavior ideal() {
+        return new FakeGraphBehavior(0, 0, 0, 0, 0, 1);
+    }
+
+    /**
+     * Answers the next calls of an operation with 429 and the Retry-After, whatever the
+     * rates. Scripts for the same calls are used up in the order they were added.
+     *
+     * @param operation A regular expression found in the method and path of the call, such
+     *                  as "POST /me/sendMail", "createLink", or "POST /\\$batch" for the $batch
+     *                  request itself rather than the operations in it
+     * @param count     The calls to throttle
+     * @return This behavior
+     */
+    public FakeGraphBehavior throttleNext(String operation, int count) {
+        synchronized (mScriptedThrottles) {
+            mScriptedThrottles.add(new ScriptedThrottle(Pattern.compile(operation), count));
+        }
+        return this;
+    }
+
+    /**
+     * Uses up one scripted 429 of the call, if there is one
+     *
+     * @return True if the call is throttled by a script
+     */
+    boolean nextIsScriptedThrottle(String method, String path) {
+        String call = method + " " + path;
+        synchronized (mScriptedThrottles) {
+            for (Iterator<ScriptedThrottle> scripts = mScriptedThrottles.iterator(); scripts.hasNext(); ) {
+                ScriptedThrottle script = scripts.next();
+                if (script.mOperation.matcher(call).find()) {
+                    if (--script.mRemaining == 0) {
+                        scripts.remove();
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A latency drawn from the distribution, in milliseconds
+     */
+    long nextLatencyMillis() {
+        if (mMedianLatencyMillis <= 0) {
+            return 0;
+        }
+        Random random = ThreadLocalRandom.current();
+        return Math.round(mMedianLatencyMillis * Math.exp(mSigma * random.nextGaussian()));
+    }
+
+    boolean nextIsError() {
+        return mErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < mErrorRate;
+    }
+
+    boolean nextIsThrottled() {
+        return mThrottleRate > 0 && ThreadLocalRandom.current().nextDouble() < mThrottleRate;
+    }
+
+    public long getMedianLatencyMillis() {
+        return mMedianLatencyMillis;
+    }
+
+    public long getP99LatencyMillis() {
+        return mP99LatencyMillis;
+    }
+
+    public double getErrorRate() {
+        return mErrorRate;
+    }
+
+    public double getThrottleRate() {
+        return mThrottleRate;
+    }
+
+    public int getMaxOperationsPerSecond() {
+        return mMaxOperationsPerSecond;
+    }
+
+    public int getRetryAfterSeconds() {
+        return mRetryAfterSeconds;
+    }
+
+    @Override
+    public String toString() {
+        String scripted;
+        synchronized (mScriptedThrottles) {
+            scripted = mScriptedThrottles.isEmpty() ? "" : ", throttling next " + mScriptedThrottles;
+        }
+        return String.format("latency p50 %d ms p99 %d ms, %.1f%% errors, %.1f%% throttled, %s%s",
+                             mMedianLatencyMillis, mP99LatencyMillis, mErrorRate * 100, mThrottleRate * 100,
+                             mMaxOperationsPerSecond > 0 ? "limit " + mMaxOperationsPerSecond + " ops/s" : "no rate limit",
+                             scripted);
+    }
+
+    private static final class ScriptedThrottle {
+        final Pattern mOperation;
+        int mRemaining;
+
+        ScriptedThrottle(Pattern operation, int count) {
+            mOperation = operation;
+            mRemaining = count;
+        }
+
+        @Override
+        public String toString() {
+            return mRemaining + " " + mOperation;
+        }
+    }
+}
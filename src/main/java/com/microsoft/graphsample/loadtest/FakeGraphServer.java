@@ -0,0 +1,804 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.microsoft.graphsample.msgraph.QuickXorHash;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for the Microsoft Graph endpoints the sample calls and for the
+ * Azure AD authorize and token endpoints, listening on the loopback interface. Point a Graph
+ * client at {@link #getServiceRoot()} and an OAuth service at {@link #getAuthority()} to run
+ * the send pipeline offline, for benchmarks and load tests.
+ * <p>
+ * The server implements /me, the profile photo with ETag revalidation, OneDrive content
+ * upload and createLink, draft messages and their attachments, send, sendMail and $batch.
+ * Messages created with a single value extended property can be found again with a $filter
+ * on the property's value, the way the sample finds the draft of an interrupted send.
+ * OneDrive and attachment upload sessions answer their chunks the way each service does:
+ * OneDrive with 202 Accepted, Outlook with 200 OK, and both with 201 Created for the last
+ * chunk. Sending a draft whose attachment upload has not completed fails with 400, so a
+ * truncated upload is not mistaken for a sent mail. Access tokens are not checked.
+ * Responses carry the fields the sample reads and little else. Latency, errors and
+ * throttling are injected as set by a {@link FakeGraphBehavior}.
+ */
+public class FakeGraphServer implements Closeable {
+    private static final String JSON = "application/json";
+    private static final String PHOTO_ETAG = "\"fake-photo-1\"";
+    private static final String GRAPH_PATH = "/v1.0";
+    private static final String AUTHORITY_PATH = "/oauth2/v2.0";
+    private static final String UPLOAD_PATH = "/upload";
+    private static final Pattern DRIVE_CONTENT = Pattern.compile("/me/drive/root:/([^:]+):/content");
+    // The SDK addresses actions by their qualified name, as in microsoft.graph.createLink
+    private static final Pattern CREATE_LINK = Pattern.compile("/me/drive/items/([^/]+)/(microsoft\\.graph\\.)?createLink");
+    private static final Pattern MESSAGE = Pattern.compile("/me/messages/([^/]+)");
+    private static final Pattern ATTACHMENTS = Pattern.compile("/me/messages/([^/]+)/attachments");
+    private static final Pattern SEND_DRAFT = Pattern.compile("/me/messages/([^/]+)/(microsoft\\.graph\\.)?send");
+    private static final Pattern SEND_MAIL = Pattern.compile("/me/(microsoft\\.graph\\.)?sendMail");
+    private static final Pattern DRIVE_UPLOAD_SESSION =
+            Pattern.compile("/me/drive/root:/([^:]+):/(microsoft\\.graph\\.)?createUploadSession");
+    private static final Pattern ATTACHMENT_UPLOAD_SESSION =
+            Pattern.compile("/me/messages/([^/]+)/attachments/(microsoft\\.graph\\.)?createUploadSession");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final Pattern EXTENDED_PROPERTY_VALUE = Pattern.compile("ep/value eq '([^']*)'");
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private final FakeGraphBehavior mBehavior;
+    private final byte[] mPhoto;
+    private final AtomicLong mNextId = new AtomicLong();
+    private final AtomicLong mRateWindow = new AtomicLong();
+    private final AtomicInteger mRateWindowCount = new AtomicInteger();
+    private final LongAdder mRequests = new LongAdder();
+    private final LongAdder mOperations = new LongAdder();
+    private final LongAdder mMailsSent = new LongAdder();
+    private final LongAdder mThrottled = new LongAdder();
+    private final LongAdder mErrors = new LongAdder();
+    private final LongAdder mCompletedUploads = new LongAdder();
+    // Upload sessions that have not received their last chunk, by id
+    private final Map<String, FakeUploadSession> mUploadSessions = new ConcurrentHashMap<>();
+    // Messages created with a single value extended property, by the property's value
+    private final Map<String, String> mMarkedMessages = new ConcurrentHashMap<>();
+    // Whether each marked message is still a draft, by id
+    private final Map<String, Boolean> mMarkedDrafts = new ConcurrentHashMap<>();
+    // The PKCE challenge each issued authorization code was requested with, by code
+    private final Map<String, String> mCodeChallenges = new ConcurrentHashMap<>();
+    // The id, name and size of each attachment of the marked messages, by message id
+    private final Map<String, JsonArray> mMarkedAttachments = new ConcurrentHashMap<>();
+
+    /**
+     * Starts a server that answers at once and never fails.
+     *
+     * @param port The loopback port to listen on, or 0 for a free one
+     */
+    public FakeGraphServer(int port) throws IOException {
+        this(port, FakeGraphBehavior.ideal());
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @param port     The loopback port to listen on, or 0 for a free one
+     * @param behavior The latency, errors and throttling to inject
+     */
+    public FakeGraphServer(int port, FakeGraphBehavior behavior) throws IOException {
+        this(port, behavior, 16 * 1024);
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @param port       The loopback port to listen on, or 0 for a free one
+     * @param behavior   The latency, errors and throttling to inject
+     * @param photoBytes The size of the profile photo. Photos above the simple upload and
+     *                   inline attachment limits are sent through upload sessions
+     */
+    public FakeGraphServer(int port, FakeGraphBehavior behavior, int photoBytes) throws IOException {
+        mBehavior = behavior;
+        mPhoto = createPhoto(photoBytes);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "fake-graph");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.createContext(GRAPH_PATH + "/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleGraphRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.createContext(UPLOAD_PATH + "/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleUploadRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.createContext(AUTHORITY_PATH + "/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleAuthorityRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    /**
+     * @return The url to use as the Graph client's service root
+     */
+    public String getServiceRoot() {
+        return getBaseUrl() + GRAPH_PATH;
+    }
+
+    /**
+     * @return The base url of the authorize and token endpoints
+     */
+    public String getAuthority() {
+        return getBaseUrl() + AUTHORITY_PATH;
+    }
+
+    public FakeGraphBehavior getBehavior() {
+        return mBehavior;
+    }
+
+    /**
+     * @return The HTTP requests received so far, a $batch request counting once
+     */
+    public long getRequestCount() {
+        return mRequests.sum();
+    }
+
+    /**
+     * @return The Graph operations received so far, each operation of a $batch counting once
+     */
+    public long getOperationCount() {
+        return mOperations.sum();
+    }
+
+    /**
+     * @return The messages sent so far, by sendMail or by sending a draft
+     */
+    public long getMailsSent() {
+        return mMailsSent.sum();
+    }
+
+    public long getThrottledCount() {
+        return mThrottled.sum();
+    }
+
+    public long getErrorCount() {
+        return mErrors.sum();
+    }
+
+    /**
+     * @return The upload sessions that received their last chunk so far
+     */
+    public long getCompletedUploadCount() {
+        return mCompletedUploads.sum();
+    }
+
+    private String getBaseUrl() {
+        return "http://localhost:" + mServer.getAddress().getPort();
+    }
+
+    private void handleGraphRequest(HttpExchange exchange) throws IOException {
+        mRequests.increment();
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath().substring(GRAPH_PATH.length());
+        String query = exchange.getRequestURI().getRawQuery();
+        byte[] body = readAll(exchange.getRequestBody());
+        sleep(mBehavior.nextLatencyMillis());
+
+        FakeResponse response;
+        if ("POST".equals(method) && path.equals("/$batch")) {
+            // A script can throttle the $batch request as a whole
+            response = mBehavior.nextIsScriptedThrottle(method, path) ? throttle() : handleBatch(body);
+        }
+        else {
+            response = handleOperation(method, path, query, exchange.getRequestHeaders().getFirst("If-None-Match"), body);
+        }
+        sendResponse(exchange, response);
+    }
+
+    private static void sendResponse(HttpExchange exchange, FakeResponse response) throws IOException {
+        for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+            exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+        }
+        if (response.mBody.length == 0) {
+            exchange.sendResponseHeaders(response.mStatus, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(response.mStatus, response.mBody.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response.mBody);
+        }
+    }
+
+    /**
+     * Answers one Graph operation, injecting throttling and errors first
+     */
+    private FakeResponse handleOperation(String method, String path, String query, String ifNoneMatch, byte[] body) {
+        mOperations.increment();
+        if (mBehavior.nextIsScriptedThrottle(method, path) || mBehavior.nextIsThrottled() || isOverRateLimit()) {
+            return throttle();
+        }
+        if (mBehavior.nextIsError()) {
+            mErrors.increment();
+            return FakeResponse.error(500, "generalException", "Injected failure");
+        }
+        return route(method, path, query, ifNoneMatch, body);
+    }
+
+    private FakeResponse throttle() {
+        mThrottled.increment();
+        FakeResponse response = FakeResponse.error(429, "TooManyRequests", "Too many requests");
+        response.mHeaders.put("Retry-After", String.valueOf(mBehavior.getRetryAfterSeconds()));
+        return response;
+    }
+
+    private FakeResponse route(String method, String path, String query, String ifNoneMatch, byte[] body) {
+        Matcher matcher;
+        if ("GET".equals(method) && path.equals("/me")) {
+            return FakeResponse.json(200, "{\"id\":\"fake-user-id\",\"displayName\":\"Fake User\","
+                                          + "\"mail\":\"fake.user@contoso.com\",\"userPrincipalName\":\"fake.user@contoso.com\"}");
+        }
+        if ("GET".equals(method) && path.equals("/me/photo/$value")) {
+            FakeResponse response = PHOTO_ETAG.equals(ifNoneMatch)
+                                    ? new FakeResponse(304, null, new byte[0])
+                                    : new FakeResponse(200, "image/jpeg", mPhoto);
+            response.mHeaders.put("ETag", PHOTO_ETAG);
+            return response;
+        }
+        if ("PUT".equals(method) && (matcher = DRIVE_CONTENT.matcher(path)).matches()) {
+            return FakeResponse.json(201, "{\"id\":\"item-" + mNextId.incrementAndGet() + "\",\"name\":\""
+                                          + matcher.group(1) + "\",\"size\":" + body.length
+                                          + ",\"file\":{\"hashes\":{\"quickXorHash\":\"" + QuickXorHash.hash(body) + "\"}}}");
+        }
+        if ("POST".equals(method) && (matcher = CREATE_LINK.matcher(path)).matches()) {
+            return FakeResponse.json(201, "{\"id\":\"permission-" + mNextId.incrementAndGet() + "\",\"roles\":[\"read\"],"
+                                          + "\"link\":{\"type\":\"view\",\"scope\":\"organization\",\"webUrl\":\""
+                                          + getServiceRoot() + "/shares/" + matcher.group(1) + "\"}}");
+        }
+        if ("POST".equals(method) && SEND_MAIL.matcher(path).matches()) {
+            mMailsSent.increment();
+            return new FakeResponse(202, null, new byte[0]);
+        }
+        if ("POST".equals(method) && path.equals("/me/messages")) {
+            String id = "message-" + mNextId.incrementAndGet();
+            markMessage(id, body);
+            return FakeResponse.json(201, "{\"id\":\"" + id + "\",\"isDraft\":true}");
+        }
+        if ("GET".equals(method) && path.equals("/me/messages")) {
+            return findMarkedMessage(query);
+        }
+        if ("POST".equals(method) && (matcher = ATTACHMENTS.matcher(path)).matches()) {
+            String id = "attachment-" + mNextId.incrementAndGet();
+            if (mMarkedDrafts.containsKey(matcher.group(1))) {
+                JsonObject attachment = new JsonParser().parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+                long size = attachment.has("size") ? attachment.get("size").getAsLong()
+                            : Base64.getDecoder().decode(attachment.get("contentBytes").getAsString()).length;
+                markAttachment(matcher.group(1), id, attachment.get("name").getAsString(), size);
+            }
+            return FakeResponse.json(201, "{\"@odata.type\":\"#microsoft.graph.fileAttachment\",\"id\":\"" + id + "\"}");
+        }
+        if ("GET".equals(method) && (matcher = ATTACHMENTS.matcher(path)).matches()) {
+            JsonArray attachments = mMarkedAttachments.get(matcher.group(1));
+            JsonObject result = new JsonObject();
+            result.add("value", attachments == null ? new JsonArray() : attachments);
+            synchronized (this) {
+                return FakeResponse.json(200, result.toString());
+            }
+        }
+        if ("POST".equals(method) && (matcher = DRIVE_UPLOAD_SESSION.matcher(path)).matches()) {
+            return createUploadSession(new FakeUploadSession(false, matcher.group(1), null, -1));
+        }
+        if ("POST".equals(method) && (matcher = ATTACHMENT_UPLOAD_SESSION.matcher(path)).matches()) {
+            JsonObject attachment = new JsonParser().parse(new String(body, StandardCharsets.UTF_8))
+                    .getAsJsonObject().getAsJsonObject("AttachmentItem");
+            return createUploadSession(new FakeUploadSession(true, attachment.get("name").getAsString(),
+                                                             matcher.group(1), attachment.get("size").getAsLong()));
+        }
+        if ("POST".equals(method) && (matcher = SEND_DRAFT.matcher(path)).matches()) {
+            if (hasPendingUpload(matcher.group(1))) {
+                return FakeResponse.error(400, "ErrorInvalidRequest", "An attachment upload of the message has not completed");
+            }
+            mMailsSent.increment();
+            mMarkedDrafts.replace(matcher.group(1), false);
+            return new FakeResponse(202, null, new byte[0]);
+        }
+        if ("GET".equals(method) && (matcher = MESSAGE.matcher(path)).matches()) {
+            Boolean isDraft = mMarkedDrafts.get(matcher.group(1));
+            return FakeResponse.json(200, "{\"id\":\"" + matcher.group(1) + "\",\"isDraft\":"
+                                          + (isDraft == null || isDraft) + "}");
+        }
+        return FakeResponse.error(404, "ResourceNotFound", method + " " + path + " is not implemented by the fake Graph server");
+    }
+
+    /**
+     * Remembers a new message by the value of its single value extended property, if it has one
+     */
+    private void markMessage(String id, byte[] body) {
+        JsonObject message = new JsonParser().parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+        JsonArray properties = message.getAsJsonArray("singleValueExtendedProperties");
+        if (properties != null && properties.size() > 0) {
+            mMarkedDrafts.put(id, true);
+            mMarkedMessages.put(properties.get(0).getAsJsonObject().get("value").getAsString(), id);
+        }
+    }
+
+    /**
+     * Remembers an attachment of a marked message, so it can be listed
+     */
+    private synchronized void markAttachment(String messageId, String id, String name, long size) {
+        JsonObject attachment = new JsonObject();
+        attachment.addProperty("id", id);
+        attachment.addProperty("name", name);
+        attachment.addProperty("size", size);
+        JsonArray attachments = mMarkedAttachments.get(messageId);
+        if (attachments == null) {
+            attachments = new JsonArray();
+            mMarkedAttachments.put(messageId, attachments);
+        }
+        attachments.add(attachment);
+    }
+
+    /**
+     * Answers a message list filtered on an extended property value with the message created
+     * with that value, if there is one. Other filters are not implemented
+     */
+    private FakeResponse findMarkedMessage(String query) {
+        String filter;
+        try {
+            filter = parseQuery(query).get("$filter");
+        } catch (UnsupportedEncodingException ex) {
+            return FakeResponse.error(400, "BadRequest", "The query is not valid");
+        }
+        Matcher matcher = filter == null ? null : EXTENDED_PROPERTY_VALUE.matcher(filter);
+        if (matcher == null || !matcher.find()) {
+            return FakeResponse.error(400, "BadRequest", "Only filters on an extended property value are implemented");
+        }
+        JsonArray messages = new JsonArray();
+        String id = mMarkedMessages.get(matcher.group(1));
+        if (id != null) {
+            JsonObject message = new JsonObject();
+            message.addProperty("id", id);
+            message.addProperty("isDraft", mMarkedDrafts.get(id));
+            messages.add(message);
+        }
+        JsonObject result = new JsonObject();
+        result.add("value", messages);
+        return FakeResponse.json(200, result.toString());
+    }
+
+    private FakeResponse createUploadSession(FakeUploadSession session) {
+        String id = "session-" + mNextId.incrementAndGet();
+        mUploadSessions.put(id, session);
+        JsonObject json = session.toJson();
+        json.addProperty("uploadUrl", getBaseUrl() + UPLOAD_PATH + "/" + id);
+        return FakeResponse.json(200, json.toString());
+    }
+
+    private boolean hasPendingUpload(String messageId) {
+        for (FakeUploadSession session : mUploadSessions.values()) {
+            if (messageId.equals(session.mMessageId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Answers the pre-authenticated upload urls: PUT a chunk, GET the session's expected
+     * ranges, DELETE to cancel. Chunks must arrive in order, as OneDrive requires.
+     */
+    private void handleUploadRequest(HttpExchange exchange) throws IOException {
+        mRequests.increment();
+        String id = exchange.getRequestURI().getPath().substring(UPLOAD_PATH.length() + 1);
+        String method = exchange.getRequestMethod();
+        byte[] body = readAll(exchange.getRequestBody());
+        sleep(mBehavior.nextLatencyMillis());
+
+        FakeUploadSession session = mUploadSessions.get(id);
+        FakeResponse response;
+        if (session == null) {
+            response = FakeResponse.error(404, "itemNotFound", "The upload session does not exist or has expired");
+        }
+        else if ("GET".equals(method)) {
+            synchronized (session) {
+                response = FakeResponse.json(200, session.toJson().toString());
+            }
+        }
+        else if ("DELETE".equals(method)) {
+            mUploadSessions.remove(id);
+            response = new FakeResponse(204, null, new byte[0]);
+        }
+        else if ("PUT".equals(method)) {
+            response = putChunk(id, session, exchange.getRequestHeaders().getFirst("Content-Range"), body);
+        }
+        else {
+            response = FakeResponse.error(405, "invalidRequest", method + " is not allowed on an upload session");
+        }
+        sendResponse(exchange, response);
+    }
+
+    private FakeResponse putChunk(String id, FakeUploadSession session, String contentRange, byte[] body) {
+        Matcher range = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+        if (range == null || !range.matches()) {
+            return FakeResponse.error(400, "invalidRange", "The Content-Range header is missing or malformed");
+        }
+        if (mBehavior.nextIsError()) {
+            mErrors.increment();
+            return FakeResponse.error(500, "generalException", "Injected failure");
+        }
+        long start = Long.parseLong(range.group(1));
+        long end = Long.parseLong(range.group(2));
+        long total = Long.parseLong(range.group(3));
+        synchronized (session) {
+            if (session.mSize < 0) {
+                session.mSize = total;
+            }
+            if (total != session.mSize || end - start + 1 != body.length || end >= total) {
+                return FakeResponse.error(400, "invalidRange", "The Content-Range does not match the body or the session");
+            }
+            if (start != session.mReceived) {
+                return FakeResponse.error(416, "invalidRange", "The fragment does not start at the next expected byte");
+            }
+            session.receive(body);
+            if (session.mReceived < session.mSize) {
+                // Outlook acknowledges chunks with 200, OneDrive with 202
+                return FakeResponse.json(session.mAttachment ? 200 : 202, session.toJson().toString());
+            }
+        }
+        mUploadSessions.remove(id);
+        mCompletedUploads.increment();
+        if (session.mAttachment) {
+            String attachmentId = "attachment-" + mNextId.incrementAndGet();
+            if (mMarkedDrafts.containsKey(session.mMessageId)) {
+                markAttachment(session.mMessageId, attachmentId, session.mName, session.mSize);
+            }
+            FakeResponse response = new FakeResponse(201, null, new byte[0]);
+            response.mHeaders.put("Location", getServiceRoot() + "/me/messages/" + session.mMessageId
+                                              + "/attachments/" + attachmentId);
+            return response;
+        }
+        byte[] content = session.mContent.toByteArray();
+        return FakeResponse.json(201, "{\"id\":\"item-" + mNextId.incrementAndGet() + "\",\"name\":\""
+                                      + session.mName + "\",\"size\":" + content.length
+                                      + ",\"file\":{\"hashes\":{\"quickXorHash\":\"" + QuickXorHash.hash(content) + "\"}}}");
+    }
+
+    /**
+     * Answers a JSON batch. Operations run in order; an operation whose dependency failed is
+     * answered with 424 Failed Dependency, as Graph does.
+     */
+    private FakeResponse handleBatch(byte[] body) {
+        JsonObject batch = new JsonParser().parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+        Map<String, Integer> statuses = new HashMap<>();
+        JsonArray responses = new JsonArray();
+        for (JsonElement element : batch.getAsJsonArray("requests")) {
+            JsonObject request = element.getAsJsonObject();
+            String id = request.get("id").getAsString();
+            FakeResponse response = null;
+            if (request.has("dependsOn")) {
+                for (JsonElement dependency : request.getAsJsonArray("dependsOn")) {
+                    Integer status = statuses.get(dependency.getAsString());
+                    if (status == null || status >= 400) {
+                        response = FakeResponse.error(424, "FailedDependency", "A request this request depends on failed");
+                    }
+                }
+            }
+            if (response == null) {
+                String url = request.get("url").getAsString();
+                int query = url.indexOf('?');
+                String path = (url.startsWith("/") ? "" : "/") + (query < 0 ? url : url.substring(0, query));
+                response = handleOperation(request.get("method").getAsString(), path,
+                                           query < 0 ? null : url.substring(query + 1), null, getBatchBody(request));
+            }
+            statuses.put(id, response.mStatus);
+            responses.add(response.toBatchJson(id));
+        }
+        JsonObject result = new JsonObject();
+        result.add("responses", responses);
+        return FakeResponse.json(200, result.toString());
+    }
+
+    /**
+     * Gets the body of a batched operation. Bodies that are not JSON travel base64 encoded
+     */
+    private static byte[] getBatchBody(JsonObject request) {
+        JsonElement body = request.get("body");
+        if (body == null) {
+            return new byte[0];
+        }
+        if (body.isJsonPrimitive()) {
+            JsonObject headers = request.getAsJsonObject("headers");
+            String contentType = headers == null || !headers.has("Content-Type") ? "" : headers.get("Content-Type").getAsString();
+            if (!contentType.startsWith(JSON)) {
+                return Base64.getDecoder().decode(body.getAsString());
+            }
+        }
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Answers the authorize endpoint by redirecting straight back with a code, as if the user
+     * had signed in, and the token endpoint with a fresh token pair for any grant. A code
+     * requested with an S256 PKCE challenge is only redeemed with the matching verifier.
+     */
+    private void handleAuthorityRequest(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().substring(AUTHORITY_PATH.length());
+        if (path.equals("/authorize")) {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String redirectUri = query.get("redirect_uri");
+            if (redirectUri == null) {
+                sendJson(exchange, 400, "{\"error\":\"invalid_request\"}");
+                return;
+            }
+            String code = "fake-code-" + mNextId.incrementAndGet();
+            if (query.containsKey("code_challenge")) {
+                mCodeChallenges.put(code, query.get("code_challenge"));
+            }
+            String location = redirectUri + (redirectUri.contains("?") ? "&" : "?") + "code=" + code;
+            if (query.containsKey("state")) {
+                location += "&state=" + URLEncoder.encode(query.get("state"), "UTF-8");
+            }
+            exchange.getResponseHeaders().set("Location", location);
+            exchange.sendResponseHeaders(302, -1);
+        }
+        else if (path.equals("/token") && "POST".equals(exchange.getRequestMethod())) {
+            Map<String, String> form = parseQuery(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+            String challenge = form.containsKey("code") ? mCodeChallenges.remove(form.get("code")) : null;
+            if (challenge != null && !challenge.equals(s256(form.get("code_verifier")))) {
+                sendJson(exchange, 400, "{\"error\":\"invalid_grant\",\"error_description\":\"The code_verifier does not match\"}");
+                return;
+            }
+            long id = mNextId.incrementAndGet();
+            sendJson(exchange, 200, "{\"token_type\":\"Bearer\",\"expires_in\":3600,"
+                                    + "\"scope\":\"Files.ReadWrite openid User.Read Mail.Send Mail.ReadWrite\","
+                                    + "\"access_token\":\"fake-access-token-" + id + "\","
+                                    + "\"refresh_token\":\"fake-refresh-token-" + id + "\"}");
+        }
+        else {
+            sendJson(exchange, 404, "{\"error\":\"not_found\"}");
+        }
+    }
+
+    /**
+     * @return The S256 PKCE challenge of a verifier, or null if there is no verifier
+     */
+    private static String s256(String verifier) {
+        if (verifier == null) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(verifier.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Counts the operation against the current one second window
+     *
+     * @return True if the window's limit is already used up
+     */
+    private boolean isOverRateLimit() {
+        int limit = mBehavior.getMaxOperationsPerSecond();
+        if (limit <= 0) {
+            return false;
+        }
+        long second = System.nanoTime() / 1000000000L;
+        long window = mRateWindow.get();
+        if (window != second && mRateWindow.compareAndSet(window, second)) {
+            mRateWindowCount.set(0);
+        }
+        return mRateWindowCount.incrementAndGet() > limit;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                               URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static byte[] readAll(InputStream body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates a stand-in profile photo. Only its size matters to the sample
+     */
+    private static byte[] createPhoto(int size) {
+        byte[] photo = new byte[size];
+        for (int i = 0; i < size; i++) {
+            photo[i] = (byte) (i * 31);
+        }
+        return photo;
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * An upload session that has not received its last chunk. OneDrive sessions keep the
+     * content to hash it; attachment sessions only count it.
+     */
+    private static final class FakeUploadSession {
+        private final boolean mAttachment;
+        private final String mName;
+        private final String mMessageId;
+        private final ByteArrayOutputStream mContent;
+        private long mSize;
+        private long mReceived;
+
+        FakeUploadSession(boolean attachment, String name, String messageId, long size) {
+            mAttachment = attachment;
+            mName = name;
+            mMessageId = messageId;
+            mSize = size;
+            mContent = attachment ? null : new ByteArrayOutputStream();
+        }
+
+        void receive(byte[] chunk) {
+            if (mContent != null) {
+                mContent.write(chunk, 0, chunk.length);
+            }
+            mReceived += chunk.length;
+        }
+
+        /**
+         * @return The session's state. OneDrive sends open ranges such as "1024-", Outlook
+         * the first expected byte alone
+         */
+        JsonObject toJson() {
+            JsonArray ranges = new JsonArray();
+            ranges.add(new JsonPrimitive(mAttachment ? String.valueOf(mReceived) : mReceived + "-"));
+            JsonObject json = new JsonObject();
+            json.addProperty("expirationDateTime", "2099-01-01T00:00:00Z");
+            json.add("nextExpectedRanges", ranges);
+            return json;
+        }
+    }
+
+    /**
+     * The answer to one Graph operation, sent on its own or as part of a batch response
+     */
+    private static final class FakeResponse {
+        private final int mStatus;
+        private final byte[] mBody;
+        private final Map<String, String> mHeaders = new LinkedHashMap<>();
+
+        FakeResponse(int status, String contentType, byte[] body) {
+            mStatus = status;
+            mBody = body;
+            if (contentType != null) {
+                mHeaders.put("Content-Type", contentType);
+            }
+        }
+
+        static FakeResponse json(int status, String json) {
+            return new FakeResponse(status, JSON, json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static FakeResponse error(int status, String code, String message) {
+            JsonObject error = new JsonObject();
+            error.addProperty("code", code);
+            error.addProperty("message", message);
+            JsonObject body = new JsonObject();
+            body.add("error", error);
+            return json(status, body.toString());
+        }
+
+        JsonObject toBatchJson(String id) {
+            JsonObject json = new JsonObject();
+            json.addProperty("id", id);
+            json.addProperty("status", mStatus);
+            JsonObject headers = new JsonObject();
+            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                headers.addProperty(header.getKey(), header.getValue());
+            }
+            json.add("headers", headers);
+            if (mBody.length > 0) {
+                String contentType = mHeaders.get("Content-Type");
+                if (contentType != null && contentType.startsWith(JSON)) {
+                    json.add("body", new JsonParser().parse(new String(mBody, StandardCharsets.UTF_8)));
+                }
+                else {
+                    json.add("body", new JsonPrimitive(Base64.getEncoder().encodeToString(mBody)));
+                }
+            }
+            return json;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.loadtest;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.oauth.OAuth20Service;
+import com.microsoft.graphsample.connect.AuthenticationManager;
+import com.microsoft.graphsample.connect.Constants;
+import com.microsoft.graphsample.connect.MicrosoftAzureAD20Api;
+import com.microsoft.graphsample.metrics.LatencyHistogram;
+import com.microsoft.graphsample.metrics.MetricsRegistry;
+import com.microsoft.graphsample.metrics.OperationMetrics;
+import com.microsoft.graphsample.msgraph.GraphSendMail;
+import com.microsoft.graphsample.msgraph.GraphServiceClientManager;
+import com.microsoft.graphsample.msgraph.HttpTransportOptions;
+import com.microsoft.graphsample.msgraph.MailRecipient;
+import com.microsoft.graphsample.msgraph.RetryPolicy;
+import com.microsoft.graphsample.msgraph.SendAssets;
+import com.microsoft.graphsample.msgraph.SendMailException;
+import com.microsoft.graphsample.msgraph.SendResult;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Drives the real send pipeline against a {@link FakeGraphServer} at a target rate and
+ * reports throughput and latency percentiles. Runs offline; no tenant or browser is needed.
+ * <p>
+ * Sends are started on a fixed schedule whether or not earlier sends have finished, the way
+ * independent users would send, and each send's latency is measured from its scheduled start.
+ * A pipeline that cannot keep up therefore shows growing latencies instead of a quietly
+ * lower rate.
+ * <p>
+ * The SDK's HttpURLConnection transport looks up the Content-Type response header with its
+ * exact case, which the JDK's HTTP server does not keep, so runs need the default HTTP/2
+ * transport.
+ * <pre>
+ * gradle loadTest -PloadTestArgs="--rate=200 --duration=60 --latency-median=40 --latency-p99=400 --throttle-rate=0.02"
+ * </pre>
+ */
+public class LoadGenerator {
+    private final GraphSendMail mGraphSendMail;
+    private final int mConcurrency;
+    private final boolean mUseBatching;
+    private final boolean mPrepareEachSend;
+    private final boolean mUseAsync;
+
+    /**
+     * @param graphSendMail   The pipeline to drive
+     * @param concurrency     The most sends in flight at once
+     * @param useBatching     True to send through the $batch coalescer
+     * @param prepareEachSend True to fetch the photo and create the sharing link for every
+     *                        send, as a single send does, instead of once per run
+     */
+    public LoadGenerator(GraphSendMail graphSendMail, int concurrency, boolean useBatching, boolean prepareEachSend) {
+        this(graphSendMail, concurrency, useBatching, prepareEachSend, false);
+    }
+
+    /**
+     * @param graphSendMail   The pipeline to drive
+     * @param concurrency     The most sends in flight at once
+     * @param useBatching     True to send through the $batch coalescer
+     * @param prepareEachSend True to fetch the photo and create the sharing link for every send
+     * @param useAsync        True to send with the non-blocking pipeline, without a worker
+     *                        thread per send in flight. Cannot be combined with the other modes
+     */
+    public LoadGenerator(
+            GraphSendMail graphSendMail,
+            int concurrency,
+            boolean useBatching,
+            boolean prepareEachSend,
+            boolean useAsync) {
+        if (useAsync && (useBatching || prepareEachSend)) {
+            throw new IllegalArgumentException("The async mode cannot be combined with batching or prepare each send.");
+        }
+        mGraphSendMail = graphSendMail;
+        mConcurrency = concurrency;
+        mUseBatching = useBatching;
+        mPrepareEachSend = prepareEachSend;
+        mUseAsync = useAsync;
+    }
+
+    /**
+     * Sends at the given rate for the given time and waits for the last send to finish.
+     *
+     * @param ratePerSecond   The sends started per second
+     * @param durationSeconds How long to keep starting sends
+     */
+    public LoadReport run(double ratePerSecond, long durationSeconds) throws SendMailException, InterruptedException {
+        final SendAssets sharedAssets = mPrepareEachSend ? null : mGraphSendMail.prepareAssets();
+        if (!mPrepareEachSend && sharedAssets == null) {
+            throw new SendMailException("Could not prepare the picture to send");
+        }
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final Semaphore inFlight = new Semaphore(mConcurrency);
+        ExecutorService workers = Executors.newFixedThreadPool(mConcurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "load-generator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long intervalNanos = (long) (1e9 / ratePerSecond);
+        long sends = (long) (ratePerSecond * durationSeconds);
+        long start = System.nanoTime();
+        try {
+            for (long i = 0; i < sends; i++) {
+                final long scheduled = start + i * intervalNanos;
+                long wait;
+                while ((wait = scheduled - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                // Blocks when the pipeline is saturated; the wait counts towards the send's latency
+                inFlight.acquire();
+                final String address = "recipient" + i + "@contoso.com";
+                if (mUseAsync) {
+                    mGraphSendMail.sendMailAsync(new MailRecipient(address), sharedAssets).whenComplete(
+                            new BiConsumer<SendResult, Throwable>() {
+                                @Override
+                                public void accept(SendResult result, Throwable error) {
+                                    if (result != null && result.isSuccess()) {
+                                        succeeded.increment();
+                                    }
+                                    else {
+                                        failed.increment();
+                                    }
+                                    latency.record(System.nanoTime() - scheduled);
+                                    inFlight.release();
+                                }
+                            });
+                    continue;
+                }
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            send(address, sharedAssets);
+                            succeeded.increment();
+                        } catch (Exception ex) {
+                            failed.increment();
+                        } finally {
+                            latency.record(System.nanoTime() - scheduled);
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            // Every permit is back once the last send has finished, whichever mode sent it
+            inFlight.tryAcquire(mConcurrency, 5, TimeUnit.MINUTES);
+        }
+        return new LoadReport(ratePerSecond, succeeded.sum(), failed.sum(), System.nanoTime() - start, latency);
+    }
+
+    private void send(String address, SendAssets sharedAssets) throws Exception {
+        SendAssets assets = sharedAssets;
+        if (assets == null) {
+            assets = mGraphSendMail.prepareAssets();
+            if (assets == null) {
+                throw new SendMailException("Could not prepare the picture to send");
+            }
+        }
+        if (mUseBatching) {
+            mGraphSendMail.sendMailBatched(address, assets).get();
+        }
+        else {
+            mGraphSendMail.sendMail(address, assets);
+        }
+    }
+
+    /**
+     * Starts a fake Graph server with the behaviour given in the arguments, signs in against
+     * it and runs the load.
+     * <ul>
+     * <li>--rate, --duration, --concurrency: sends per second, seconds, sends in flight</li>
+     * <li>--warmup: seconds sent at the same rate before measuring. The operation metrics
+     * printed at the end include the warmup</li>
+     * <li>--batching, --prepare-each-send, --async: how the pipeline sends</li>
+     * <li>--latency-median, --latency-p99: server latency in milliseconds</li>
+     * <li>--error-rate, --throttle-rate: fraction of operations failed or throttled</li>
+     * <li>--max-ops-per-second, --retry-after: rate limit and the Retry-After it answers with</li>
+     * <li>--throttle-next: comma separated operation:count pairs, such as sendMail:5, whose
+     * next calls are answered with 429. See {@link FakeGraphBehavior#throttleNext(String, int)}</li>
+     * <li>--photo-bytes: size of the profile photo. Above 4 MiB it is uploaded to OneDrive,
+     * and above 3 MiB attached to each mail, through multi-chunk upload sessions</li>
+     * </ul>
+     */
+    public static void main(String[] args) throws Exception {
+        HttpTransportOptions.fromConstants().setJdkClientProperties();
+        Map<String, String> options = parseOptions(args);
+        FakeGraphBehavior behavior = new FakeGraphBehavior(
+                Long.parseLong(option(options, "latency-median", "20")),
+                Long.parseLong(option(options, "latency-p99", "200")),
+                Double.parseDouble(option(options, "error-rate", "0")),
+                Double.parseDouble(option(options, "throttle-rate", "0")),
+                Integer.parseInt(option(options, "max-ops-per-second", "0")),
+                Integer.parseInt(option(options, "retry-after", "1")));
+        String throttleNext = option(options, "throttle-next", "");
+        for (String script : throttleNext.isEmpty() ? new String[0] : throttleNext.split(",")) {
+            int separator = script.lastIndexOf(':');
+            behavior.throttleNext(script.substring(0, separator), Integer.parseInt(script.substring(separator + 1)));
+        }
+        double rate = Double.parseDouble(option(options, "rate", "50"));
+        long duration = Long.parseLong(option(options, "duration", "30"));
+        int photoBytes = Integer.parseInt(option(options, "photo-bytes", "16384"));
+
+        try (FakeGraphServer server = new FakeGraphServer(0, behavior, photoBytes)) {
+            signIn(server);
+            GraphServiceClientManager.getInstance().getGraphServiceClient().setServiceRoot(server.getServiceRoot());
+            try (GraphSendMail graphSendMail = new GraphSendMail()) {
+                LoadGenerator generator = new LoadGenerator(graphSendMail,
+                                                            Integer.parseInt(option(options, "concurrency", "64")),
+                                                            Boolean.parseBoolean(option(options, "batching", "false")),
+                                                            Boolean.parseBoolean(option(options, "prepare-each-send", "false")),
+                                                            Boolean.parseBoolean(option(options, "async", "false")));
+                System.out.println("Fake Graph server: " + behavior);
+                long warmup = Long.parseLong(option(options, "warmup", "5"));
+                if (warmup > 0) {
+                    // Lets the JIT compile the pipeline before it is measured
+                    System.out.println("Warming up for " + warmup + " s...");
+                    generator.run(rate, warmup);
+                }
+                System.out.println("Sending " + rate + " mails/s for " + duration + " s...");
+                LoadReport report = generator.run(rate, duration);
+
+                System.out.println(report);
+                System.out.println(String.format("Server saw %d requests, %d operations, %d mails, %d throttled, %d failed, %d uploads",
+                                                 server.getRequestCount(), server.getOperationCount(),
+                                                 server.getMailsSent(), server.getThrottledCount(),
+                                                 server.getErrorCount(), server.getCompletedUploadCount()));
+                for (OperationMetrics operation : MetricsRegistry.getInstance().getOperations()) {
+                    System.out.println(operation);
+                }
+                for (Map.Entry<String, RetryPolicy.Counters> counters : RetryPolicy.getInstance().getCounters().entrySet()) {
+                    System.out.println(counters.getKey() + ": " + counters.getValue());
+                }
+            }
+        }
+        // The Graph SDK leaves threads behind
+        System.exit(0);
+    }
+
+    /**
+     * Redeems a code at the fake token endpoint and hands the token to the sample's
+     * AuthenticationManager, in place of the interactive sign in
+     */
+    private static void signIn(FakeGraphServer server) throws Exception {
+        OAuth20Service service = new ServiceBuilder(Constants.CLIENT_ID)
+                .callback(Constants.REDIRECT_URL)
+                .scope(Constants.SCOPES)
+                .build(MicrosoftAzureAD20Api.withAuthority(server.getAuthority()));
+        AuthenticationManager.getInstance().getTokenHolder().setToken(service.getAccessToken("fake-code"));
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            int separator = name.indexOf('=');
+            if (separator >= 0) {
+                options.put(name.substring(0, separator), name.substring(separator + 1));
+            }
+            else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            }
+            else {
+                options.put(name, "true");
+            }
+        }
+        return options;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.loadtest;
+
+import com.microsoft.graphsample.metrics.LatencyHistogram;
+
+/**
+ * Summary of a {@link LoadGenerator} run. Latencies are measured from the time each send was
+ * scheduled to start, so time spent waiting behind an overloaded pipeline is included.
+ */
+public final class LoadReport {
+    private final double mTargetRate;
+    private final long mSucceeded;
+    private final long mFailed;
+    private final long mElapsedNanos;
+    private final LatencyHistogram mLatency;
+
+    LoadReport(double targetRate, long succeeded, long failed, long elapsedNanos, LatencyHistogram latency) {
+        mTargetRate = targetRate;
+        mSucceeded = succeeded;
+        mFailed = failed;
+        mElapsedNanos = elapsedNanos;
+        mLatency = latency;
+    }
+
+    public long getSucceeded() {
+        return mSucceeded;
+    }
+
+    public long getFailed() {
+        return mFailed;
+    }
+
+    /**
+     * @return Sends completed per second, successful or not
+     */
+    public double getThroughput() {
+        return mElapsedNanos <= 0 ? 0 : (mSucceeded + mFailed) * 1e9 / mElapsedNanos;
+    }
+
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d sent, %d failed in %.1f s: %.1f mails/s (target %.1f)%n"
+                             + "latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                             mSucceeded, mFailed, mElapsedNanos / 1e9, getThroughput(), mTargetRate,
+                             mLatency.getQuantileMicros(0.5) / 1000.0,
+                             mLatency.getQuantileMicros(0.9) / 1000.0,
+                             mLatency.getQuantileMicros(0.99) / 1000.0,
+                             mLatency.getMaxMicros() / 1000.0);
+    }
+}
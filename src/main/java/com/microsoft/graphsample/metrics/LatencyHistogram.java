@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent latency histogram with log-linear buckets. Every power of two of microseconds
+ * is split into eight buckets, so a quantile is reported within 12.5% of the true value, from
+ * one microsecond up to about 19 hours. Recording a value increments one array slot and two
+ * adders and allocates nothing.
+ */
+public final class LatencyHistogram {
+    // Sub-buckets per power of two, as a power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values of 2^36 microseconds and more land in the last bucket
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mSumMicros = new LongAdder();
+
+    /**
+     * @param nanos The latency to record, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        mBuckets.incrementAndGet(bucketIndex(micros));
+        mCount.increment();
+        mSumMicros.add(micros);
+    }
+
+    public long getCount() {
+        return mCount.sum();
+    }
+
+    /**
+     * @return The sum of all recorded latencies, in microseconds
+     */
+    public long getSumMicros() {
+        return mSumMicros.sum();
+    }
+
+    /**
+     * @return The mean latency in microseconds, or 0 if nothing was recorded
+     */
+    public double getMeanMicros() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSumMicros() / count;
+    }
+
+    /**
+     * Estimates a quantile from the bucket counts. Recording may continue while this runs, so
+     * under load the result reflects a recent rather than an exact snapshot.
+     *
+     * @param quantile The quantile, between 0 and 1
+     * @return The upper bound of the bucket holding the quantile, in microseconds, or 0 if
+     * nothing was recorded
+     */
+    public long getQuantileMicros(double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += mBuckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return The upper bound of the highest non-empty bucket, in microseconds
+     */
+    public long getMaxMicros() {
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (mBuckets.get(i) > 0) {
+                return bucketUpperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.metrics;
+
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Process wide registry of {@link OperationMetrics}. Each operation is registered with the
+ * platform MBean server the first time it is used, under
+ * {@code com.microsoft.graphsample:type=Operation,name=<operation>}, so it can be watched in
+ * JConsole or VisualVM while the sample runs.
+ * <p>
+ * Registration runs on a background thread, since starting the platform MBean server would
+ * otherwise delay the first Graph request of the process.
+ */
+public final class MetricsRegistry {
+    static final String JMX_DOMAIN = "com.microsoft.graphsample";
+    // The operation the startup cost is recorded under
+    static final String TIME_TO_FIRST_RESPONSE = "timeToFirstResponse";
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, OperationMetrics> mOperations = new ConcurrentHashMap<>();
+    private final AtomicBoolean mFirstResponseRecorded = new AtomicBoolean();
+    private final ExecutorService mRegistrationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "metrics-jmx");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private MetricsRegistry() {
+    }
+
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param name The name of the operation
+     * @return The metrics of the operation, created on first use
+     */
+    public OperationMetrics operation(String name) {
+        OperationMetrics metrics = mOperations.get(name);
+        if (metrics != null) {
+            return metrics;
+        }
+        OperationMetrics created = new OperationMetrics(name);
+        metrics = mOperations.putIfAbsent(name, created);
+        if (metrics != null) {
+            return metrics;
+        }
+        registerMBeanLater(created);
+        return created;
+    }
+
+    /**
+     * Records the time from the start of the JVM to the first completed Graph request of the
+     * process as the timeToFirstResponse operation. This is the startup cost a scripted run
+     * pays before doing any work. Calls after the first are ignored.
+     */
+    public void recordFirstResponse() {
+        if (mFirstResponseRecorded.get() || !mFirstResponseRecorded.compareAndSet(false, true)) {
+            return;
+        }
+        long uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        operation(TIME_TO_FIRST_RESPONSE).recordSuccess(TimeUnit.MILLISECONDS.toNanos(uptimeMillis));
+        DebugLogger.getInstance().writeLog(Level.INFO, "First Graph response {} ms after the JVM started",
+                                           uptimeMillis);
+    }
+
+    /**
+     * @return The metrics of every operation used so far, by name
+     */
+    public List<OperationMetrics> getOperations() {
+        List<OperationMetrics> operations = new ArrayList<>(mOperations.values());
+        Collections.sort(operations, new Comparator<OperationMetrics>() {
+            @Override
+            public int compare(OperationMetrics left, OperationMetrics right) {
+                return left.getName().compareTo(right.getName());
+            }
+        });
+        return operations;
+    }
+
+    private void registerMBeanLater(final OperationMetrics metrics) {
+        mRegistrationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                registerMBean(metrics);
+            }
+        });
+    }
+
+    private static void registerMBean(OperationMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(metrics, new ObjectName(
+                    JMX_DOMAIN + ":type=Operation,name=" + ObjectName.quote(metrics.getName())));
+        } catch (Exception ex) {
+            // The metrics are still recorded and served over HTTP
+            DebugLogger.getInstance().writeLog(Level.WARNING, "Could not register JMX metrics of {}",
+                                               metrics.getName(), ex);
+        }
+    }
+}
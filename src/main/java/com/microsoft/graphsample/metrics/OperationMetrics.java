@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, outcome and traffic of one operation, such as a Graph call or a token refresh.
+ * Recording allocates nothing, so it can sit on every request path.
+ * <pre>
+ * long start = System.nanoTime();
+ * OperationMetrics previous = metrics.enter();
+ * try {
+ *     ...
+ *     metrics.recordSuccess(System.nanoTime() - start);
+ * } catch (Exception ex) {
+ *     metrics.recordError(System.nanoTime() - start);
+ *     throw ex;
+ * } finally {
+ *     OperationMetrics.exit(previous);
+ * }
+ * </pre>
+ * While an operation is entered on a thread, the HTTP transports attribute the bytes they
+ * send and receive on that thread to it.
+ */
+public final class OperationMetrics implements OperationMetricsMXBean {
+    private static final ThreadLocal<OperationMetrics> CURRENT = new ThreadLocal<>();
+
+    private final String mName;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final LongAdder mErrors = new LongAdder();
+    private final LongAdder mBytesSent = new LongAdder();
+    private final LongAdder mBytesReceived = new LongAdder();
+
+    OperationMetrics(String name) {
+        mName = name;
+    }
+
+    /**
+     * Makes this the operation of the current thread
+     *
+     * @return The operation that was current before, to pass to {@link #exit(OperationMetrics)}
+     */
+    public OperationMetrics enter() {
+        OperationMetrics previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    /**
+     * Restores the operation that was current before {@link #enter()}
+     */
+    public static void exit(OperationMetrics previous) {
+        CURRENT.set(previous);
+    }
+
+    /**
+     * @return The operation entered on the current thread, or null
+     */
+    public static OperationMetrics current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Adds to the bytes sent by the operation current on this thread, if there is one
+     */
+    public static void addBytesSentToCurrent(long bytes) {
+        OperationMetrics current = CURRENT.get();
+        if (current != null && bytes > 0) {
+            current.mBytesSent.add(bytes);
+        }
+    }
+
+    /**
+     * Adds to the bytes received by the operation current on this thread, if there is one
+     */
+    public static void addBytesReceivedToCurrent(long bytes) {
+        OperationMetrics current = CURRENT.get();
+        if (current != null && bytes > 0) {
+            current.mBytesReceived.add(bytes);
+        }
+    }
+
+    public void recordSuccess(long elapsedNanos) {
+        mLatency.record(elapsedNanos);
+    }
+
+    public void recordError(long elapsedNanos) {
+        mLatency.record(elapsedNanos);
+        mErrors.increment();
+    }
+
+    public void addBytesSent(long bytes) {
+        mBytesSent.add(bytes);
+    }
+
+    public void addBytesReceived(long bytes) {
+        mBytesReceived.add(bytes);
+    }
+
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public long getCount() {
+        return mLatency.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return mErrors.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return mBytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return mBytesReceived.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return mLatency.getMeanMicros() / 1000.0;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return mLatency.getQuantileMicros(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getP90Millis() {
+        return mLatency.getQuantileMicros(0.9) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return mLatency.getQuantileMicros(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return mLatency.getMaxMicros() / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-30s %8d calls %6d errors  p50 %9.1f ms  p99 %9.1f ms  max %9.1f ms",
+                             mName, getCount(), getErrors(), getP50Millis(), getP99Millis(), getMaxMillis());
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.metrics;
+
+/**
+ * The JMX view of one operation's metrics. Latencies are in milliseconds.
+ */
+public interface OperationMetricsMXBean {
+    String getName();
+
+    long getCount();
+
+    long getErrors();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+}
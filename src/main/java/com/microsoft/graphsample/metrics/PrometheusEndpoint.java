@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Serves the {@link MetricsRegistry} in the Prometheus text format at /metrics on the
+ * loopback interface. Latencies are published as summaries with the 0.5, 0.9 and 0.99
+ * quantiles.
+ */
+public class PrometheusEndpoint implements Closeable {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final HttpServer mServer;
+    private final MetricsRegistry mRegistry;
+
+    /**
+     * Starts serving the metrics.
+     *
+     * @param port     The loopback port to listen on, or 0 for a free one
+     * @param registry The metrics to serve
+     */
+    public PrometheusEndpoint(int port, MetricsRegistry registry) throws IOException {
+        mRegistry = registry;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        mServer.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    /**
+     * @return The url the metrics are served at
+     */
+    public String getUrl() {
+        return "http://localhost:" + mServer.getAddress().getPort() + "/metrics";
+    }
+
+    /**
+     * Renders every operation in the Prometheus text exposition format
+     */
+    String render() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP graphsample_operation_duration_seconds Latency of Graph operations and token acquisition\n");
+        out.append("# TYPE graphsample_operation_duration_seconds summary\n");
+        for (OperationMetrics metrics : mRegistry.getOperations()) {
+            LatencyHistogram latency = metrics.getLatency();
+            for (double quantile : QUANTILES) {
+                appendSample(out, "graphsample_operation_duration_seconds", metrics.getName(),
+                             ",quantile=\"" + quantile + "\"", latency.getQuantileMicros(quantile) / 1e6);
+            }
+            appendSample(out, "graphsample_operation_duration_seconds_sum", metrics.getName(), "",
+                         latency.getSumMicros() / 1e6);
+            appendSample(out, "graphsample_operation_duration_seconds_count", metrics.getName(), "",
+                         latency.getCount());
+        }
+        appendHeader(out, "graphsample_operation_errors_total", "Failed operations");
+        for (OperationMetrics metrics : mRegistry.getOperations()) {
+            appendSample(out, "graphsample_operation_errors_total", metrics.getName(), "", metrics.getErrors());
+        }
+        appendHeader(out, "graphsample_operation_bytes_sent_total", "Request bytes sent");
+        for (OperationMetrics metrics : mRegistry.getOperations()) {
+            appendSample(out, "graphsample_operation_bytes_sent_total", metrics.getName(), "", metrics.getBytesSent());
+        }
+        appendHeader(out, "graphsample_operation_bytes_received_total", "Response bytes received");
+        for (OperationMetrics metrics : mRegistry.getOperations()) {
+            appendSample(out, "graphsample_operation_bytes_received_total", metrics.getName(), "", metrics.getBytesReceived());
+        }
+        return out.toString();
+    }
+
+    private static void appendHeader(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+    }
+
+    private static void appendSample(StringBuilder out, String name, String operation, String labels, double value) {
+        out.append(name)
+           .append("{operation=\"").append(operation.replace("\\", "\\\\").replace("\"", "\\\"")).append('"')
+           .append(labels)
+           .append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        }
+        else {
+            out.append(String.format(Locale.ROOT, "%s", value));
+        }
+        out.append('\n');
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+    }
+}
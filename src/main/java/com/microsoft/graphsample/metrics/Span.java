@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.metrics;
+
+/**
+ * One timed step of a trace, such as a Graph call or a token acquisition. Spans of the same
+ * trace share its trace id and nest by their parent ids.
+ * <p>
+ * A span started with {@link Tracer#startSpan(String)} is current on its thread until it is
+ * closed, so the spans started inside it become its children. A span that is not used
+ * inside the block needs the "try" warning suppressed:
+ * <pre>
+ * try (Span ignored = Tracer.getInstance().startSpan("uploadToOneDrive")) {
+ *     ...
+ * }
+ * </pre>
+ * A span started with {@link Tracer#startSpan(String, Span)} is not made current; it is ended
+ * with {@link #end()} when the asynchronous work it times completes.
+ * <p>
+ * When tracing is off every span is the same inert instance.
+ */
+public final class Span implements AutoCloseable {
+    static final Span NOOP = new Span(null, null, 0, 0, 0, false);
+
+    private final Tracer mTracer;
+    private final String mName;
+    private final long mTraceId;
+    private final long mSpanId;
+    private final long mParentId;
+    private final long mStartNanos;
+    private final long mThreadId;
+    private final String mThreadName;
+    private final boolean mCurrent;
+    private Span mPrevious;
+    private volatile long mEndNanos;
+    private volatile String mError;
+
+    Span(Tracer tracer, String name, long traceId, long spanId, long parentId, boolean current) {
+        mTracer = tracer;
+        mName = name;
+        mTraceId = traceId;
+        mSpanId = spanId;
+        mParentId = parentId;
+        mCurrent = current;
+        mStartNanos = System.nanoTime();
+        Thread thread = Thread.currentThread();
+        mThreadId = thread.getId();
+        mThreadName = tracer == null ? null : thread.getName();
+    }
+
+    /**
+     * Marks the span as failed. The error message is shown with the span
+     */
+    public void setError(Throwable error) {
+        if (this != NOOP && error != null) {
+            mError = error.getClass().getSimpleName() + ": " + error.getMessage();
+        }
+    }
+
+    /**
+     * Ends the span and records it. Ending a span again has no effect
+     */
+    public void end() {
+        if (this == NOOP || mEndNanos != 0) {
+            return;
+        }
+        mEndNanos = System.nanoTime();
+        mTracer.record(this);
+    }
+
+    /**
+     * Ends the span and, if it was made current when it started, restores the span that was
+     * current before it
+     */
+    @Override
+    public void close() {
+        end();
+        if (mCurrent) {
+            Tracer.restore(mPrevious);
+        }
+    }
+
+    void setPrevious(Span previous) {
+        mPrevious = previous;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getTraceId() {
+        return mTraceId;
+    }
+
+    public long getSpanId() {
+        return mSpanId;
+    }
+
+    /**
+     * @return The id of the parent span, or 0 for the root span of a trace
+     */
+    public long getParentId() {
+        return mParentId;
+    }
+
+    long getStartNanos() {
+        return mStartNanos;
+    }
+
+    long getEndNanos() {
+        return mEndNanos;
+    }
+
+    long getThreadId() {
+        return mThreadId;
+    }
+
+    String getThreadName() {
+        return mThreadName;
+    }
+
+    String getError() {
+        return mError;
+    }
+}
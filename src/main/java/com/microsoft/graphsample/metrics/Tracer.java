@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.metrics;
+
+import com.microsoft.graphsample.connect.Constants;
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Records {@link Span}s to a local file in the Chrome trace event format, which Perfetto
+ * (ui.perfetto.dev) and chrome://tracing open directly. Tracing is on when
+ * {@link Constants#TRACE_FILE} names a file.
+ * <p>
+ * Each trace is written as nestable async events keyed by its trace id, so every send gets
+ * its own track with its Graph calls and token acquisitions nested below it, and sends that
+ * ran in parallel show as parallel tracks. Ended spans are queued and written by a background
+ * thread; when the queue is full, spans are dropped and counted.
+ */
+public final class Tracer {
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+    private static final Tracer INSTANCE = new Tracer(Constants.TRACE_FILE, Constants.TRACE_BUFFER_CAPACITY);
+
+    private final boolean mEnabled;
+    private final AtomicLong mNextId = new AtomicLong(1);
+    private final BlockingQueue<Span> mQueue;
+    private final LongAdder mDropped = new LongAdder();
+    private final long mOriginNanos = System.nanoTime();
+    private final long mPid = ProcessHandle.current().pid();
+
+    private Tracer(String fileName, int capacity) {
+        Writer writer = null;
+        if (fileName != null) {
+            try {
+                File file = new File(fileName);
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                DebugLogger.getInstance().writeLog(Level.WARNING, "Tracing disabled, cannot write {}", fileName, ex);
+            }
+        }
+        mEnabled = writer != null;
+        mQueue = mEnabled ? new ArrayBlockingQueue<Span>(capacity) : null;
+        if (mEnabled) {
+            startWriter(writer);
+        }
+    }
+
+    public static Tracer getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Starts a span and makes it current on this thread until it is closed. The span is a
+     * child of the current span, or the root of a new trace if there is none.
+     *
+     * @param name The name shown for the span, usually the operation name
+     */
+    public Span startSpan(String name) {
+        if (!mEnabled) {
+            return Span.NOOP;
+        }
+        Span parent = CURRENT.get();
+        Span span = newSpan(name, parent, true);
+        span.setPrevious(parent);
+        CURRENT.set(span);
+        return span;
+    }
+
+    /**
+     * Starts a span for asynchronous work without making it current. End it with
+     * {@link Span#end()} when the work completes.
+     *
+     * @param name   The name shown for the span
+     * @param parent The parent span, or null to start a new trace
+     */
+    public Span startSpan(String name, Span parent) {
+        if (!mEnabled) {
+            return Span.NOOP;
+        }
+        return newSpan(name, parent == Span.NOOP ? null : parent, false);
+    }
+
+    /**
+     * @return The current span of this thread, or null if there is none
+     */
+    public static Span current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes a span current on this thread, so spans started by code it calls become its
+     * children. Used to carry a trace into callbacks of asynchronous work.
+     *
+     * @return The span that was current before, to pass to {@link #restore(Span)}
+     */
+    public static Span activate(Span span) {
+        Span previous = CURRENT.get();
+        if (span != Span.NOOP) {
+            CURRENT.set(span);
+        }
+        return previous;
+    }
+
+    /**
+     * Restores the span that was current before {@link #activate(Span)}
+     */
+    public static void restore(Span previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        }
+        else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @return Spans not written because the queue was full
+     */
+    public long getDroppedCount() {
+        return mDropped.sum();
+    }
+
+    void record(Span span) {
+        if (!mQueue.offer(span)) {
+            mDropped.increment();
+        }
+    }
+
+    private Span newSpan(String name, Span parent, boolean current) {
+        long spanId = mNextId.getAndIncrement();
+        long traceId = parent == null ? spanId : parent.getTraceId();
+        return new Span(this, name, traceId, spanId, parent == null ? 0 : parent.getSpanId(), current);
+    }
+
+    private void startWriter(final Writer writer) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop(writer);
+            }
+        }, "trace-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                thread.interrupt();
+                try {
+                    thread.join(2000);
+                } catch (InterruptedException ex) {
+                    // Exiting anyway
+                }
+            }
+        }, "trace-writer-close"));
+    }
+
+    /**
+     * Writes spans until interrupted, then writes what is queued and closes the file. The
+     * array is left open until then; trace viewers accept a file without the closing bracket
+     */
+    private void writeLoop(Writer writer) {
+        StringBuilder event = new StringBuilder(512);
+        try {
+            writer.write("[\n");
+            writeMetadata(writer, event);
+            while (!Thread.currentThread().isInterrupted()) {
+                Span span;
+                try {
+                    span = mQueue.poll(200, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                if (span == null) {
+                    writer.flush();
+                    continue;
+                }
+                writeSpan(writer, event, span);
+            }
+            Span span;
+            while ((span = mQueue.poll()) != null) {
+                writeSpan(writer, event, span);
+            }
+            if (mDropped.sum() > 0) {
+                DebugLogger.getInstance().writeLog(Level.WARNING, "{} trace spans dropped", mDropped.sum());
+            }
+            writer.write("\n]\n");
+        } catch (IOException ex) {
+            DebugLogger.getInstance().writeLog(Level.WARNING, "Could not write trace file", ex);
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                // Nothing more can be written
+            }
+        }
+    }
+
+    private void writeMetadata(Writer writer, StringBuilder event) throws IOException {
+        event.setLength(0);
+        event.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(mPid)
+             .append(",\"args\":{\"name\":\"graphsample\"}}");
+        writer.append(event);
+    }
+
+    /**
+     * Writes a span as the begin and end events of a nestable async slice
+     */
+    private void writeSpan(Writer writer, StringBuilder event, Span span) throws IOException {
+        event.setLength(0);
+        event.append(",\n{\"name\":");
+        appendString(event, span.getName());
+        event.append(",\"cat\":\"graph\",\"ph\":\"b\",\"id\":\"0x").append(Long.toHexString(span.getTraceId()))
+             .append("\",\"ts\":");
+        appendMicros(event, span.getStartNanos() - mOriginNanos);
+        event.append(",\"pid\":").append(mPid).append(",\"tid\":").append(span.getThreadId())
+             .append(",\"args\":{\"trace\":").append(span.getTraceId())
+             .append(",\"span\":").append(span.getSpanId())
+             .append(",\"parent\":").append(span.getParentId())
+             .append(",\"thread\":");
+        appendString(event, span.getThreadName());
+        if (span.getError() != null) {
+            event.append(",\"error\":");
+            appendString(event, span.getError());
+        }
+        event.append("}},\n{\"name\":");
+        appendString(event, span.getName());
+        event.append(",\"cat\":\"graph\",\"ph\":\"e\",\"id\":\"0x").append(Long.toHexString(span.getTraceId()))
+             .append("\",\"ts\":");
+        appendMicros(event, span.getEndNanos() - mOriginNanos);
+        event.append(",\"pid\":").append(mPid).append(",\"tid\":").append(span.getThreadId()).append('}');
+        writer.append(event);
+    }
+
+    private static void appendMicros(StringBuilder event, long nanos) {
+        long fraction = nanos % 1000;
+        event.append(nanos / 1000).append('.');
+        if (fraction < 100) {
+            event.append('0');
+        }
+        if (fraction < 10) {
+            event.append('0');
+        }
+        event.append(fraction);
+    }
+
+    private static void appendString(StringBuilder event, String value) {
+        if (value == null) {
+            event.append("null");
+            return;
+        }
+        event.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                event.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                event.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                event.append(c);
+            }
+        }
+        event.append('"');
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.core.ClientException;
+
+/**
+ * The response to one {@link BatchStep}, split out of a $batch response.
+ */
+public final class BatchResponse {
+    private final int mStatus;
+    private final JsonObject mHeaders;
+    private final JsonElement mBody;
+
+    BatchResponse(int status, JsonObject headers, JsonElement body) {
+        mStatus = status;
+        mHeaders = headers;
+        mBody = body;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return The named response header, or null if the response does not have it
+     */
+    public String getHeader(String name) {
+        if (mHeaders == null || !mHeaders.has(name)) {
+            return null;
+        }
+        return mHeaders.get(name).getAsString();
+    }
+
+    /**
+     * @return The JSON body of the response, or null if the response has no body
+     */
+    public JsonElement getBody() {
+        return mBody;
+    }
+
+    public boolean isSuccess() {
+        return mStatus >= 200 && mStatus < 300;
+    }
+
+    /**
+     * @return The failure of an unsuccessful response, as {@link RetryPolicy} understands it:
+     * a {@link GraphThrottledException} with the Retry-After for throttling statuses, and a
+     * {@link BatchStepException} for the others
+     */
+    ClientException toException() {
+        BatchStepException failure = new BatchStepException(
+                "Batched request failed with status " + mStatus + (mBody == null ? "" : ": " + mBody), mStatus);
+        if (GraphThrottledException.isThrottlingStatus(mStatus)) {
+            return new GraphThrottledException(mStatus,
+                                               GraphThrottledException.parseRetryAfter(getHeader("Retry-After")),
+                                               failure);
+        }
+        return failure;
+    }
+}
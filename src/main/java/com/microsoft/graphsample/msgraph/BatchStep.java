@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One Graph operation queued in a {@link GraphBatchCoalescer}. The url is relative to the
+ * service root, for example "/me/sendMail". Like the operations the controller runs on
+ * their own, a step is named for its retry counters and declares whether it is idempotent.
+ */
+public final class BatchStep {
+    private final String mOperation;
+    private final boolean mIdempotent;
+    private final String mMethod;
+    private final String mUrl;
+    private final JsonElement mBody;
+    private final String mContentType;
+    // Computed on first use. A race only computes the same value twice
+    private int mSerializedBytes = -1;
+
+    private BatchStep(
+            String operation,
+            boolean idempotent,
+            String method,
+            String url,
+            JsonElement body,
+            String contentType) {
+        mOperation = operation;
+        mIdempotent = idempotent;
+        mMethod = method;
+        mUrl = url;
+        mBody = body;
+        mContentType = contentType;
+    }
+
+    public static BatchStep get(String operation, String url) {
+        return new BatchStep(operation, true, "GET", url, null, null);
+    }
+
+    /**
+     * @param operation  The name the step is counted under
+     * @param idempotent True if running the step twice has the same effect as running it once
+     */
+    public static BatchStep post(String operation, boolean idempotent, String url, JsonElement body) {
+        return new BatchStep(operation, idempotent, "POST", url, body, "application/json");
+    }
+
+    /**
+     * Creates a PUT step with a binary body. Graph expects non JSON bodies in a batch to be
+     * base64 encoded.
+     *
+     * @param operation   The name the step is counted under
+     * @param url         The request url
+     * @param base64Body  The body bytes, base64 encoded
+     * @param contentType The content type of the decoded body
+     */
+    public static BatchStep put(String operation, String url, String base64Body, String contentType) {
+        return new BatchStep(operation, true, "PUT", url, new JsonPrimitive(base64Body), contentType);
+    }
+
+    String getOperation() {
+        return mOperation;
+    }
+
+    boolean isIdempotent() {
+        return mIdempotent;
+    }
+
+    /**
+     * @return The bytes the step takes in a $batch payload, with the longest ids a batch uses
+     */
+    int getSerializedBytes() {
+        int bytes = mSerializedBytes;
+        if (bytes < 0) {
+            String longestId = String.valueOf(GraphBatchCoalescer.MAX_BATCH_SIZE);
+            bytes = toJson(longestId, longestId).toString().getBytes(StandardCharsets.UTF_8).length;
+            mSerializedBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Serializes the step as an entry of the requests array of a $batch payload.
+     *
+     * @param id        The id of the step, unique within the batch
+     * @param dependsOn The id of the step that must complete first, or null
+     */
+    JsonObject toJson(String id, String dependsOn) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("method", mMethod);
+        json.addProperty("url", mUrl);
+        if (dependsOn != null) {
+            JsonArray dependencies = new JsonArray();
+            dependencies.add(new JsonPrimitive(dependsOn));
+            json.add("dependsOn", dependencies);
+        }
+        if (mBody != null) {
+            json.add("body", mBody);
+            JsonObject headers = new JsonObject();
+            headers.addProperty("Content-Type", mContentType);
+            json.add("headers", headers);
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return mMethod + " " + mUrl;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graph.core.ClientException;
+
+/**
+ * Thrown for a {@link BatchStep} that Graph answered with an error status inside a
+ * successful $batch response. Carries the status so {@link RetryPolicy} can tell a request
+ * Graph refused from one it may have acted on.
+ */
+public class BatchStepException extends ClientException {
+    private static final long serialVersionUID = 1L;
+
+    private final int mStatus;
+
+    public BatchStepException(String message, int status) {
+        super(message, null);
+        mStatus = status;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+}
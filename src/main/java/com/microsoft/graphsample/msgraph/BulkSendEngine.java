@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Sends the sample mail to a large list of recipients on a bounded pool of worker threads.
+ * The profile picture, the OneDrive upload and the sharing link are produced once per run
+ * by {@link GraphSendMail#prepareAssets()} and shared by every recipient.
+ * <p>
+ * Recipients are pulled from the iterator only as workers become free, so the recipient
+ * list is never held in memory.
+ * <p>
+ * In batching mode each recipient costs one sendMail operation, and the operations of
+ * concurrent workers are coalesced into $batch requests of up to 20 operations.
+ * <p>
+ * {@link #runAsync(Iterator, IBulkSendCallback)} keeps the sends in flight without a
+ * thread per send, so the concurrency can be raised to hundreds.
+ * <p>
+ * {@link #runPacked(Iterator, int, RecipientGroup.Field, IBulkSendCallback)} sends one
+ * message to each group of recipients instead of one per recipient, for mail whose content
+ * is the same for everyone.
+ */
+public class BulkSendEngine {
+    private final GraphSendMail mGraphSendMail;
+    private final int mConcurrency;
+    private final boolean mUseBatching;
+    private final DebugLogger mLogger;
+
+    /**
+     * @param graphSendMail The send pipeline shared by all workers
+     * @param concurrency   Number of sends in flight at once
+     */
+    public BulkSendEngine(GraphSendMail graphSendMail, int concurrency) {
+        this(graphSendMail, concurrency, false);
+    }
+
+    /**
+     * @param graphSendMail The send pipeline shared by all workers
+     * @param concurrency   Number of sends in flight at once
+     * @param useBatching   True to coalesce the sends of concurrent workers into $batch requests
+     */
+    public BulkSendEngine(GraphSendMail graphSendMail, int concurrency, boolean useBatching) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The concurrency parameter must be at least 1.");
+        }
+        mGraphSendMail = graphSendMail;
+        mConcurrency = concurrency;
+        mUseBatching = useBatching;
+        mLogger = DebugLogger.getInstance();
+    }
+
+    /**
+     * Sends the mail to every recipient and blocks until all sends are complete.
+     *
+     * @param recipients Recipients, consumed lazily
+     * @param callback   Receives each recipient's outcome. May be null
+     * @return Counts and throughput of the run
+     * @throws SendMailException If the shared assets could not be prepared
+     * @throws InterruptedException
+     */
+    public BulkSendReport run(Iterator<MailRecipient> recipients, final IBulkSendCallback callback)
+            throws SendMailException, InterruptedException {
+        return run(recipients, callback, null);
+    }
+
+    /**
+     * Sends the mail to every recipient and blocks until all sends are complete, recording
+     * each send in the outbox journal. Recipients the journal shows as sent by an earlier run
+     * are skipped, and unfinished sends continue after their last completed step.
+     * <p>
+     * Jobs are keyed by the recipient's position in the list and its address, so the journal
+     * only matches a run over the same, unchanged list.
+     *
+     * @param recipients Recipients, consumed lazily
+     * @param callback   Receives each recipient's outcome. May be null
+     * @param journal    The outbox journal of the run, or null to send without one
+     * @return Counts and throughput of the run
+     * @throws SendMailException If the shared assets could not be prepared or the journal could not be written
+     * @throws InterruptedException
+     */
+    public BulkSendReport run(
+            Iterator<MailRecipient> recipients,
+            final IBulkSendCallback callback,
+            OutboxJournal journal) throws SendMailException, InterruptedException {
+        final long start = System.nanoTime();
+        final SendAssets assets = mUseBatching
+                                  ? mGraphSendMail.prepareAssetsBatched()
+                                  : mGraphSendMail.prepareAssets();
+        if (assets == null) {
+            throw new SendMailException("Could not prepare the profile picture and sharing link");
+        }
+
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        long skipped = 0;
+        long position = 0;
+        // Bounds the recipients read ahead of the workers to one queued send per worker
+        final Semaphore permits = new Semaphore(mConcurrency * 2);
+        ExecutorService executor = newWorkerPool();
+        try {
+            while (recipients.hasNext()) {
+                final MailRecipient recipient = recipients.next();
+                final OutboxJournal.Job job = beginJob(journal, ++position, recipient);
+                if (job != null && job.isDone()) {
+                    skipped++;
+                    continue;
+                }
+                permits.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long sendStart = System.nanoTime();
+                        SendResult result;
+                        try {
+                            if (mUseBatching) {
+                                sendBatched(recipient, assets, job);
+                            }
+                            else if (job != null) {
+                                mGraphSendMail.sendMail(recipient, assets, job);
+                            }
+                            else {
+                                mGraphSendMail.sendMail(recipient, assets);
+                            }
+                            result = SendResult.success(recipient.getAddress(), System.nanoTime() - sendStart);
+                            succeeded.incrementAndGet();
+                        } catch (Exception ex) {
+                            mLogger.writeLog(Level.SEVERE, "Send to {} failed", recipient, ex);
+                            result = SendResult.failure(recipient.getAddress(), ex, System.nanoTime() - sendStart);
+                            failed.incrementAndGet();
+                        } finally {
+                            permits.release();
+                        }
+                        if (callback != null) {
+                            callback.onResult(result);
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        if (skipped > 0) {
+            mLogger.writeLog(Level.INFO, "Skipped {} recipients sent by an earlier run", skipped);
+        }
+        return new BulkSendReport(succeeded.get(), failed.get(), skipped, System.nanoTime() - start);
+    }
+
+    private static OutboxJournal.Job beginJob(OutboxJournal journal, long position, MailRecipient recipient)
+            throws SendMailException {
+        if (journal == null) {
+            return null;
+        }
+        try {
+            return journal.begin(position + ":" + recipient.getAddress());
+        } catch (IOException ex) {
+            throw new SendMailException("Could not write the outbox journal", ex);
+        }
+    }
+
+    /**
+     * Sends one recipient's mail as a single batched sendMail operation, recorded in the job
+     * like the SEND_MAIL step of an unbatched send
+     */
+    private void sendBatched(MailRecipient recipient, SendAssets assets, OutboxJournal.Job job) throws Exception {
+        if (job == null) {
+            mGraphSendMail.sendMailBatched(recipient, assets).get();
+            return;
+        }
+        if (SendPlan.Step.SEND_MAIL.name().equals(job.getStartedStep())) {
+            throw new SendMailException("The mail to " + recipient
+                                        + " may have been sent by an earlier run and is not sent again");
+        }
+        job.stepStarted(SendPlan.Step.SEND_MAIL);
+        try {
+            mGraphSendMail.sendMailBatched(recipient, assets).get();
+        } catch (Exception ex) {
+            if (RetryPolicy.isRefused(RetryPolicy.unwrap(ex))) {
+                job.stepFailed(SendPlan.Step.SEND_MAIL);
+            }
+            throw ex;
+        }
+        job.stepDone(SendPlan.Step.SEND_MAIL, null);
+        job.done();
+    }
+
+    /**
+     * Sends the mail to every recipient with the non-blocking pipeline and blocks until all
+     * sends are complete. The concurrency bounds the sends in flight, not threads.
+     *
+     * @param recipients Recipients, consumed lazily
+     * @param callback   Receives each recipient's outcome on the thread that completed it. May be null
+     * @return Counts and throughput of the run
+     * @throws SendMailException If the shared assets could not be prepared or the recipients could not be read
+     * @throws InterruptedException
+     */
+    public BulkSendReport runAsync(Iterator<MailRecipient> recipients, final IBulkSendCallback callback)
+            throws SendMailException, InterruptedException {
+        final long start = System.nanoTime();
+        final SendAssets assets = mGraphSendMail.prepareAssets();
+        if (assets == null) {
+            throw new SendMailException("Could not prepare the profile picture and sharing link");
+        }
+
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        new SendResultPublisher(mGraphSendMail, recipients, assets, mConcurrency).subscribe(
+                new Flow.Subscriber<SendResult>() {
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        // The in-flight limit is the only bound a callback needs
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(SendResult result) {
+                        (result.isSuccess() ? succeeded : failed).incrementAndGet();
+                        if (callback != null) {
+                            callback.onResult(result);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        error.set(throwable);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        done.countDown();
+                    }
+                });
+        done.await();
+        if (error.get() != null) {
+            throw new SendMailException("Bulk send stopped", error.get());
+        }
+        return new BulkSendReport(succeeded.get(), failed.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * Sends the mail to every recipient, packing them into groups that each receive one
+     * message, and blocks until all sends are complete. Invalid addresses are reported as
+     * failures and repeated addresses are sent to once. The mail body is rendered without
+     * recipient fields.
+     *
+     * @param recipients    Recipients, consumed lazily
+     * @param maxPerMessage The most recipients of one message
+     * @param field         The field the recipients are put in
+     * @param callback      Receives each recipient's outcome. May be null
+     * @return Counts and throughput of the run, counting recipients rather than messages
+     * @throws SendMailException If the shared assets could not be prepared
+     * @throws InterruptedException
+     */
+    public BulkSendReport runPacked(
+            Iterator<MailRecipient> recipients,
+            int maxPerMessage,
+            RecipientGroup.Field field,
+            final IBulkSendCallback callback) throws SendMailException, InterruptedException {
+        final long start = System.nanoTime();
+        final SendAssets assets = mGraphSendMail.prepareAssets();
+        if (assets == null) {
+            throw new SendMailException("Could not prepare the profile picture and sharing link");
+        }
+
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        RecipientPacker packer = new RecipientPacker(recipients, maxPerMessage, field, callback);
+        final Semaphore permits = new Semaphore(mConcurrency * 2);
+        ExecutorService executor = newWorkerPool();
+        try {
+            while (packer.hasNext()) {
+                final RecipientGroup group = packer.next();
+                permits.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long sendStart = System.nanoTime();
+                        Exception error = null;
+                        try {
+                            mGraphSendMail.sendMailPacked(group, assets);
+                            succeeded.addAndGet(group.size());
+                        } catch (Exception ex) {
+                            mLogger.writeLog(Level.SEVERE, "Send to {} failed", group, ex);
+                            error = ex;
+                            failed.addAndGet(group.size());
+                        } finally {
+                            permits.release();
+                        }
+                        if (callback != null) {
+                            long elapsed = System.nanoTime() - sendStart;
+                            for (String address : group.getAddresses()) {
+                                callback.onResult(error == null
+                                                  ? SendResult.success(address, elapsed)
+                                                  : SendResult.failure(address, error, elapsed));
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        mLogger.writeLog(Level.INFO, "Skipped {} invalid and {} duplicate addresses",
+                         packer.getInvalidCount(), packer.getDuplicateCount());
+
+        return new BulkSendReport(succeeded.get(), failed.get() + packer.getInvalidCount(),
+                                  System.nanoTime() - start);
+    }
+
+    private ExecutorService newWorkerPool() {
+        return Executors.newFixedThreadPool(mConcurrency, new ThreadFactory() {
+            private final AtomicLong mCount = new AtomicLong();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "bulk-send-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+/**
+ * Summary of a {@link BulkSendEngine} run.
+ */
+public final class BulkSendReport {
+    private final long mSucceeded;
+    private final long mFailed;
+    private final long mSkipped;
+    private final long mElapsedNanos;
+
+    BulkSendReport(long succeeded, long failed, long elapsedNanos) {
+        this(succeeded, failed, 0, elapsedNanos);
+    }
+
+    BulkSendReport(long succeeded, long failed, long skipped, long elapsedNanos) {
+        mSucceeded = succeeded;
+        mFailed = failed;
+        mSkipped = skipped;
+        mElapsedNanos = elapsedNanos;
+    }
+
+    public long getSucceeded() {
+        return mSucceeded;
+    }
+
+    public long getFailed() {
+        return mFailed;
+    }
+
+    /**
+     * @return Recipients skipped because the outbox journal shows them as sent by an earlier run
+     */
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    public long getTotal() {
+        return mSucceeded + mFailed;
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /**
+     * @return Recipients processed per second, successful or not
+     */
+    public double getThroughput() {
+        if (mElapsedNanos <= 0) {
+            return 0;
+        }
+        return getTotal() * 1e9 / mElapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        String summary = String.format("%d sent, %d failed in %.1f s (%.1f mails/s)",
+                                       mSucceeded, mFailed, mElapsedNanos / 1e9, getThroughput());
+        return mSkipped == 0 ? summary : summary + String.format(", %d already sent by an earlier run", mSkipped);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of reusable direct buffers for downloads such as profile pictures. Reusing
+ * buffers keeps large, short lived arrays off the heap when pictures are read for thousands
+ * of users.
+ * <p>
+ * A buffer is owned by whoever acquired it until it is released. Buffers larger than the
+ * pool's buffer size are allocated on demand and dropped on release.
+ */
+public class ByteBufferPool {
+    private final int mBufferSize;
+    private final BlockingQueue<ByteBuffer> mFree;
+
+    /**
+     * @param bufferSize The capacity of pooled buffers
+     * @param maxPooled  The largest number of idle buffers kept for reuse
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mFree = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * @param size The number of bytes the caller will put in the buffer
+     * @return A cleared buffer with its limit set to size
+     */
+    public ByteBuffer acquire(int size) {
+        ByteBuffer buffer = null;
+        if (size <= mBufferSize) {
+            buffer = mFree.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(mBufferSize);
+            }
+        }
+        else {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == mBufferSize) {
+            mFree.offer(buffer);
+        }
+    }
+}
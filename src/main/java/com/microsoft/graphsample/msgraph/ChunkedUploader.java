@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+
+/**
+ * Uploads a file to a Graph upload session url in fixed size chunks. Each chunk is a read-only
+ * memory-mapped slice of the file, so the file is never copied onto the heap.
+ * <p>
+ * After a failed chunk the uploader asks the session for its nextExpectedRanges and resumes
+ * from there, so only the missing bytes are sent again. Up to maxInFlight chunks are sent at
+ * once. OneDrive expects fragments in order, so values above 1 only help with endpoints that
+ * accept out-of-order ranges; the uploader recovers from the ones that do not either way.
+ * <p>
+ * OneDrive and Outlook sessions report progress differently, so the uploader is told which
+ * {@link SessionKind} it is talking to.
+ */
+public class ChunkedUploader {
+    // OneDrive requires chunk sizes that are a multiple of 320 KiB
+    public static final int CHUNK_SIZE_UNIT = 320 * 1024;
+
+    /**
+     * The service behind an upload session
+     */
+    public enum SessionKind {
+        /**
+         * A OneDrive item session. Chunks are answered with 202 Accepted and the last one with
+         * 200 OK or 201 Created and the item.
+         */
+        DRIVE_ITEM,
+        /**
+         * An Outlook attachment session. Chunks are answered with 200 OK and the
+         * nextExpectedRanges, and the last one with 201 Created.
+         */
+        ATTACHMENT
+    }
+
+    private final SessionKind mSessionKind;
+    private final int mChunkSize;
+    private final int mMaxInFlight;
+    private final int mMaxRetries;
+
+    /**
+     * Creates an uploader for OneDrive item sessions
+     *
+     * @param chunkSize   Bytes per request. Must be a multiple of {@link #CHUNK_SIZE_UNIT}
+     * @param maxInFlight Chunks sent at once
+     * @param maxRetries  Failed rounds tolerated before the upload is abandoned
+     */
+    public ChunkedUploader(int chunkSize, int maxInFlight, int maxRetries) {
+        this(SessionKind.DRIVE_ITEM, chunkSize, maxInFlight, maxRetries);
+    }
+
+    /**
+     * @param sessionKind The service behind the upload sessions
+     * @param chunkSize   Bytes per request. Must be a multiple of {@link #CHUNK_SIZE_UNIT}
+     * @param maxInFlight Chunks sent at once
+     * @param maxRetries  Failed rounds tolerated before the upload is abandoned
+     */
+    public ChunkedUploader(SessionKind sessionKind, int chunkSize, int maxInFlight, int maxRetries) {
+        if (chunkSize <= 0 || chunkSize % CHUNK_SIZE_UNIT != 0) {
+            throw new IllegalArgumentException("The chunk size must be a positive multiple of 320 KiB.");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("The maxInFlight parameter must be at least 1.");
+        }
+        mSessionKind = sessionKind;
+        mChunkSize = chunkSize;
+        mMaxInFlight = maxInFlight;
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Uploads the file and blocks until the session reports completion.
+     *
+     * @param uploadUrl The pre-authenticated url of the upload session
+     * @param file      The file to upload
+     * @return The JSON body of the completing response, or null if it has none
+     * @throws IOException If the file is empty, the session expired or the retries were exhausted
+     */
+    public JsonObject upload(String uploadUrl, Path file) throws IOException {
+        ExecutorService executor = mMaxInFlight > 1 ? createExecutor() : null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size == 0) {
+                // A Content-Range can't describe zero bytes
+                throw new IOException("Upload sessions can't upload the empty file " + file
+                                      + "; use a simple upload instead");
+            }
+            List<long[]> expected = Collections.singletonList(new long[]{0, size - 1});
+            int failures = 0;
+            while (true) {
+                List<long[]> chunks = nextChunks(expected, size);
+                if (chunks.isEmpty()) {
+                    throw new IOException("Upload session expects no more bytes but did not complete");
+                }
+                List<ChunkResponse> responses = sendChunks(executor, uploadUrl, channel, size, chunks);
+
+                boolean failed = false;
+                for (ChunkResponse response : responses) {
+                    if (isComplete(response)) {
+                        return response.mBody == null ? null : response.mBody.getAsJsonObject();
+                    }
+                    if (response.mStatus == HttpURLConnection.HTTP_NOT_FOUND) {
+                        throw new IOException("Upload session expired");
+                    }
+                    failed |= !isAccepted(response);
+                }
+
+                if (failed) {
+                    if (++failures > mMaxRetries) {
+                        throw new IOException("Upload failed after " + mMaxRetries + " retries");
+                    }
+                    sleepBeforeRetry(failures);
+                }
+                else {
+                    failures = 0;
+                }
+                if (failed || responses.size() > 1) {
+                    // Concurrent or failed chunks leave the responses inconsistent; ask the session
+                    expected = getExpectedRanges(uploadUrl, size);
+                }
+                else {
+                    expected = parseRanges(responses.get(0).mBody, size);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return True if the response completes the upload
+     */
+    private boolean isComplete(ChunkResponse response) {
+        if (response.mStatus == HttpURLConnection.HTTP_CREATED) {
+            return true;
+        }
+        if (response.mStatus != HttpURLConnection.HTTP_OK) {
+            return false;
+        }
+        // Outlook answers every chunk but the last with 200 and the ranges it still expects
+        return mSessionKind == SessionKind.DRIVE_ITEM || !hasExpectedRanges(response.mBody);
+    }
+
+    /**
+     * @return True if the session took the chunk and expects more
+     */
+    private boolean isAccepted(ChunkResponse response) {
+        return mSessionKind == SessionKind.DRIVE_ITEM
+               ? response.mStatus == HttpURLConnection.HTTP_ACCEPTED
+               : response.mStatus == HttpURLConnection.HTTP_OK;
+    }
+
+    private static boolean hasExpectedRanges(JsonElement sessionJson) {
+        return sessionJson != null && sessionJson.getAsJsonObject().has("nextExpectedRanges");
+    }
+
+    /**
+     * Splits the expected ranges into chunks of at most the chunk size and returns the first
+     * maxInFlight of them.
+     */
+    private List<long[]> nextChunks(List<long[]> expected, long size) {
+        List<long[]> chunks = new ArrayList<>();
+        for (long[] range : expected) {
+            long start = range[0];
+            long end = Math.min(range[1], size - 1);
+            while (start <= end && chunks.size() < mMaxInFlight) {
+                long chunkEnd = Math.min(start + mChunkSize - 1, end);
+                chunks.add(new long[]{start, chunkEnd});
+                start = chunkEnd + 1;
+            }
+        }
+        return chunks;
+    }
+
+    private List<ChunkResponse> sendChunks(
+            ExecutorService executor,
+            final String uploadUrl,
+            final FileChannel channel,
+            final long size,
+            List<long[]> chunks) throws IOException {
+        List<ChunkResponse> responses = new ArrayList<>();
+        if (executor == null) {
+            for (long[] chunk : chunks) {
+                responses.add(putChunk(uploadUrl, channel, size, chunk[0], chunk[1]));
+            }
+            return responses;
+        }
+
+        List<Future<ChunkResponse>> futures = new ArrayList<>();
+        for (final long[] chunk : chunks) {
+            futures.add(executor.submit(new Callable<ChunkResponse>() {
+                @Override
+                public ChunkResponse call() {
+                    return putChunk(uploadUrl, channel, size, chunk[0], chunk[1]);
+                }
+            }));
+        }
+        for (Future<ChunkResponse> future : futures) {
+            try {
+                responses.add(future.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading");
+            } catch (ExecutionException ex) {
+                throw new IOException("Chunk upload failed", ex.getCause());
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Sends one chunk. Network failures are reported as a response with status -1 so the
+     * caller resumes from the session state.
+     */
+    private ChunkResponse putChunk(String uploadUrl, FileChannel channel, long size, long start, long end) {
+        HttpURLConnection connection = null;
+        try {
+            int length = (int) (end - start + 1);
+            MappedByteBuffer slice = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+
+            // The upload url is pre-authenticated and must not carry the Graph Authorization header
+            connection = openConnection(uploadUrl);
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            try (OutputStream out = connection.getOutputStream()) {
+                WritableByteChannel body = Channels.newChannel(out);
+                while (slice.hasRemaining()) {
+                    body.write(slice);
+                }
+            }
+            int status = connection.getResponseCode();
+            return new ChunkResponse(status, readJson(connection, status));
+        } catch (IOException ex) {
+            log("Chunk " + start + "-" + end + " failed", ex);
+            return new ChunkResponse(-1, null);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to the upload session with the transport's timeouts, so a stalled
+     * request fails and is retried rather than holding its thread
+     */
+    private static HttpURLConnection openConnection(String uploadUrl) throws IOException {
+        HttpTransportOptions options = HttpTransportOptions.fromConstants();
+        HttpURLConnection connection = (HttpURLConnection) new URL(uploadUrl).openConnection();
+        connection.setConnectTimeout((int) options.getConnectTimeoutMillis());
+        connection.setReadTimeout((int) options.getRequestTimeoutMillis());
+        return connection;
+    }
+
+    /**
+     * Asks the upload session which byte ranges it still expects.
+     */
+    private List<long[]> getExpectedRanges(String uploadUrl, long size) throws IOException {
+        HttpURLConnection connection = openConnection(uploadUrl);
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new IOException("Upload session expired");
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Upload session status returned " + status);
+            }
+            return parseRanges(readJson(connection, status), size);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Parses nextExpectedRanges entries such as "0-1023", "1024-" or "1024" into inclusive
+     * ranges. An open range or a lone offset runs to the end of the file.
+     */
+    static List<long[]> parseRanges(JsonElement sessionJson, long size) throws IOException {
+        if (!hasExpectedRanges(sessionJson)) {
+            throw new IOException("Upload session response has no nextExpectedRanges");
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for (JsonElement element : sessionJson.getAsJsonObject().getAsJsonArray("nextExpectedRanges")) {
+            String range = element.getAsString().trim();
+            int dash = range.indexOf('-');
+            try {
+                long start = Long.parseLong(dash < 0 ? range : range.substring(0, dash));
+                long end = dash < 0 || dash == range.length() - 1
+                           ? size - 1
+                           : Long.parseLong(range.substring(dash + 1));
+                ranges.add(new long[]{start, end});
+            } catch (NumberFormatException ex) {
+                throw new IOException("Upload session returned an invalid range " + range, ex);
+            }
+        }
+        return ranges;
+    }
+
+    private static JsonElement readJson(HttpURLConnection connection, int status) throws IOException {
+        InputStream stream = status < HttpURLConnection.HTTP_BAD_REQUEST
+                             ? connection.getInputStream()
+                             : connection.getErrorStream();
+        if (stream == null) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            JsonElement json = new JsonParser().parse(reader);
+            return json.isJsonObject() ? json : null;
+        } catch (RuntimeException ex) {
+            // Empty or non JSON bodies carry no session state
+            return null;
+        }
+    }
+
+    private static void sleepBeforeRetry(int failures) throws InterruptedIOException {
+        try {
+            Thread.sleep(Math.min(30000L, 500L << Math.min(failures, 6)));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the upload");
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(mMaxInFlight, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "chunked-upload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static void log(String message, Exception ex) {
+        DebugLogger.getInstance().writeLog(Level.WARNING, message, ex);
+    }
+
+    private static final class ChunkResponse {
+        final int mStatus;
+        final JsonElement mBody;
+
+        ChunkResponse(int status, JsonElement body) {
+            mStatus = status;
+            mBody = body;
+        }
+    }
+}
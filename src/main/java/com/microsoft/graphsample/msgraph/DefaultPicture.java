@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graphsample.connect.Constants;
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+
+/**
+ * The picture attached when the signed in user has no profile picture. The file is
+ * memory-mapped once and shared by every caller; it is mapped again only when its
+ * modification time or size changes. The file is checked at most once per
+ * {@link Constants#DEFAULT_PICTURE_CHECK_MILLIS}.
+ */
+final class DefaultPicture {
+    // Sent when the default picture file is missing, as the sample always has
+    private static final byte[] MISSING_PICTURE = new byte[1024];
+
+    private static final DefaultPicture INSTANCE =
+            new DefaultPicture(new File("/", Constants.DEFAULT_IMAGE_FILENAME));
+
+    private final File mFile;
+    private volatile Snapshot mSnapshot;
+
+    DefaultPicture(File file) {
+        mFile = file;
+    }
+
+    static DefaultPicture getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return A read-only view of the mapped picture. Each call returns an independent
+     * position and limit over the same memory
+     */
+    ByteBuffer getBuffer() throws IOException {
+        Snapshot snapshot = current();
+        return snapshot.mBuffer == null
+               ? ByteBuffer.wrap(MISSING_PICTURE).asReadOnlyBuffer()
+               : snapshot.mBuffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The picture bytes. The array is shared by all callers until the file changes,
+     * so callers must not modify it
+     */
+    byte[] getBytes() throws IOException {
+        return current().getBytes();
+    }
+
+    private Snapshot current() throws IOException {
+        Snapshot snapshot = mSnapshot;
+        long now = System.currentTimeMillis();
+        if (snapshot != null && now - snapshot.mCheckedAt < Constants.DEFAULT_PICTURE_CHECK_MILLIS) {
+            return snapshot;
+        }
+        synchronized (this) {
+            snapshot = mSnapshot;
+            if (snapshot != null && now - snapshot.mCheckedAt < Constants.DEFAULT_PICTURE_CHECK_MILLIS) {
+                return snapshot;
+            }
+            long modified = mFile.lastModified();
+            long length = mFile.length();
+            if (snapshot != null && snapshot.mModified == modified && snapshot.mLength == length) {
+                snapshot.mCheckedAt = now;
+                return snapshot;
+            }
+            mSnapshot = snapshot = load(modified, length, now);
+            return snapshot;
+        }
+    }
+
+    private Snapshot load(long modified, long length, long now) throws IOException {
+        if (!mFile.exists() || !mFile.canRead()) {
+            return new Snapshot(modified, length, null, now);
+        }
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DebugLogger.getInstance().writeLog(Level.INFO, "Mapped default picture, bytes {}", buffer.capacity());
+            return new Snapshot(modified, length, buffer, now);
+        }
+    }
+
+    private static final class Snapshot {
+        final long mModified;
+        final long mLength;
+        final ByteBuffer mBuffer;
+        volatile long mCheckedAt;
+        private volatile byte[] mBytes;
+
+        Snapshot(long modified, long length, ByteBuffer buffer, long checkedAt) {
+            mModified = modified;
+            mLength = length;
+            mBuffer = buffer;
+            mCheckedAt = checkedAt;
+        }
+
+        /**
+         * Copies the mapping into an array the first time an array is asked for
+         */
+        byte[] getBytes() {
+            if (mBuffer == null) {
+                return MISSING_PICTURE;
+            }
+            byte[] bytes = mBytes;
+            if (bytes == null) {
+                bytes = new byte[mBuffer.capacity()];
+                mBuffer.duplicate().get(bytes);
+                mBytes = bytes;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import java.util.Locale;
+
+/**
+ * Checks and normalizes recipient email addresses. The check scans the address once without
+ * allocating, so it can run for every recipient of a large list.
+ */
+public final class EmailAddresses {
+    private static final int MAX_ADDRESS_LENGTH = 254;
+    private static final int MAX_LOCAL_PART_LENGTH = 64;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private EmailAddresses() {
+    }
+
+    /**
+     * Checks the form of an address: a local part of up to 64 characters, one @, and a domain
+     * of at least two dot separated labels. Quoted local parts and address literals are not
+     * accepted. Non-ASCII characters are, as Exchange accepts internationalized addresses.
+     *
+     * @param address The address to check
+     * @return True if the address is well formed
+     */
+    public static boolean isValid(CharSequence address) {
+        if (address == null) {
+            return false;
+        }
+        int length = address.length();
+        if (length == 0 || length > MAX_ADDRESS_LENGTH) {
+            return false;
+        }
+        int at = -1;
+        for (int i = 0; i < length; i++) {
+            if (address.charAt(i) == '@') {
+                if (at >= 0) {
+                    return false;
+                }
+                at = i;
+            }
+        }
+        if (at <= 0 || at > MAX_LOCAL_PART_LENGTH || at == length - 1) {
+            return false;
+        }
+        return isValidLocalPart(address, 0, at) && isValidDomain(address, at + 1, length);
+    }
+
+    /**
+     * @return The address in the form duplicates are detected by: without surrounding spaces
+     * and in lower case, since Exchange matches addresses case insensitively
+     */
+    public static String normalize(String address) {
+        return address.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isValidLocalPart(CharSequence address, int start, int end) {
+        char previous = '.';
+        for (int i = start; i < end; i++) {
+            char c = address.charAt(i);
+            if (c == '.') {
+                if (previous == '.') {
+                    // Leading dot or two dots in a row
+                    return false;
+                }
+            }
+            else if (!isAtomChar(c)) {
+                return false;
+            }
+            previous = c;
+        }
+        return previous != '.';
+    }
+
+    private static boolean isValidDomain(CharSequence address, int start, int end) {
+        int labels = 0;
+        int labelStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || address.charAt(i) == '.') {
+                int labelLength = i - labelStart;
+                if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH
+                    || address.charAt(labelStart) == '-' || address.charAt(i - 1) == '-') {
+                    return false;
+                }
+                labels++;
+                labelStart = i + 1;
+            }
+            else {
+                char c = address.charAt(i);
+                if (!(Character.isLetterOrDigit(c) || c == '-')) {
+                    return false;
+                }
+            }
+        }
+        return labels >= 2;
+    }
+
+    /**
+     * @return True for the characters RFC 5322 allows in an unquoted local part, and for
+     * non-ASCII letters and digits
+     */
+    private static boolean isAtomChar(char c) {
+        if (c < 128) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                   || "!#$%&'*+-/=?^_`{|}~".indexOf(c) >= 0;
+        }
+        return Character.isLetterOrDigit(c);
+    }
+}
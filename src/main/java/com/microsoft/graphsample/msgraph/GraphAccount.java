@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+import com.microsoft.graph.authentication.IAuthenticationProvider;
+import com.microsoft.graph.http.IHttpRequest;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.requests.extensions.GraphServiceClient;
+import com.microsoft.graphsample.connect.TokenHolder;
+import com.microsoft.graphsample.metrics.MetricsRegistry;
+import com.microsoft.graphsample.metrics.Span;
+import com.microsoft.graphsample.metrics.Tracer;
+
+/**
+ * One account of a {@link GraphClientPool}: its token holder, the authentication provider that
+ * signs the account's requests with its own token, and its Graph client.
+ * <p>
+ * The Graph client is created on first use and shares its serializer, executors and HTTP/2
+ * connections with the other accounts of the pool. An account evicted from the pool keeps
+ * working for callers that still hold it, but its token is no longer refreshed ahead of time.
+ */
+public class GraphAccount implements IAuthenticationProvider {
+    // Retained size of an account with its Graph client and controller, tokens excluded. The
+    // client measured at about 570 bytes with compressed references on a 64-bit JVM, and the
+    // controller with its batch coalescer adds about 130; rounded up
+    static final long BASE_BYTES = 768;
+    // Header and fields of a String and its array, on top of the characters
+    private static final long STRING_OVERHEAD_BYTES = 40;
+
+    private final String mAccountId;
+    private final TokenHolder mTokenHolder;
+    private final GraphClientConfig mSharedConfig;
+    private final String mServiceRoot;
+    private final long mEstimatedBytes;
+    private IGraphServiceClient mGraphServiceClient;
+    private GraphServiceController mGraphServiceController;
+
+    /**
+     * @param tokenHolder  Holds the account's token
+     * @param sharedConfig The configuration whose resources the account's client shares
+     * @param serviceRoot  The Graph service root of the client, or null for the SDK's default
+     */
+    GraphAccount(String accountId, TokenHolder tokenHolder, GraphClientConfig sharedConfig, String serviceRoot) {
+        mAccountId = accountId;
+        mTokenHolder = tokenHolder;
+        mSharedConfig = sharedConfig;
+        mServiceRoot = serviceRoot;
+        mEstimatedBytes = BASE_BYTES + estimateBytes(accountId) + estimateBytes(tokenHolder.getToken());
+    }
+
+    public String getAccountId() {
+        return mAccountId;
+    }
+
+    public TokenHolder getTokenHolder() {
+        return mTokenHolder;
+    }
+
+    /**
+     * @return The account's Graph client, created on first use
+     */
+    public synchronized IGraphServiceClient getGraphServiceClient() {
+        if (mGraphServiceClient == null) {
+            IGraphServiceClient client = GraphServiceClient.fromConfig(new GraphClientConfig(this, mSharedConfig));
+            if (mServiceRoot != null) {
+                client.setServiceRoot(mServiceRoot);
+            }
+            mGraphServiceClient = client;
+        }
+        return mGraphServiceClient;
+    }
+
+    /**
+     * @return The controller that makes the account's Graph calls, created on first use and
+     * closed with the account
+     */
+    synchronized GraphServiceController getGraphServiceController() {
+        if (mGraphServiceController == null) {
+            mGraphServiceController = new GraphServiceController(getGraphServiceClient());
+        }
+        return mGraphServiceController;
+    }
+
+    /**
+     * Adds the account's access token to the Authorization header of the request.
+     */
+    @Override
+    public void authenticateRequest(IHttpRequest request) {
+        request.addHeader("Authorization", "Bearer " + getAccessToken());
+    }
+
+    /**
+     * Gets the account's access token without locking, recording the time taken as the
+     * acquireToken operation
+     */
+    @SuppressWarnings("try")
+    public String getAccessToken() {
+        try (Span ignored = Tracer.getInstance().startSpan("acquireToken")) {
+            long start = System.nanoTime();
+            String accessToken = mTokenHolder.getAccessToken();
+            MetricsRegistry.getInstance().operation("acquireToken").recordSuccess(System.nanoTime() - start);
+            return accessToken;
+        }
+    }
+
+    /**
+     * @return The memory the account takes, estimated from its tokens when it was created
+     */
+    long getEstimatedBytes() {
+        return mEstimatedBytes;
+    }
+
+    /**
+     * Stops the background refreshes of the account's token and sends the account's batched
+     * operations that are still waiting
+     */
+    void close() {
+        mTokenHolder.shutdown();
+        GraphServiceController controller;
+        synchronized (this) {
+            controller = mGraphServiceController;
+        }
+        if (controller != null) {
+            controller.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mAccountId;
+    }
+
+    /**
+     * A token from a sign in also keeps the raw response, which repeats the tokens. It is
+     * counted for every token, as restored tokens have none and throw when asked for it.
+     */
+    private static long estimateBytes(OAuth2AccessToken token) {
+        if (token == null) {
+            return 0;
+        }
+        long tokens = estimateBytes(token.getAccessToken()) + estimateBytes(token.getRefreshToken());
+        return 2 * tokens + estimateBytes(token.getTokenType()) + estimateBytes(token.getScope());
+    }
+
+    /**
+     * Tokens are ASCII, so their strings take a byte per character
+     */
+    private static long estimateBytes(String value) {
+        return value == null ? 0 : STRING_OVERHEAD_BYTES + value.length();
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Collects Graph operations from concurrent callers and posts them to the /$batch endpoint,
+ * up to {@link #MAX_BATCH_SIZE} operations and {@link #MAX_BATCH_BYTES} of payload per request.
+ * A batch is sent as soon as it is full, or when the oldest queued operation has waited for the
+ * linger time. A chain larger than the byte limit is sent in a batch of its own.
+ * <p>
+ * Operations submitted together with {@link #submitChain(List)} always travel in the same
+ * batch and are chained with dependsOn, so Graph runs them in order. Each caller gets a
+ * future that completes with its own response.
+ * <p>
+ * Failures are retried with the {@link RetryPolicy}, its delays and its budget, as if each
+ * operation had been sent on its own. When Graph throttles or fails an operation inside the
+ * batch, that operation and the operations chained after it are queued again once the wait
+ * is over, honouring the operation's Retry-After. When the $batch request itself fails,
+ * every operation it carried is queued again if the policy would retry it. Waits are
+ * scheduled, so no thread is held while an operation waits for its retry.
+ * <p>
+ * The linger timers and retries of every coalescer share a small pool of daemon threads, which
+ * only hand the batches they release to a shared pool of sending threads, so a slow $batch
+ * request does not hold up the timers of other coalescers. After {@link #shutdown()},
+ * operations are sent as soon as they are queued.
+ */
+public class GraphBatchCoalescer {
+    // Upper limit on the number of requests Graph accepts in one JSON batch
+    public static final int MAX_BATCH_SIZE = 20;
+    // Graph rejects requests over 4 MB; the rest is left for the payload's envelope
+    public static final int MAX_BATCH_BYTES = 4 * 1024 * 1024 - 16 * 1024;
+    // Runs the linger timers and the retry timers of every coalescer
+    private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+    // Posts the batches released by the timers. Idle threads exit
+    private static final ExecutorService SENDER = createSender();
+
+    private final IGraphServiceClient mGraphServiceClient;
+    private final RetryPolicy mRetryPolicy;
+    private final long mLingerMillis;
+    private final List<PendingChain> mPending = new ArrayList<>();
+    private int mPendingSteps;
+    private long mPendingBytes;
+    private ScheduledFuture<?> mScheduledFlush;
+    private boolean mShutdown;
+
+    /**
+     * Creates a coalescer that retries with the policy shared by all Graph operations
+     *
+     * @param graphServiceClient The client used to post the batches
+     * @param lingerMillis       How long a queued operation waits for others to join its batch
+     */
+    public GraphBatchCoalescer(IGraphServiceClient graphServiceClient, long lingerMillis) {
+        this(graphServiceClient, RetryPolicy.getInstance(), lingerMillis);
+    }
+
+    /**
+     * @param graphServiceClient The client used to post the batches
+     * @param retryPolicy        Decides which failed operations are sent again, and when
+     * @param lingerMillis       How long a queued operation waits for others to join its batch
+     */
+    public GraphBatchCoalescer(IGraphServiceClient graphServiceClient, RetryPolicy retryPolicy, long lingerMillis) {
+        mGraphServiceClient = graphServiceClient;
+        mRetryPolicy = retryPolicy;
+        mLingerMillis = lingerMillis;
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "graph-batch-flush-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Idle threads exit, so a process that stopped batching holds none
+        scheduler.setKeepAliveTime(30, TimeUnit.SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        // Most linger timers are cancelled because their batch filled first
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    private static ExecutorService createSender() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                                      new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "graph-batch-send-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a single operation.
+     *
+     * @return A future completed with the operation's response
+     */
+    public CompletableFuture<BatchResponse> submit(BatchStep step) {
+        return submitChain(Collections.singletonList(step)).get(0);
+    }
+
+    /**
+     * Queues operations that must run in order. Each step depends on the one before it, and
+     * Graph fails the remaining steps with 424 if one of them fails.
+     *
+     * @return One future per step, in the order of the steps
+     */
+    public List<CompletableFuture<BatchResponse>> submitChain(List<BatchStep> steps) {
+        if (steps.isEmpty() || steps.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException(
+                    "A chain must have between 1 and " + MAX_BATCH_SIZE + " steps.");
+        }
+        PendingChain chain = new PendingChain(steps);
+        enqueue(chain);
+        return chain.mFutures;
+    }
+
+    /**
+     * Queues a chain, and sends a batch if the queue fills one
+     */
+    private void enqueue(PendingChain chain) {
+        List<PendingChain> fullBatch = null;
+        synchronized (mPending) {
+            mPending.add(chain);
+            mPendingSteps += chain.mSteps.size();
+            mPendingBytes += chain.mBytes;
+            if (mPendingSteps >= MAX_BATCH_SIZE || mPendingBytes >= MAX_BATCH_BYTES || mShutdown) {
+                // After shutdown nothing waits for others to join, such as a retry that came due
+                fullBatch = takeBatch();
+            }
+            else if (mScheduledFlush == null) {
+                mScheduledFlush = SCHEDULER.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        SENDER.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                flush();
+                            }
+                        });
+                    }
+                }, mLingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (fullBatch != null) {
+            // The submitting thread would only wait for the response, so it sends the batch itself
+            send(fullBatch);
+        }
+    }
+
+    /**
+     * Sends every queued operation now, in as many batches as needed.
+     */
+    public void flush() {
+        List<PendingChain> batch;
+        do {
+            synchronized (mPending) {
+                batch = takeBatch();
+            }
+            if (!batch.isEmpty()) {
+                send(batch);
+            }
+        } while (!batch.isEmpty());
+    }
+
+    /**
+     * Sends the queued operations and stops lingering. Operations queued afterwards, and the
+     * retries of operations already sent, are sent at once.
+     */
+    public void shutdown() {
+        synchronized (mPending) {
+            mShutdown = true;
+        }
+        flush();
+    }
+
+    /**
+     * Removes whole chains from the head of the queue until the next one would overflow the
+     * batch's steps or bytes. The first chain is always taken, however large. Must be called
+     * holding the mPending lock.
+     */
+    private List<PendingChain> takeBatch() {
+        List<PendingChain> batch = new ArrayList<>();
+        int size = 0;
+        long bytes = 0;
+        while (!mPending.isEmpty()
+               && size + mPending.get(0).mSteps.size() <= MAX_BATCH_SIZE
+               && (batch.isEmpty() || bytes + mPending.get(0).mBytes <= MAX_BATCH_BYTES)) {
+            PendingChain chain = mPending.remove(0);
+            size += chain.mSteps.size();
+            bytes += chain.mBytes;
+            batch.add(chain);
+        }
+        mPendingSteps -= size;
+        mPendingBytes -= bytes;
+        if (mPending.isEmpty() && mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        return batch;
+    }
+
+    private void send(List<PendingChain> batch) {
+        JsonArray requests = new JsonArray();
+        for (PendingChain chain : batch) {
+            String previousId = null;
+            for (BatchStep step : chain.mSteps) {
+                String id = String.valueOf(requests.size() + 1);
+                requests.add(step.toJson(id, previousId));
+                mRetryPolicy.recordAttempt(step.getOperation(), chain.mAttempt);
+                previousId = id;
+            }
+        }
+        JsonObject payload = new JsonObject();
+        payload.add("requests", requests);
+
+        BatchResponse[] responses = new BatchResponse[requests.size()];
+        try {
+            JsonObject result = mGraphServiceClient
+                    .customRequest("/$batch")
+                    .buildRequest()
+                    .post(payload);
+            for (JsonElement element : result.getAsJsonArray("responses")) {
+                JsonObject response = element.getAsJsonObject();
+                int index = Integer.parseInt(response.get("id").getAsString()) - 1;
+                responses[index] = new BatchResponse(
+                        response.get("status").getAsInt(),
+                        response.getAsJsonObject("headers"),
+                        response.get("body"));
+            }
+        } catch (Exception ex) {
+            DebugLogger.getInstance().writeLog(Level.WARNING, "exception on post batch", ex);
+            for (PendingChain chain : batch) {
+                retryOrFail(chain, 0, ex, chain.isIdempotentFrom(0), null, 0);
+            }
+            return;
+        }
+
+        int offset = 0;
+        for (PendingChain chain : batch) {
+            complete(chain, responses, offset);
+            offset += chain.mSteps.size();
+        }
+    }
+
+    /**
+     * Completes the futures of a chain's steps in order, up to its first failed step. That
+     * step and the ones chained after it are retried together, or completed with their
+     * responses if the failure is final.
+     *
+     * @param offset The index of the chain's first step in the responses
+     */
+    private void complete(PendingChain chain, BatchResponse[] responses, int offset) {
+        for (int i = 0; i < chain.mSteps.size(); i++) {
+            BatchResponse response = responses[offset + i];
+            if (response == null) {
+                retryOrFail(chain, i, new SendMailException("No response for batched request"), false, responses, offset);
+                return;
+            }
+            if (!response.isSuccess()) {
+                // The steps after it were not run, so only this step may have taken effect
+                retryOrFail(chain, i, response.toException(), chain.mSteps.get(i).isIdempotent(), responses, offset);
+                return;
+            }
+            chain.mFutures.get(i).complete(response);
+        }
+    }
+
+    /**
+     * Queues the steps of a chain from the failed one on again after the retry policy's
+     * delay, or completes their futures if the policy does not retry the failure.
+     *
+     * @param from       The index of the failed step
+     * @param idempotent True if sending the steps again can't make any of them take effect twice
+     * @param responses  The responses of the batch, or null if the batch request failed
+     * @param offset     The index of the chain's first step in the responses
+     */
+    private void retryOrFail(
+            PendingChain chain,
+            int from,
+            Exception failure,
+            boolean idempotent,
+            BatchResponse[] responses,
+            int offset) {
+        long delayMillis = mRetryPolicy.getRetryDelayMillis(
+                chain.mSteps.get(from).getOperation(), chain.mAttempt, failure, idempotent);
+        if (delayMillis >= 0) {
+            final PendingChain retry = chain.remainder(from);
+            SCHEDULER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // Queuing the retry may fill a batch, which is sent by the queuing thread
+                    SENDER.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            enqueue(retry);
+                        }
+                    });
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        for (int i = from; i < chain.mSteps.size(); i++) {
+            BatchResponse response = responses == null ? null : responses[offset + i];
+            if (response != null) {
+                chain.mFutures.get(i).complete(response);
+            }
+            else {
+                chain.mFutures.get(i).completeExceptionally(new SendMailException("exception on post batch", failure));
+            }
+        }
+    }
+
+    private static final class PendingChain {
+        final List<BatchStep> mSteps;
+        final List<CompletableFuture<BatchResponse>> mFutures;
+        // The attempt the chain is sent as, 1 for the first
+        final int mAttempt;
+        // The bytes the steps take in a $batch payload
+        final long mBytes;
+
+        PendingChain(List<BatchStep> steps) {
+            mSteps = new ArrayList<>(steps);
+            mFutures = new ArrayList<>(steps.size());
+            for (int i = 0; i < steps.size(); i++) {
+                mFutures.add(new CompletableFuture<BatchResponse>());
+            }
+            mAttempt = 1;
+            mBytes = serializedBytes(mSteps);
+        }
+
+        private PendingChain(List<BatchStep> steps, List<CompletableFuture<BatchResponse>> futures, int attempt) {
+            mSteps = new ArrayList<>(steps);
+            mFutures = new ArrayList<>(futures);
+            mAttempt = attempt;
+            mBytes = serializedBytes(mSteps);
+        }
+
+        private static long serializedBytes(List<BatchStep> steps) {
+            long bytes = 0;
+            for (BatchStep step : steps) {
+                // The comma that separates the step from the next one
+                bytes += step.getSerializedBytes() + 1;
+            }
+            return bytes;
+        }
+
+        /**
+         * @return The steps from the given one on, with their futures, as the next attempt
+         */
+        PendingChain remainder(int from) {
+            return new PendingChain(mSteps.subList(from, mSteps.size()),
+                                    mFutures.subList(from, mFutures.size()),
+                                    mAttempt + 1);
+        }
+
+        boolean isIdempotentFrom(int from) {
+            for (int i = from; i < mSteps.size(); i++) {
+                if (!mSteps.get(i).isIdempotent()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
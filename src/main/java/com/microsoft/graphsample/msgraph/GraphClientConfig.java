@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graph.authentication.IAuthenticationProvider;
+import com.microsoft.graph.concurrency.IExecutors;
+import com.microsoft.graph.core.DefaultClientConfig;
+import com.microsoft.graph.http.IHttpProvider;
+import com.microsoft.graph.logger.ILogger;
+import com.microsoft.graph.serializer.ISerializer;
+import com.microsoft.graphsample.connect.Constants;
+
+import java.net.http.HttpClient;
+
+/**
+ * Client configuration that selects the HTTP transport named by {@link Constants#HTTP_TRANSPORT}.
+ * The SDK's default HttpURLConnection provider is used unless the HTTP/2 transport is chosen.
+ * <p>
+ * A configuration can share the serializer, executors, logger and HTTP/2 connections of
+ * another, so the clients of many accounts differ only in how they authenticate requests.
+ */
+class GraphClientConfig extends DefaultClientConfig {
+    static final String TRANSPORT_HTTP2 = "http2";
+
+    private final IAuthenticationProvider mAuthenticationProvider;
+    private final GraphClientConfig mShared;
+    private IHttpProvider mHttpProvider;
+    private HttpClient mHttpClient;
+
+    GraphClientConfig(IAuthenticationProvider authenticationProvider) {
+        this(authenticationProvider, null);
+    }
+
+    /**
+     * @param shared The configuration whose serializer, executors, logger and HTTP/2
+     *               connections are used, or null to create them
+     */
+    GraphClientConfig(IAuthenticationProvider authenticationProvider, GraphClientConfig shared) {
+        mAuthenticationProvider = authenticationProvider;
+        mShared = shared;
+    }
+
+    @Override
+    public IAuthenticationProvider getAuthenticationProvider() {
+        return mAuthenticationProvider;
+    }
+
+    @Override
+    public ISerializer getSerializer() {
+        return mShared == null ? super.getSerializer() : mShared.getSerializer();
+    }
+
+    @Override
+    public IExecutors getExecutors() {
+        return mShared == null ? super.getExecutors() : mShared.getExecutors();
+    }
+
+    @Override
+    public ILogger getLogger() {
+        return mShared == null ? super.getLogger() : mShared.getLogger();
+    }
+
+    @Override
+    public synchronized IHttpProvider getHttpProvider() {
+        if (mHttpProvider == null) {
+            if (TRANSPORT_HTTP2.equalsIgnoreCase(Constants.HTTP_TRANSPORT)) {
+                HttpTransportOptions options = HttpTransportOptions.fromConstants();
+                mHttpProvider = new Http2HttpProvider(getSerializer(),
+                                                      getAuthenticationProvider(),
+                                                      getExecutors(),
+                                                      getLogger(),
+                                                      options,
+                                                      mShared == null
+                                                      ? Http2HttpProvider.newHttpClient(options)
+                                                      : mShared.getHttpClient(options));
+            }
+            else {
+                mHttpProvider = super.getHttpProvider();
+            }
+        }
+        return mHttpProvider;
+    }
+
+    /**
+     * @return The HTTP/2 client shared by the configurations that share this one
+     */
+    private synchronized HttpClient getHttpClient(HttpTransportOptions options) {
+        if (mHttpClient == null) {
+            mHttpClient = Http2HttpProvider.newHttpClient(options);
+        }
+        return mHttpClient;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.github.scribejava.core.model.OAuth2AccessToken;
+import com.github.scribejava.core.oauth.OAuth20Service;
+import com.microsoft.graph.logger.LoggerLevel;
+import com.microsoft.graphsample.connect.Constants;
+import com.microsoft.graphsample.connect.DebugLogger;
+import com.microsoft.graphsample.connect.TokenCache;
+import com.microsoft.graphsample.connect.TokenHolder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Keeps the token holders and Graph clients of many accounts, so that one process can act for
+ * many mailboxes at once. The AuthenticationManager and {@link GraphServiceClientManager}
+ * singletons remain the single signed in user of the console sample.
+ * <p>
+ * Accounts are kept in least recently used order. When the pool holds more than its maximum
+ * number of accounts, or more than its memory budget as estimated from each account's tokens,
+ * the least recently used accounts are evicted. Each account's tokens are kept encrypted in
+ * its own {@link TokenCache} file, named by a hash of the account id, so an evicted account is
+ * restored from its file on its next use and refreshes its token if it has expired.
+ * <p>
+ * The accounts share the OAuth service, a few threads for token refreshes, the Graph SDK's
+ * serializer and executors, the threads of the batch timers and of the non-blocking send
+ * pipeline, and the HTTP/2 connections to Graph. An account in the pool costs memory but no
+ * threads or connections of its own.
+ */
+public class GraphClientPool implements Closeable {
+    private final File mDirectory;
+    private final File mKeyFile;
+    private final int mMaxAccounts;
+    private final long mMaxBytes;
+    private final Supplier<OAuth20Service> mOAuthService;
+    private final ScheduledExecutorService mRefreshScheduler;
+    private final GraphClientConfig mSharedConfig;
+    // Access ordered, so iteration starts at the least recently used account
+    private final LinkedHashMap<String, GraphAccount> mAccounts = new LinkedHashMap<>(16, 0.75f, true);
+    private long mEstimatedBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private volatile String mServiceRoot;
+
+    /**
+     * Creates a pool with the limits and directory in {@link Constants}
+     *
+     * @param oAuthService Provides the service used to refresh the accounts' tokens
+     */
+    public GraphClientPool(Supplier<OAuth20Service> oAuthService) throws IOException {
+        this(new File(Constants.ACCOUNT_POOL_DIRECTORY), Constants.ACCOUNT_POOL_MAX_ACCOUNTS,
+             Constants.ACCOUNT_POOL_MAX_BYTES, oAuthService);
+    }
+
+    /**
+     * @param directory    The directory of the accounts' token files. It is created if it does not exist
+     * @param maxAccounts  The most accounts held at once
+     * @param maxBytes     The most memory the accounts held are estimated to take
+     * @param oAuthService Provides the service used to refresh the accounts' tokens
+     */
+    public GraphClientPool(
+            File directory,
+            int maxAccounts,
+            long maxBytes,
+            Supplier<OAuth20Service> oAuthService) throws IOException {
+        if (maxAccounts < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("The pool must have room for at least one account.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create account directory " + directory);
+        }
+        mDirectory = directory;
+        mKeyFile = new File(directory, "accounts.key");
+        mMaxAccounts = maxAccounts;
+        mMaxBytes = maxBytes;
+        mOAuthService = oAuthService;
+        mRefreshScheduler = TokenHolder.newRefreshScheduler(Constants.ACCOUNT_POOL_REFRESH_THREADS);
+        mSharedConfig = new GraphClientConfig(null);
+        mSharedConfig.getLogger().setLoggingLevel(LoggerLevel.ERROR);
+    }
+
+    /**
+     * Adds an account that signed in, or gives an account in the pool a new token, and saves
+     * the token to the account's file.
+     *
+     * @return The account
+     */
+    public GraphAccount signIn(String accountId, OAuth2AccessToken token) {
+        synchronized (this) {
+            GraphAccount account = mAccounts.get(accountId);
+            if (account != null) {
+                account.getTokenHolder().setToken(token);
+                return account;
+            }
+        }
+        TokenHolder tokenHolder = new TokenHolder(mOAuthService, mRefreshScheduler);
+        tokenHolder.setTokenCache(tokenCache(accountId));
+        tokenHolder.setToken(token);
+        return add(new GraphAccount(accountId, tokenHolder, mSharedConfig, mServiceRoot));
+    }
+
+    /**
+     * Gets an account, restoring it from its token file if it is not in the pool.
+     *
+     * @return The account, or null if it never signed in or has signed out
+     */
+    public GraphAccount get(String accountId) {
+        synchronized (this) {
+            GraphAccount account = mAccounts.get(accountId);
+            if (account != null) {
+                mHits++;
+                return account;
+            }
+            mMisses++;
+        }
+        // Read and decrypted outside the lock, so a miss does not hold up other accounts
+        TokenCache tokenCache = tokenCache(accountId);
+        OAuth2AccessToken token = tokenCache.load();
+        if (token == null) {
+            return null;
+        }
+        TokenHolder tokenHolder = new TokenHolder(mOAuthService, mRefreshScheduler);
+        tokenHolder.setToken(token);
+        tokenHolder.setTokenCache(tokenCache);
+        return add(new GraphAccount(accountId, tokenHolder, mSharedConfig, mServiceRoot));
+    }
+
+    /**
+     * Removes an account from the pool and deletes its token file
+     */
+    public void signOut(String accountId) {
+        synchronized (this) {
+            GraphAccount account = mAccounts.remove(accountId);
+            if (account != null) {
+                mEstimatedBytes -= account.getEstimatedBytes();
+                account.close();
+            }
+        }
+        tokenCache(accountId).clear();
+    }
+
+    /**
+     * Points the Graph clients created from now on at another service root, such as the one
+     * of a {@link com.microsoft.graphsample.loadtest.FakeGraphServer}
+     */
+    public void setServiceRoot(String serviceRoot) {
+        mServiceRoot = serviceRoot;
+    }
+
+    /**
+     * @return The accounts held
+     */
+    public synchronized int size() {
+        return mAccounts.size();
+    }
+
+    /**
+     * @return The memory the accounts held are estimated to take
+     */
+    public synchronized long getEstimatedBytes() {
+        return mEstimatedBytes;
+    }
+
+    /**
+     * @return Calls to {@link #get(String)} that found the account in the pool
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return Calls to {@link #get(String)} that did not find the account in the pool
+     */
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return Accounts evicted to stay within the limits
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * Stops the token refreshes of every account and sends their batched operations that are
+     * still waiting. Tokens stay in their files.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            for (GraphAccount account : mAccounts.values()) {
+                account.close();
+            }
+            mAccounts.clear();
+            mEstimatedBytes = 0;
+        }
+        mRefreshScheduler.shutdownNow();
+        mSharedConfig.getExecutors().shutdownBackgroundExecutors();
+    }
+
+    /**
+     * Adds an account as the most recently used and evicts the least recently used accounts
+     * until the pool is within its limits. If another thread added the account first, that
+     * account is kept.
+     *
+     * @return The account in the pool
+     */
+    private synchronized GraphAccount add(GraphAccount account) {
+        GraphAccount existing = mAccounts.get(account.getAccountId());
+        if (existing != null) {
+            account.close();
+            return existing;
+        }
+        mAccounts.put(account.getAccountId(), account);
+        mEstimatedBytes += account.getEstimatedBytes();
+        Iterator<GraphAccount> leastRecentlyUsed = mAccounts.values().iterator();
+        while ((mAccounts.size() > mMaxAccounts || mEstimatedBytes > mMaxBytes) && mAccounts.size() > 1) {
+            GraphAccount evicted = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            mEstimatedBytes -= evicted.getEstimatedBytes();
+            mEvictions++;
+            evicted.close();
+            DebugLogger.getInstance().writeLog(Level.INFO, "Evicted account {} from the client pool", evicted);
+        }
+        return account;
+    }
+
+    private TokenCache tokenCache(String accountId) {
+        return new TokenCache(new File(mDirectory, hash(accountId) + ".token"), mKeyFile);
+    }
+
+    /**
+     * @return The SHA-256 of the account id in hex, so token file names do not reveal accounts
+     */
+    private static String hash(String accountId) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(accountId.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+}
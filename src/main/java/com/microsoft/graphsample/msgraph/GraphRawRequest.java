@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graph.http.HttpMethod;
+import com.microsoft.graph.http.IHttpProvider;
+import com.microsoft.graph.http.IHttpRequest;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.options.HeaderOption;
+import com.microsoft.graph.options.Option;
+import com.microsoft.graphsample.metrics.OperationMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Graph request sent without the SDK's response handling, for the few operations that need
+ * the response status and headers (ETag, Content-Length, 304 Not Modified) or the raw body
+ * stream. The request is authenticated by the client's authentication provider, like any
+ * SDK request. It goes over the client's {@link Http2HttpProvider} when that is the
+ * configured transport, and otherwise over an HttpURLConnection that times out as set by
+ * {@link HttpTransportOptions#fromConstants()}.
+ */
+final class GraphRawRequest implements IHttpRequest {
+    private static final HttpTransportOptions OPTIONS = HttpTransportOptions.fromConstants();
+
+    private final IGraphServiceClient mGraphServiceClient;
+    private final HttpMethod mMethod;
+    private final URL mUrl;
+    private final List<HeaderOption> mHeaders = new ArrayList<>();
+
+    /**
+     * @param graphServiceClient The client whose service root and authentication provider are used
+     * @param method             The HTTP method
+     * @param url                The url relative to the service root, for example "/me/photo/$value"
+     */
+    GraphRawRequest(IGraphServiceClient graphServiceClient, HttpMethod method, String url) throws IOException {
+        mGraphServiceClient = graphServiceClient;
+        mMethod = method;
+        mUrl = new URL(graphServiceClient.getServiceRoot() + url);
+    }
+
+    /**
+     * Sends the request without a body.
+     */
+    Response send() throws IOException {
+        return send(null);
+    }
+
+    /**
+     * Sends the request.
+     *
+     * @param body The request body, or null for none
+     * @return The response. The caller must close it
+     */
+    Response send(byte[] body) throws IOException {
+        mGraphServiceClient.getAuthenticationProvider().authenticateRequest(this);
+        if (body != null) {
+            OperationMetrics.addBytesSentToCurrent(body.length);
+        }
+        IHttpProvider httpProvider = mGraphServiceClient.getHttpProvider();
+        Response response;
+        if (httpProvider instanceof Http2HttpProvider) {
+            response = new Response(((Http2HttpProvider) httpProvider).sendRaw(this, body));
+        }
+        else {
+            response = new Response(openConnection(body));
+        }
+        OperationMetrics.addBytesReceivedToCurrent(response.getContentLength());
+        return response;
+    }
+
+    private HttpURLConnection openConnection(byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        connection.setRequestMethod(mMethod.toString());
+        connection.setUseCaches(false);
+        connection.setConnectTimeout((int) OPTIONS.getConnectTimeoutMillis());
+        // Bounds each wait for data, so a stalled response fails while a slow download goes on
+        connection.setReadTimeout((int) OPTIONS.getRequestTimeoutMillis());
+        for (HeaderOption header : mHeaders) {
+            connection.setRequestProperty(header.getName(), header.getValue().toString());
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        return connection;
+    }
+
+    @Override
+    public URL getRequestUrl() {
+        return mUrl;
+    }
+
+    @Override
+    public HttpMethod getHttpMethod() {
+        return mMethod;
+    }
+
+    @Override
+    public List<HeaderOption> getHeaders() {
+        return mHeaders;
+    }
+
+    @Override
+    public List<Option> getOptions() {
+        return Collections.<Option>unmodifiableList(mHeaders);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        mHeaders.add(new HeaderOption(name, value));
+    }
+
+    @Override
+    public void setUseCaches(boolean useCaches) {
+        // Raw requests are never served from the URL connection cache
+    }
+
+    @Override
+    public boolean getUseCaches() {
+        return false;
+    }
+
+    /**
+     * The status, headers and body stream of a raw request.
+     */
+    static final class Response implements Closeable {
+        // One of the two is set, depending on the transport the request went over
+        private final HttpURLConnection mConnection;
+        private final JdkHttpConnection mJdkConnection;
+        private final int mStatus;
+
+        private Response(HttpURLConnection connection) throws IOException {
+            mConnection = connection;
+            mJdkConnection = null;
+            mStatus = connection.getResponseCode();
+        }
+
+        private Response(JdkHttpConnection connection) throws IOException {
+            mConnection = null;
+            mJdkConnection = connection;
+            mStatus = connection.getResponseCode();
+        }
+
+        int getStatus() {
+            return mStatus;
+        }
+
+        boolean isSuccess() {
+            return mStatus >= 200 && mStatus < 300;
+        }
+
+        /**
+         * Throws if Graph throttled the request, so the caller's {@link RetryPolicy} can
+         * wait as long as Graph asked
+         */
+        void checkThrottled() throws GraphThrottledException {
+            if (GraphThrottledException.isThrottlingStatus(mStatus)) {
+                throw new GraphThrottledException(mStatus,
+                                                  GraphThrottledException.parseRetryAfter(getHeader("Retry-After")),
+                                                  null);
+            }
+        }
+
+        /**
+         * @return The named response header, or null if the response does not have it
+         */
+        String getHeader(String name) {
+            return mJdkConnection != null ? mJdkConnection.getHeader(name) : mConnection.getHeaderField(name);
+        }
+
+        /**
+         * @return The Content-Length of the response, or -1 if it is not known
+         */
+        long getContentLength() {
+            return mJdkConnection != null ? mJdkConnection.getContentLength() : mConnection.getContentLengthLong();
+        }
+
+        /**
+         * @return The response body, or the error body when the status is not a success
+         */
+        InputStream getBody() throws IOException {
+            if (mJdkConnection != null) {
+                return mJdkConnection.getInputStream();
+            }
+            return isSuccess() ? mConnection.getInputStream() : mConnection.getErrorStream();
+        }
+
+        @Override
+        public void close() {
+            if (mJdkConnection != null) {
+                mJdkConnection.close();
+                return;
+            }
+            try {
+                InputStream body = getBody();
+                if (body != null) {
+                    body.close();
+                }
+            } catch (IOException ex) {
+                // The connection is released either way
+            }
+        }
+    }
+}
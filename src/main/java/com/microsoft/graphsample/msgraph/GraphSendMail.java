@@ -4,28 +4,70 @@
  */
 package com.microsoft.graphsample.msgraph;
 
+import com.microsoft.graph.models.extensions.Attachment;
 import com.microsoft.graph.models.extensions.DriveItem;
 import com.microsoft.graph.models.extensions.Message;
 import com.microsoft.graph.models.extensions.Permission;
 import com.microsoft.graph.models.extensions.User;
 import com.microsoft.graphsample.connect.Constants;
 import com.microsoft.graphsample.connect.DebugLogger;
+import com.microsoft.graphsample.metrics.Span;
+import com.microsoft.graphsample.metrics.Tracer;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.logging.Level;
 
 /**
  * This class handles the send mail operation of the app.
  * The app must be connected to Office 365 before this activity can send an email.
  * It also uses the GraphServiceController to send the message.
+ * <p>
+ * Instances hold no per-send state, so a single GraphSendMail can be shared by the
+ * threads of a {@link BulkSendEngine}.
+ * <p>
+ * The mail body is rendered for each recipient from a {@link MailTemplate}: the file named by
+ * {@link Constants#MAIL_TEMPLATE_FILE} if set, or else {@link Constants#MESSAGE_BODY}.
  */
-public class GraphSendMail {
+public class GraphSendMail implements Closeable {
+    private static final MailTemplate DEFAULT_MAIL_TEMPLATE = MailTemplate.compile(Constants.MESSAGE_BODY);
+
     final private GraphServiceController mGraphServiceController;
-    DebugLogger mLogger;
-    private String mRecipientEmailAddress;
+    // False if the controller belongs to a pool account, which closes it
+    final private boolean mOwnsController;
+    final private SendPlanner mSendPlanner;
+    final private MailTemplate mMailTemplate;
+    final DebugLogger mLogger;
 
     public GraphSendMail() throws SendMailException {
+        this(null);
+    }
+
+    /**
+     * Creates a pipeline that sends as one account of a {@link GraphClientPool}
+     *
+     * @param account The account to send as, or null for the signed in user of the sample
+     */
+    public GraphSendMail(GraphAccount account) throws SendMailException {
         try {
-            mGraphServiceController = new GraphServiceController();
+            mGraphServiceController = account == null
+                                      ? new GraphServiceController()
+                                      : account.getGraphServiceController();
+            mOwnsController = account == null;
+            mSendPlanner = new SendPlanner(Constants.INLINE_ATTACHMENT_MAX_BYTES);
+            mMailTemplate = Constants.MAIL_TEMPLATE_FILE == null
+                            ? DEFAULT_MAIL_TEMPLATE
+                            : MailTemplate.load(Paths.get(Constants.MAIL_TEMPLATE_FILE));
             mLogger = DebugLogger.getInstance();
 
         } catch (Exception e) {
@@ -40,110 +82,663 @@ public class GraphSendMail {
      * This method sends the email using the address stored in the mEmailEditText view.
      * The subject and body of the message is stored in the strings.xml file.
      * <p>
-     * The following calls are made asynchronously in a chain of callback invocations.
+     * The following calls are made in a chain.
      * 1. Get the user's profile picture from Microsoft Graph
      * 2. Upload the profile picture to the user's OneDrive root folder
      * 3. Get a sharing link to the picture from OneDrive
-     * 4. Create and post a draft email
-     * 5. Get the draft message
-     * 6. Attach the profile picture to the draft mail as a byte array
-     * 7. Send the draft email
+     * 4. Send the mail with the calls chosen by the {@link SendPlanner}. Unless a draft is
+     * required, this is a single sendMail call with the picture attached inline.
      */
 
+    @SuppressWarnings("try")
     public void sendMail(String sendAddress) {
-        mRecipientEmailAddress = sendAddress;
-        byte[] photoBytes = null;
-        try {
+        try (Span ignored = Tracer.getInstance().startSpan("sendMail")) {
+            try {
+                SendAssets assets = prepareAssets();
+                if (assets != null) {
+                    sendMail(sendAddress, assets);
+                }
+            } catch (SendMailException ex) {
+                mLogger.writeLog(Level.SEVERE, ex.getMessage(), ex);
+            } finally {
+                mLogger.writeLog(Level.INFO, "Started send mail operation ");
+            }
+        }
+    }
+
+    /**
+     * Runs steps 1 to 3 of the send chain. The result does not depend on the recipient, so
+     * callers that send the same mail to many recipients run this once and pass the result
+     * to {@link #sendMail(MailRecipient, SendAssets)} for every recipient.
+     * <p>
+     * A picture that was uploaded and shared before is found in the upload index by its
+     * content hash, and steps 2 and 3 are skipped.
+     *
+     * @return The photo and its sharing link, or null if the photo could not be uploaded
+     * @throws SendMailException
+     */
+    @SuppressWarnings("try")
+    public SendAssets prepareAssets() throws SendMailException {
+        try (Span ignored = Tracer.getInstance().startSpan("prepareAssets")) {
             //1. Get the signed in user's profile picture
-            photoBytes = mGraphServiceController.getUserProfilePicture();
-            if (photoBytes != null) {
-
-                //2. Upload the profile picture to OneDrive
-                DriveItem driveItem = mGraphServiceController.uploadPictureToOneDrive(photoBytes);
-                if (driveItem != null) {
-                    //3. Get the sharing link and if success, call step 4 helper
-                    mLogger.writeLog(Level.INFO, "Getting the sharing link ");
-                    getPermissionSharingLink(driveItem, photoBytes);
+            byte[] photoBytes = mGraphServiceController.getUserProfilePicture();
+            if (photoBytes == null) {
+                return null;
+            }
+            SendAssets uploaded = mGraphServiceController.findUploadedPicture(photoBytes);
+            if (uploaded != null) {
+                return uploaded;
+            }
+
+            //2. Upload the profile picture to OneDrive
+            DriveItem driveItem = mGraphServiceController.uploadPictureToOneDrive(photoBytes);
+            if (driveItem == null) {
+                return null;
+            }
+
+            //3. Get a sharing link to the picture uploaded to OneDrive
+            mLogger.writeLog(Level.INFO, "Getting the sharing link ");
+            Permission permission = mGraphServiceController.getPermissionSharingLink(driveItem.id);
+            mGraphServiceController.indexUploadedPicture(photoBytes, driveItem, permission);
+            return new SendAssets(photoBytes, driveItem, permission);
+        }
+    }
+
+    /**
+     * Like {@link #prepareAssets()}, but uploads the picture and creates its sharing link in a
+     * single $batch request. The returned assets have no DriveItem, unless they come from the
+     * upload index.
+     *
+     * @return The photo and its sharing link, or null if there is no photo
+     * @throws SendMailException
+     */
+    @SuppressWarnings("try")
+    public SendAssets prepareAssetsBatched() throws SendMailException {
+        try (Span ignored = Tracer.getInstance().startSpan("prepareAssets")) {
+            byte[] photoBytes = mGraphServiceController.getUserProfilePicture();
+            if (photoBytes == null) {
+                return null;
+            }
+            SendAssets uploaded = mGraphServiceController.findUploadedPicture(photoBytes);
+            if (uploaded != null) {
+                return uploaded;
+            }
+            mLogger.writeLog(Level.INFO, "Uploading the picture and getting the sharing link ");
+            try {
+                Permission permission = mGraphServiceController.uploadAndSharePictureBatched(photoBytes).get();
+                mGraphServiceController.indexUploadedPicture(photoBytes, null, permission);
+                return new SendAssets(photoBytes, null, permission);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SendMailException("Interrupted while uploading the picture", ex);
+            } catch (ExecutionException ex) {
+                throw new SendMailException("exception on upload picture to OneDrive ", ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Runs step 4 of the send chain for one recipient. Safe to call from several threads
+     * at once with the same assets.
+     *
+     * @param sendAddress The recipient email address
+     * @param assets      The result of {@link #prepareAssets()}
+     * @return The plan the mail was sent with
+     * @throws SendMailException
+     */
+    public SendPlan sendMail(String sendAddress, SendAssets assets) throws SendMailException {
+        return sendMail(new MailRecipient(sendAddress), assets, false);
+    }
+
+    /**
+     * Runs step 4 of the send chain for one recipient, with the body personalized from the
+     * recipient's fields. Safe to call from several threads at once with the same assets.
+     *
+     * @param recipient The recipient and its template fields
+     * @param assets    The result of {@link #prepareAssets()}
+     * @return The plan the mail was sent with
+     * @throws SendMailException
+     */
+    public SendPlan sendMail(MailRecipient recipient, SendAssets assets) throws SendMailException {
+        return sendMail(recipient, assets, false);
+    }
+
+    /**
+     * Runs step 4 of the send chain for one recipient.
+     *
+     * @param recipient     The recipient and its template fields
+     * @param assets        The result of {@link #prepareAssets()}
+     * @param draftRequired True to send through a draft message instead of a single sendMail call
+     * @return The plan the mail was sent with
+     * @throws SendMailException
+     */
+    @SuppressWarnings("try")
+    public SendPlan sendMail(MailRecipient recipient, SendAssets assets, boolean draftRequired) throws SendMailException {
+        try (Span ignored = Tracer.getInstance().startSpan("send")) {
+            return sendWithPlan(RecipientGroup.to(recipient.getAddress()),
+                                createMailBody(mMailTemplate, recipient, assets), assets, draftRequired, null);
+        }
+    }
+
+    /**
+     * Runs step 4 of the send chain for one recipient and records each completed step in the
+     * outbox journal. Steps the job completed in an earlier run are not run again, and the
+     * steps after them continue with the draft they created. A step an earlier run started
+     * and did not record is first looked up in the mailbox, and only run again if it did not
+     * take effect.
+     *
+     * @param recipient The recipient and its template fields
+     * @param assets    The result of {@link #prepareAssets()}
+     * @param job       The recipient's job in the outbox journal
+     * @return The plan the mail was sent with
+     * @throws SendMailException If a step failed, or if a sendMail call of an earlier run
+     *                           started and did not complete, so the mail may have been sent
+     */
+    @SuppressWarnings("try")
+    public SendPlan sendMail(MailRecipient recipient, SendAssets assets, OutboxJournal.Job job)
+            throws SendMailException {
+        if (recoverDraft(job)) {
+            return mSendPlanner.plan(assets.getPhotoBytes().length, true);
+        }
+        // A draft created by an earlier run is finished rather than sent again as a new message
+        boolean hasDraft = job.isStepDone(SendPlan.Step.CREATE_DRAFT)
+                           || job.isStepDone(SendPlan.Step.CREATE_DRAFT_WITH_ATTACHMENT);
+        try (Span ignored = Tracer.getInstance().startSpan("send")) {
+            return sendWithPlan(RecipientGroup.to(recipient.getAddress()),
+                                createMailBody(mMailTemplate, recipient, assets), assets, hasDraft, job);
+        }
+    }
+
+    /**
+     * Runs step 4 of the send chain once for a group of recipients, who all receive the same
+     * message. The body is rendered without recipient fields, so placeholders other than the
+     * sharing link are left empty.
+     *
+     * @param recipients The To, Cc and Bcc recipients of the message
+     * @param assets     The result of {@link #prepareAssets()}
+     * @return The plan the mail was sent with
+     * @throws SendMailException
+     */
+    @SuppressWarnings("try")
+    public SendPlan sendMailPacked(RecipientGroup recipients, SendAssets assets) throws SendMailException {
+        try (Span ignored = Tracer.getInstance().startSpan("sendPacked")) {
+            return sendWithPlan(recipients, createMailBody(mMailTemplate, null, assets), assets, false, null);
+        }
+    }
+
+    /**
+     * Makes the Graph calls of the plan for one message
+     *
+     * @param job The job to record the completed steps in, or null to send without the journal
+     */
+    private SendPlan sendWithPlan(
+            RecipientGroup recipients,
+            String mailBody,
+            SendAssets assets,
+            boolean draftRequired,
+            OutboxJournal.Job job) throws SendMailException {
+        if (job != null && SendPlan.Step.SEND_MAIL.name().equals(job.getStartedStep())) {
+            throw new SendMailException("The mail to " + recipients
+                                        + " may have been sent by an earlier run and is not sent again");
+        }
+        SendPlan plan = mSendPlanner.plan(assets.getPhotoBytes().length, draftRequired);
+        mLogger.writeLog(Level.INFO, "Sending with plan {}", plan);
+        Message draftMessage = null;
+        for (SendPlan.Step step : plan.getSteps()) {
+            if (job != null && job.isStepDone(step)) {
+                String draftId = job.getStepValue(step);
+                if (draftId != null && step != SendPlan.Step.ADD_ATTACHMENT) {
+                    draftMessage = new Message();
+                    draftMessage.id = draftId;
                 }
+                mLogger.writeLog(Level.INFO, "Step {} already done for {}", step, recipients);
+                continue;
+            }
+            if (job != null && step.name().equals(job.getStartedStep())
+                && settleStartedStep(step, draftMessage, assets, job)) {
+                continue;
+            }
+            // Tags the draft, so an earlier run's draft is found if its id was not recorded
+            String outboxMarker = job != null && createsDraft(step) ? UUID.randomUUID().toString() : null;
+            checkpoint(job, step, false, outboxMarker);
+            try {
+                draftMessage = runStep(step, recipients, mailBody, assets, draftMessage, outboxMarker, job);
+            } catch (SendMailException | RuntimeException ex) {
+                if (job != null && RetryPolicy.isRefused(ex)) {
+                    try {
+                        job.stepFailed(step);
+                    } catch (IOException journalException) {
+                        ex.addSuppressed(journalException);
+                    }
+                }
+                throw ex;
             }
-        } catch (SendMailException ex) {
-            mLogger.writeLog(Level.SEVERE, ex.getMessage(), ex);
-        } finally {
-            mLogger.writeLog(Level.INFO, "Started send mail operation ");
         }
+        if (job != null) {
+            try {
+                job.done();
+            } catch (IOException ex) {
+                throw new SendMailException("Could not write the outbox journal", ex);
+            }
+        }
+        return plan;
     }
 
+    /**
+     * Settles a create-draft step that an earlier run started and did not record the result
+     * of. The draft is looked up by the marker it was created with: if it exists it is
+     * recorded as the step's result and finished, and if it does not the step runs again. A
+     * message with the marker that is no longer a draft was sent, so the job is done.
+     *
+     * @return True if the job's mail was already sent
+     */
+    private boolean recoverDraft(OutboxJournal.Job job) throws SendMailException {
+        String outboxMarker = job.getStartedValue();
+        if (outboxMarker == null || !createsDraft(SendPlan.Step.valueOf(job.getStartedStep()))) {
+            return false;
+        }
+        SendPlan.Step step = SendPlan.Step.valueOf(job.getStartedStep());
+        Message draftMessage = mGraphServiceController.findMessageByOutboxMarker(outboxMarker);
+        try {
+            if (draftMessage == null) {
+                mLogger.writeLog(Level.INFO, "No draft of job {} was created, creating it again", job.getKey());
+                job.stepFailed(step);
+            }
+            else if (Boolean.FALSE.equals(draftMessage.isDraft)) {
+                mLogger.writeLog(Level.INFO, "Message {} of job {} was already sent", draftMessage.id, job.getKey());
+                job.stepDone(step, draftMessage.id);
+                job.done();
+                return true;
+            }
+            else {
+                mLogger.writeLog(Level.INFO, "Found draft {} of job {}", draftMessage.id, job.getKey());
+                job.stepDone(step, draftMessage.id);
+            }
+        } catch (IOException ex) {
+            throw new SendMailException("Could not write the outbox journal", ex);
+        }
+        return false;
+    }
 
-    public User getMeUser() throws SendMailException {
-        return mGraphServiceController.getUser();
+    /**
+     * Settles a step on an existing draft that an earlier run started and did not record the
+     * result of. An attachment already on the draft is recorded instead of posted twice, and a
+     * draft that is gone or no longer a draft was sent.
+     *
+     * @return True if the step took effect and was recorded as done, false if it must run again
+     */
+    private boolean settleStartedStep(
+            SendPlan.Step step,
+            Message draftMessage,
+            SendAssets assets,
+            OutboxJournal.Job job) throws SendMailException {
+        String value;
+        switch (step) {
+            case ADD_ATTACHMENT:
+                Attachment attachment = mGraphServiceController.findPictureAttachment(
+                        draftMessage.id, assets.getPhotoBytes());
+                if (attachment == null) {
+                    return false;
+                }
+                value = attachment.id;
+                break;
+            case SEND_DRAFT:
+                Message message = mGraphServiceController.findMessage(draftMessage.id);
+                if (message != null && !Boolean.FALSE.equals(message.isDraft)) {
+                    return false;
+                }
+                value = null;
+                break;
+            default:
+                // Creating a draft is settled by recoverDraft, and the other steps can run again
+                return false;
+        }
+        mLogger.writeLog(Level.INFO, "Step {} of job {} took effect in an earlier run", step, job.getKey());
+        checkpoint(job, step, true, value);
+        return true;
+    }
+
+    private static boolean createsDraft(SendPlan.Step step) {
+        return step == SendPlan.Step.CREATE_DRAFT || step == SendPlan.Step.CREATE_DRAFT_WITH_ATTACHMENT;
     }
 
     /**
-     * Gets the picture sharing link from OneDrive and calls the step 4 helper
+     * Makes the Graph call of one step and records its completion in the job
      *
-     * @param driveItem
-     * @param bytes
+     * @param outboxMarker The marker to tag a created draft with, or null
+     * @return The draft message the following steps work on
      */
-    private void getPermissionSharingLink(DriveItem driveItem, final byte[] bytes) {
-        //3. Get a sharing link to the picture uploaded to OneDrive
+    private Message runStep(
+            SendPlan.Step step,
+            RecipientGroup recipients,
+            String mailBody,
+            SendAssets assets,
+            Message draftMessage,
+            String outboxMarker,
+            OutboxJournal.Job job) throws SendMailException {
+        String value = null;
+        switch (step) {
+            case SEND_MAIL:
+                mGraphServiceController.sendNewMessage(
+                        recipients, Constants.SUBJECT_TEXT, mailBody, assets.getPhotoBytes());
+                break;
+            case CREATE_DRAFT_WITH_ATTACHMENT:
+                draftMessage = checkDraft(mGraphServiceController.createDraftMailWithPicture(
+                        recipients, Constants.SUBJECT_TEXT, mailBody, assets.getPhotoBytes(), outboxMarker));
+                value = draftMessage.id;
+                break;
+            case CREATE_DRAFT:
+                draftMessage = checkDraft(mGraphServiceController.createDraftMail(
+                        recipients, Constants.SUBJECT_TEXT, mailBody, outboxMarker));
+                value = draftMessage.id;
+                break;
+            case GET_DRAFT:
+                draftMessage = mGraphServiceController.getDraftMessage(draftMessage.id);
+                value = draftMessage.id;
+                break;
+            case ADD_ATTACHMENT:
+                Attachment attachment = addPictureToDraftMessage(
+                        draftMessage, assets.getPermission(), assets.getPhotoBytes());
+                value = attachment == null ? null : attachment.id;
+                break;
+            case SEND_DRAFT:
+                sendDraftMessage(draftMessage);
+                break;
+        }
+        checkpoint(job, step, true, value);
+        return draftMessage;
+    }
+
+    /**
+     * Records the start or the completion of a step in the job's journal
+     */
+    private static void checkpoint(OutboxJournal.Job job, SendPlan.Step step, boolean done, String value)
+            throws SendMailException {
+        if (job == null) {
+            return;
+        }
         try {
-            createDraftMail(mGraphServiceController.getPermissionSharingLink(driveItem.id), bytes);
-        } catch (SendMailException ex) {
-            mLogger.writeLog(Level.SEVERE, ex.getMessage(), ex);
+            if (done) {
+                job.stepDone(step, value);
+            }
+            else {
+                job.stepStarted(step, value);
+            }
+        } catch (IOException ex) {
+            throw new SendMailException("Could not write the outbox journal", ex);
         }
     }
 
     /**
-     * Creates a draft mail and calls the step 5 helper
+     * Sends a message with a file attached. Files small enough to travel inline are sent
+     * with a single sendMail call. Larger files, such as multi-megabyte reports, are streamed
+     * from disk to a draft through an attachment upload session before the draft is sent.
      *
-     * @param permission
-     * @param bytes
+     * @param sendAddress The recipient email address
+     * @param subject     The subject of the message
+     * @param body        The HTML body of the message
+     * @param file        The file to attach
+     * @return The plan the mail was sent with
+     * @throws SendMailException
+     */
+    public SendPlan sendMailWithAttachment(String sendAddress, String subject, String body, Path file)
+            throws SendMailException {
+        SendPlan plan;
+        try {
+            plan = mSendPlanner.plan(Files.size(file), false);
+        } catch (IOException ex) {
+            throw new SendMailException("Could not read attachment " + file, ex);
+        }
+        mLogger.writeLog(Level.INFO, "Sending with plan {}", plan);
+        Message draftMessage = null;
+        for (SendPlan.Step step : plan.getSteps()) {
+            switch (step) {
+                case SEND_MAIL:
+                    mGraphServiceController.sendNewMessageWithFile(sendAddress, subject, body, file);
+                    break;
+                case CREATE_DRAFT:
+                    draftMessage = checkDraft(mGraphServiceController.createDraftMail(sendAddress, subject, body));
+                    break;
+                case ADD_ATTACHMENT:
+                    mGraphServiceController.addFileToDraftMessage(draftMessage.id, file);
+                    break;
+                case SEND_DRAFT:
+                    sendDraftMessage(draftMessage);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected step " + step);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return The planner that chooses the Graph calls of each send, with its round trip counts
+     */
+    public SendPlanner getSendPlanner() {
+        return mSendPlanner;
+    }
+
+    /**
+     * Sends the batched operations that are still waiting. The controller of a pool account
+     * is left to the account, which closes it when it leaves the pool.
+     */
+    @Override
+    public void close() {
+        if (mOwnsController) {
+            mGraphServiceController.close();
+        }
+    }
+
+    /**
+     * Sends the mail to one recipient with a single sendMail operation that carries the
+     * picture inline. The operation is coalesced with those of other concurrent sends into
+     * $batch requests, so under load many sends share one round trip.
+     *
+     * @param sendAddress The recipient email address
+     * @param assets      The result of {@link #prepareAssets()}
+     * @return A future completed when Graph has accepted the message
+     * @throws SendMailException
+     */
+    public CompletableFuture<Void> sendMailBatched(String sendAddress, SendAssets assets) throws SendMailException {
+        return sendMailBatched(new MailRecipient(sendAddress), assets);
+    }
+
+    /**
+     * Like {@link #sendMailBatched(String, SendAssets)}, with the body personalized from the
+     * recipient's fields.
+     *
+     * @param recipient The recipient and its template fields
+     * @param assets    The result of {@link #prepareAssets()}
+     * @return A future completed when Graph has accepted the message
+     * @throws SendMailException
      */
-    private void createDraftMail(final Permission permission, final byte[] bytes) {
-        //Prepare body message and insert name of sender
-        String body = Constants.MESSAGE_BODY;
+    public CompletableFuture<Void> sendMailBatched(MailRecipient recipient, SendAssets assets) throws SendMailException {
+        final Span span = Tracer.getInstance().startSpan("sendBatched", Tracer.current());
+        Span previous = Tracer.activate(span);
         try {
-            //replace() is used instead of format() because the mail body string contains several
-            //'%' characters, most of which are not string place holders. When format() is used,
-            //format exception is thrown. Place holders do not match replacement parameters.
-            body = body.replace("a href=%s", "a href=" + permission.link.webUrl.toString());
-            final String mailBody = body;
-            //4. Create a draft mail message
-            Message message = mGraphServiceController.createDraftMail(
-                    mRecipientEmailAddress,
+            return endSpan(span, mGraphServiceController.sendNewMessageBatched(
+                    recipient.getAddress(),
                     Constants.SUBJECT_TEXT,
-                    mailBody);
-            if (message != null) {
-                mLogger.writeLog(Level.INFO, "Create draft mail  ");
-                Message draftMessage = mGraphServiceController.getDraftMessage(message.id);
-                addPictureToDraftMessage(draftMessage, permission, bytes);
+                    createMailBody(mMailTemplate, recipient, assets),
+                    assets.getPhotoBytes()));
+        } catch (SendMailException | RuntimeException ex) {
+            span.setError(ex);
+            span.end();
+            throw ex;
+        } finally {
+            Tracer.restore(previous);
+        }
+    }
+
+    /**
+     * Runs step 4 of the send chain for one recipient without blocking the calling thread.
+     * The calls chosen by the {@link SendPlanner} are chained on the futures of the Graph
+     * requests, so no thread waits while a request is in flight.
+     *
+     * @param recipient The recipient and its template fields
+     * @param assets    The result of {@link #prepareAssets()}
+     * @return A future completed with the outcome of the send. It does not complete
+     * exceptionally; failures are reported in the result
+     */
+    public CompletableFuture<SendResult> sendMailAsync(final MailRecipient recipient, final SendAssets assets) {
+        final long start = System.nanoTime();
+        final Span span = Tracer.getInstance().startSpan("send", Tracer.current());
+        CompletableFuture<Message> chain = CompletableFuture.completedFuture(null);
+        try {
+            SendPlan plan = mSendPlanner.plan(assets.getPhotoBytes().length, false);
+            final String mailBody = createMailBody(mMailTemplate, recipient, assets);
+            for (final SendPlan.Step step : plan.getSteps()) {
+                chain = chain.thenCompose(new Function<Message, CompletableFuture<Message>>() {
+                    @Override
+                    public CompletableFuture<Message> apply(Message draftMessage) {
+                        // The step's Graph call picks the send's span up as its parent
+                        Span previous = Tracer.activate(span);
+                        try {
+                            return sendStepAsync(step, draftMessage, recipient.getAddress(), mailBody, assets);
+                        } catch (SendMailException ex) {
+                            throw new CompletionException(ex);
+                        } finally {
+                            Tracer.restore(previous);
+                        }
+                    }
+                });
             }
-            else {
-                mLogger.writeLog(Level.INFO, "Create draft mail failed ");
+        } catch (RuntimeException ex) {
+            chain = new CompletableFuture<>();
+            chain.completeExceptionally(ex);
+        }
+        return chain.handle(new BiFunction<Message, Throwable, SendResult>() {
+            @Override
+            public SendResult apply(Message message, Throwable error) {
+                if (error == null) {
+                    span.end();
+                    return SendResult.success(recipient.getAddress(), System.nanoTime() - start);
+                }
+                Exception ex = RetryPolicy.unwrap(error);
+                span.setError(ex);
+                span.end();
+                mLogger.writeLog(Level.SEVERE, "Send to {} failed", recipient, ex);
+                return SendResult.failure(recipient.getAddress(), ex, System.nanoTime() - start);
+            }
+        });
+    }
+
+    public User getMeUser() throws SendMailException {
+        return mGraphServiceController.getUser();
+    }
+
+    /**
+     * Starts one step of a send plan
+     *
+     * @return A future completed with the draft message the following steps work on
+     */
+    private CompletableFuture<Message> sendStepAsync(
+            SendPlan.Step step,
+            final Message draftMessage,
+            String sendAddress,
+            String mailBody,
+            SendAssets assets) throws SendMailException {
+        switch (step) {
+            case SEND_MAIL:
+                return keepDraft(mGraphServiceController.sendNewMessageAsync(
+                        sendAddress, Constants.SUBJECT_TEXT, mailBody, assets.getPhotoBytes()), draftMessage);
+            case CREATE_DRAFT_WITH_ATTACHMENT:
+                return mGraphServiceController.createDraftMailAsync(
+                        sendAddress, Constants.SUBJECT_TEXT, mailBody, assets.getPhotoBytes());
+            case CREATE_DRAFT:
+                return mGraphServiceController.createDraftMailAsync(
+                        sendAddress, Constants.SUBJECT_TEXT, mailBody, null);
+            case GET_DRAFT:
+                return mGraphServiceController.getDraftMessageAsync(draftId(draftMessage));
+            case ADD_ATTACHMENT:
+                return keepDraft(mGraphServiceController.addPictureToDraftMessageAsync(
+                        draftId(draftMessage), assets.getPhotoBytes(),
+                        assets.getPermission().link.webUrl), draftMessage);
+            case SEND_DRAFT:
+                return keepDraft(mGraphServiceController.sendDraftMessageAsync(draftId(draftMessage)),
+                                 draftMessage);
+            default:
+                throw new IllegalStateException("Unexpected step " + step);
+        }
+    }
+
+    /**
+     * @return The id of the draft an earlier step created
+     */
+    private static String draftId(Message draftMessage) throws SendMailException {
+        if (draftMessage == null) {
+            throw new SendMailException("Create draft mail failed ");
+        }
+        return draftMessage.id;
+    }
+
+    /**
+     * Ends the span when the future completes
+     */
+    private static <T> CompletableFuture<T> endSpan(final Span span, CompletableFuture<T> future) {
+        return future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable error) {
+                span.setError(error);
+                span.end();
             }
+        });
+    }
 
-        } catch (SendMailException ex) {
-            mLogger.writeLog(Level.SEVERE, ex.getMessage(), ex);
+    /**
+     * Passes the draft on to the next step once a step without a result completes
+     */
+    private static CompletableFuture<Message> keepDraft(CompletableFuture<Void> step, final Message draftMessage) {
+        return step.thenApply(new Function<Void, Message>() {
+            @Override
+            public Message apply(Void ignored) {
+                return draftMessage;
+            }
+        });
+    }
+
+    /**
+     * Fails the send when Graph did not return the created draft
+     *
+     * @param message
+     */
+    private Message checkDraft(final Message message) throws SendMailException {
+        if (message == null) {
+            throw new SendMailException("Create draft mail failed ");
         }
+        mLogger.writeLog(Level.INFO, "Create draft mail  ");
+        return message;
     }
 
+    /**
+     * Renders the message body for one recipient. Recipient fields take precedence over the
+     * sharing link and other fields of the assets.
+     *
+     * @param template
+     * @param recipient The recipient, or null to render the fields of the assets only
+     * @param assets
+     */
+    @VisibleForTesting
+    static String createMailBody(final MailTemplate template, final MailRecipient recipient, final SendAssets assets) {
+        return template.render(recipient, assets);
+    }
 
     /**
-     * Adds the picture bytes as attachment to the draft message and calls the step 7 helper
+     * Adds the picture bytes as attachment to the draft message
      *
      * @param aMessage
      * @param permission
      * @param bytes
      */
-    private void addPictureToDraftMessage(final Message aMessage, final Permission permission, final byte[] bytes) {
+    private Attachment addPictureToDraftMessage(
+            final Message aMessage,
+            final Permission permission,
+            final byte[] bytes) throws SendMailException {
         //6. Add the profile picture to the draft mail
-        try {
-            mGraphServiceController.addPictureToDraftMessage(aMessage.id, bytes, permission.link.webUrl);
-            mLogger.writeLog(Level.INFO, "Sending draft message ");
-            sendDraftMessage(aMessage);
-        } catch (SendMailException ex) {
-            mLogger.writeLog(Level.SEVERE, ex.getMessage(), ex);
-        }
+        Attachment attachment = mGraphServiceController.addPictureToDraftMessage(aMessage.id, bytes, permission.link.webUrl);
+        mLogger.writeLog(Level.INFO, "Sending draft message ");
+        return attachment;
     }
 
 
@@ -152,14 +747,9 @@ public class GraphSendMail {
      *
      * @param aMessage
      */
-    private void sendDraftMessage(final Message aMessage) {
+    private void sendDraftMessage(final Message aMessage) throws SendMailException {
         //7. Send the draft message to the recipient
-        try {
-            mGraphServiceController.sendDraftMessage(aMessage.id, 0);
-            mLogger.writeLog(Level.INFO, "Draft message sent ");
-
-        } catch (SendMailException ex) {
-            mLogger.writeLog(Level.SEVERE, ex.getMessage(), ex);
-        }
+        mGraphServiceController.sendDraftMessage(aMessage.id, 0);
+        mLogger.writeLog(Level.INFO, "Draft message sent ");
     }
 }
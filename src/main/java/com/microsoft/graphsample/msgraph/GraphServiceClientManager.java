@@ -5,9 +5,9 @@
 package com.microsoft.graphsample.msgraph;
 
 
+import com.gilecode.reflection.ReflectionAccessUtils;
 import com.microsoft.graph.authentication.IAuthenticationProvider;
 import com.microsoft.graph.core.ClientException;
-import com.microsoft.graph.core.DefaultClientConfig;
 import com.microsoft.graph.core.IClientConfig;
 import com.microsoft.graph.http.IHttpRequest;
 import com.microsoft.graph.logger.LoggerLevel;
@@ -74,13 +74,23 @@ public class GraphServiceClientManager implements IAuthenticationProvider {
      */
     public synchronized IGraphServiceClient getGraphServiceClient(IAuthenticationProvider authenticationProvider) {
         if (mGraphServiceClient == null) {
-            IClientConfig clientConfig = DefaultClientConfig.createWithAuthenticationProvider(
-                    authenticationProvider
-            );
+            suppressIllegalReflectiveAccessWarnings();
+            IClientConfig clientConfig = new GraphClientConfig(authenticationProvider);
             clientConfig.getLogger().setLoggingLevel(LoggerLevel.ERROR);
             mGraphServiceClient = GraphServiceClient.fromConfig(clientConfig);
         }
 
         return mGraphServiceClient;
     }
+
+    /**
+     * Suppresses the warnings the JSON deserialization of the Graph SDK causes on Java 9 to 15.
+     * Functionality is not affected without it. Java 16 and later deny the reflective access
+     * instead of warning and lack the logger the utility patches, so it is skipped there.
+     */
+    private static void suppressIllegalReflectiveAccessWarnings() {
+        if (Runtime.version().feature() < 16) {
+            ReflectionAccessUtils.suppressIllegalReflectiveAccessWarnings();
+        }
+    }
 }
@@ -5,29 +5,221 @@
 package com.microsoft.graphsample.msgraph;
 
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.microsoft.graph.concurrency.ICallback;
+import com.microsoft.graph.http.HttpMethod;
+import com.microsoft.graph.http.IHttpProvider;
 import com.microsoft.graph.models.extensions.*;
 import com.microsoft.graph.models.generated.BodyType;
+import com.microsoft.graph.options.QueryOption;
 import com.microsoft.graphsample.connect.Constants;
 import com.microsoft.graphsample.connect.DebugLogger;
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import com.microsoft.graphsample.metrics.MetricsRegistry;
+import com.microsoft.graphsample.metrics.OperationMetrics;
+import com.microsoft.graphsample.metrics.Span;
+import com.microsoft.graphsample.metrics.Tracer;
 
 import java.io.*;
 import java.io.File;
-import java.util.Collections;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 /**
  * Handles the creation and update of a mail message. Uses the GraphServiceClient to
  * send the message. The user must authenticate with the Microsoft Graph before sending mail
  * {@link #createDraftMail(String, String, String)}method.
+ * <p>
+ * Graph calls go through the shared {@link RetryPolicy}, so throttled and other transiently
+ * failed calls are retried. Each call tells the policy whether it is idempotent. The latency,
+ * outcome and traffic of each operation, retries included, are recorded in the
+ * {@link MetricsRegistry}.
+ * <p>
+ * Batched operations wait in the controller's {@link GraphBatchCoalescer}; close the
+ * controller to send them before it is dropped.
  */
-class GraphServiceController {
+class GraphServiceController implements Closeable {
+
+    // The size segment of the photo cache key. /me/photo/$value is the largest available size
+    private static final String PROFILE_PHOTO_SIZE = "default";
+    // The file name the profile picture is attached to drafts under
+    private static final String PICTURE_ATTACHMENT_NAME = "me.png";
+    // A named property in the PS_PUBLIC_STRINGS set that tags the drafts of journaled sends
+    private static final String OUTBOX_MARKER_PROPERTY =
+            "String {00020329-0000-0000-C000-000000000046} Name GraphSampleOutboxJob";
+
+    // Runs the calls of the non-blocking methods of every controller that can only block
+    private static final ThreadPoolExecutor BLOCKING_CALL_EXECUTOR = createBlockingCallExecutor();
 
     private final IGraphServiceClient mGraphServiceClient;
+    private final GraphBatchCoalescer mBatchCoalescer;
+    private final ProfilePhotoCache mPhotoCache;
+    private final UploadIndex mUploadIndex;
+    private final RetryPolicy mRetryPolicy;
+    private volatile String mUserId;
 
     public GraphServiceController() {
-        mGraphServiceClient = GraphServiceClientManager.getInstance().getGraphServiceClient();
+        this(GraphServiceClientManager.getInstance().getGraphServiceClient());
+    }
+
+    /**
+     * @param graphServiceClient The client of the account the controller acts for
+     */
+    GraphServiceController(IGraphServiceClient graphServiceClient) {
+        mGraphServiceClient = graphServiceClient;
+        mBatchCoalescer = new GraphBatchCoalescer(mGraphServiceClient, Constants.BATCH_LINGER_MILLIS);
+        mPhotoCache = SharedCaches.PHOTO_CACHE;
+        mUploadIndex = SharedCaches.UPLOAD_INDEX;
+        mRetryPolicy = RetryPolicy.getInstance();
+    }
+
+    private static ThreadPoolExecutor createBlockingCallExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                Constants.ASYNC_BLOCKING_CALL_THREADS, Constants.ASYNC_BLOCKING_CALL_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "graph-blocking-call-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Idle threads exit, so a process that stopped sending holds none
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Sends the batched operations that are still waiting and writes the photo cache's access
+     * times. Batched operations queued later are sent at once.
+     */
+    @Override
+    public void close() {
+        mBatchCoalescer.shutdown();
+        if (mPhotoCache != null) {
+            mPhotoCache.flush();
+        }
+    }
+
+    /**
+     * The on-disk caches, opened on first use and shared by the controllers of every account.
+     * Their entries are keyed by user id, and each instance owns its files.
+     */
+    private static final class SharedCaches {
+        static final ProfilePhotoCache PHOTO_CACHE = createPhotoCache();
+        static final UploadIndex UPLOAD_INDEX = createUploadIndex();
+    }
+
+    /**
+     * Opens the on-disk photo cache. Sends work without it if the cache directory is unusable.
+     * The access times of its latest reads are written when the process exits.
+     */
+    private static ProfilePhotoCache createPhotoCache() {
+        try {
+            final ProfilePhotoCache cache = new ProfilePhotoCache(
+                    new File(Constants.PHOTO_CACHE_DIRECTORY), Constants.PHOTO_CACHE_MAX_BYTES);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    cache.flush();
+                }
+            }, "photo-cache-flush"));
+            return cache;
+        } catch (IOException ex) {
+            DebugLogger.getInstance().writeLog(Level.WARNING, "Photo cache disabled", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the on-disk upload index. Pictures are uploaded on every send without it.
+     */
+    private static UploadIndex createUploadIndex() {
+        if (Constants.UPLOAD_INDEX_TTL_HOURS <= 0) {
+            return null;
+        }
+        try {
+            return new UploadIndex(new File(Constants.UPLOAD_INDEX_FILE),
+                                   TimeUnit.HOURS.toMillis(Constants.UPLOAD_INDEX_TTL_HOURS));
+        } catch (IOException ex) {
+            DebugLogger.getInstance().writeLog(Level.WARNING, "Upload index disabled", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Runs a Graph operation under the retry policy and records its metrics and trace span
+     *
+     * @param operation  The name the operation is retried and measured under
+     * @param idempotent True if running the operation twice has the same effect as running it once
+     * @param call       The operation
+     */
+    private <T> T execute(String operation, boolean idempotent, Callable<T> call) throws Exception {
+        OperationMetrics metrics = MetricsRegistry.getInstance().operation(operation);
+        OperationMetrics previous = metrics.enter();
+        long start = System.nanoTime();
+        try (Span span = Tracer.getInstance().startSpan(operation)) {
+            try {
+                T result = mRetryPolicy.execute(operation, idempotent, call);
+                metrics.recordSuccess(System.nanoTime() - start);
+                return result;
+            } catch (Exception ex) {
+                metrics.recordError(System.nanoTime() - start);
+                span.setError(ex);
+                throw ex;
+            }
+        } finally {
+            OperationMetrics.exit(previous);
+            MetricsRegistry.getInstance().recordFirstResponse();
+        }
+    }
+
+    /**
+     * Uploads a file to an upload session in chunks and records the upload's metrics. The
+     * uploader retries failed chunks itself.
+     *
+     * @param sessionKind The service behind the session
+     * @return The JSON of the created item, or null if the session does not return one
+     */
+    @SuppressWarnings("try")
+    private JsonObject uploadChunks(String uploadUrl, Path file, ChunkedUploader.SessionKind sessionKind)
+            throws IOException {
+        OperationMetrics metrics = MetricsRegistry.getInstance().operation("uploadChunks");
+        long start = System.nanoTime();
+        try (Span ignored = Tracer.getInstance().startSpan("uploadChunks")) {
+            JsonObject item = new ChunkedUploader(sessionKind,
+                                                  Constants.UPLOAD_CHUNK_SIZE,
+                                                  Constants.UPLOAD_MAX_IN_FLIGHT,
+                                                  Constants.UPLOAD_MAX_RETRIES)
+                    .upload(uploadUrl, file);
+            metrics.recordSuccess(System.nanoTime() - start);
+            metrics.addBytesSent(Files.size(file));
+            return item;
+        } catch (IOException | RuntimeException ex) {
+            metrics.recordError(System.nanoTime() - start);
+            throw ex;
+        }
     }
 
     /**
@@ -42,16 +234,136 @@ class GraphServiceController {
             final String emailAddress,
             final String subject,
             final String body
+    ) throws SendMailException {
+        return createDraftMail(RecipientGroup.to(emailAddress), subject, body);
+    }
+
+    /**
+     * Creates a draft email message addressed to a group of recipients.
+     *
+     * @param recipients The To, Cc and Bcc recipients
+     * @param subject    The subject to use in the mail message.
+     * @param body       The body of the message.
+     */
+    public Message createDraftMail(
+            final RecipientGroup recipients,
+            final String subject,
+            final String body
+    ) throws SendMailException {
+        return createDraftMail(recipients, subject, body, null);
+    }
+
+    /**
+     * Creates a draft email message addressed to a group of recipients, tagged with a marker
+     * that {@link #findMessageByOutboxMarker(String)} finds it by.
+     *
+     * @param recipients   The To, Cc and Bcc recipients
+     * @param subject      The subject to use in the mail message.
+     * @param body         The body of the message.
+     * @param outboxMarker The marker, or null to create the draft untagged
+     */
+    public Message createDraftMail(
+            final RecipientGroup recipients,
+            final String subject,
+            final String body,
+            final String outboxMarker
     ) throws SendMailException {
         Message message = null;
         try {
             // create the email message
-            message = createMessage(subject, body, emailAddress);
-            message = mGraphServiceClient
-                    .me()
-                    .messages()
-                    .buildRequest()
-                    .post(message);
+            final Message draft = createMessage(subject, body, recipients);
+            if (outboxMarker != null) {
+                draft.additionalDataManager().put("singleValueExtendedProperties", createOutboxMarker(outboxMarker));
+            }
+            message = execute("createDraft", false, new Callable<Message>() {
+                @Override
+                public Message call() {
+                    return mGraphServiceClient
+                            .me()
+                            .messages()
+                            .buildRequest()
+                            .post(draft);
+                }
+            });
+        } catch (Exception ex) {
+            throw new SendMailException("exception on send mail", ex);
+        }
+
+        return message;
+    }
+
+
+    /**
+     * Creates a draft email message with the picture already attached, saving the separate
+     * add attachment request.
+     *
+     * @param emailAddress The recipient email address.
+     * @param subject      The subject to use in the mail message.
+     * @param body         The body of the message.
+     * @param picture      The picture in bytes
+     */
+    public Message createDraftMailWithPicture(
+            final String emailAddress,
+            final String subject,
+            final String body,
+            final byte[] picture
+    ) throws SendMailException {
+        return createDraftMailWithPicture(RecipientGroup.to(emailAddress), subject, body, picture);
+    }
+
+    /**
+     * Creates a draft email message addressed to a group of recipients, with the picture
+     * already attached.
+     *
+     * @param recipients The To, Cc and Bcc recipients
+     * @param subject    The subject to use in the mail message.
+     * @param body       The body of the message.
+     * @param picture    The picture in bytes
+     */
+    public Message createDraftMailWithPicture(
+            final RecipientGroup recipients,
+            final String subject,
+            final String body,
+            final byte[] picture
+    ) throws SendMailException {
+        return createDraftMailWithPicture(recipients, subject, body, picture, null);
+    }
+
+    /**
+     * Creates a draft email message addressed to a group of recipients, with the picture
+     * already attached, tagged with a marker that {@link #findMessageByOutboxMarker(String)}
+     * finds it by.
+     *
+     * @param recipients   The To, Cc and Bcc recipients
+     * @param subject      The subject to use in the mail message.
+     * @param body         The body of the message.
+     * @param picture      The picture in bytes
+     * @param outboxMarker The marker, or null to create the draft untagged
+     */
+    public Message createDraftMailWithPicture(
+            final RecipientGroup recipients,
+            final String subject,
+            final String body,
+            final byte[] picture,
+            final String outboxMarker
+    ) throws SendMailException {
+        Message message = null;
+        try {
+            final JsonObject requestBody =
+                    createMessageWithAttachmentJson(subject, body, recipients, createPictureAttachment(picture));
+            if (outboxMarker != null) {
+                requestBody.add("singleValueExtendedProperties", createOutboxMarker(outboxMarker));
+            }
+            JsonObject created = execute("createDraft", false, new Callable<JsonObject>() {
+                @Override
+                public JsonObject call() {
+                    return mGraphServiceClient
+                            .customRequest("/me/messages")
+                            .buildRequest()
+                            .post(requestBody);
+                }
+            });
+            message = mGraphServiceClient.getSerializer().deserializeObject(created.toString(), Message.class);
         } catch (Exception ex) {
             throw new SendMailException("exception on send mail", ex);
         }
@@ -59,6 +371,65 @@ class GraphServiceController {
         return message;
     }
 
+    /**
+     * Sends a new message with the picture attached in a single sendMail call. No draft is
+     * created.
+     *
+     * @param emailAddress Recipient email address
+     * @param subject      Subject of the email message
+     * @param body         Email body
+     * @param picture      The picture in bytes
+     */
+    public void sendNewMessage(
+            final String emailAddress,
+            final String subject,
+            final String body,
+            final byte[] picture
+    ) throws SendMailException {
+        sendNewMessage(RecipientGroup.to(emailAddress), subject, body, picture);
+    }
+
+    /**
+     * Sends one new message with the picture attached to a group of recipients in a single
+     * sendMail call.
+     *
+     * @param recipients The To, Cc and Bcc recipients
+     * @param subject    Subject of the email message
+     * @param body       Email body
+     * @param picture    The picture in bytes
+     */
+    public void sendNewMessage(
+            final RecipientGroup recipients,
+            final String subject,
+            final String body,
+            final byte[] picture
+    ) throws SendMailException {
+        try {
+            JsonObject requestBody = new JsonObject();
+            requestBody.add("message", createMessageWithAttachmentJson(subject, body, recipients, createPictureAttachment(picture)));
+            requestBody.addProperty("saveToSentItems", true);
+            postSendMail(requestBody);
+        } catch (Exception ex) {
+            throw new SendMailException("exception on send new message", ex);
+        }
+    }
+
+    /**
+     * Posts a sendMail request. Graph sends a message for every accepted request, so the
+     * request is only retried when Graph refused it.
+     */
+    private void postSendMail(final JsonObject requestBody) throws Exception {
+        execute("sendMail", false, new Callable<Void>() {
+            @Override
+            public Void call() {
+                mGraphServiceClient
+                        .customRequest("/me/sendMail")
+                        .buildRequest()
+                        .post(requestBody);
+                return null;
+            }
+        });
+    }
 
     /**
      * Creates a new email message with attachment and sends it to a specified recipient
@@ -87,52 +458,284 @@ class GraphServiceController {
                     .post(callback);
 
         } catch (Exception ex) {
-            try {
-                DebugLogger.getInstance().writeLog(Level.SEVERE, "exception on send new message", ex);
+            DebugLogger.getInstance().writeLog(Level.SEVERE, "exception on send new message", ex);
+        }
+    }
 
-            } catch (Exception e) {
-                throw new SendMailException("SendNewMessageAsync failed ", e);
-            }
+    /**
+     * Sends a new message with the picture attached in a single sendMail operation. The
+     * operation is queued in the batch coalescer and travels to Graph together with the
+     * operations of other concurrent sends.
+     *
+     * @param emailAddress Recipient email address
+     * @param subject      Subject of the email message
+     * @param body         Email body
+     * @param picture      The picture in bytes
+     * @return A future completed when Graph has accepted the message
+     */
+    public CompletableFuture<Void> sendNewMessageBatched(
+            final String emailAddress,
+            final String subject,
+            final String body,
+            final byte[] picture) throws SendMailException {
+        JsonObject requestBody = new JsonObject();
+        try {
+            requestBody.add("message", createMessageWithAttachmentJson(subject, body, emailAddress, createPictureAttachment(picture)));
+            requestBody.addProperty("saveToSentItems", true);
+        } catch (Exception ex) {
+            throw new SendMailException("exception on send new message", ex);
+        }
+
+        return mBatchCoalescer
+                .submit(BatchStep.post("sendMail", false, "/me/sendMail", requestBody))
+                .thenApply(new Function<BatchResponse, Void>() {
+                    @Override
+                    public Void apply(BatchResponse response) {
+                        checkBatchResponse(response, "Exception on send new message");
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Uploads a picture to the user's OneDrive root folder and creates a sharing link to it
+     * in one batch. The item is addressed by path, so the link request does not need the id
+     * returned by the upload and is chained to it with dependsOn.
+     *
+     * @param picture byte[] picture byte array
+     * @return A future completed with the Permission that exposes the sharing link
+     */
+    public CompletableFuture<Permission> uploadAndSharePictureBatched(byte[] picture) {
+        String itemPath = "/me/drive/root:/" + Constants.ONEDRIVE_PICTURE_FILENAME + ":";
+        JsonObject linkBody = new JsonObject();
+        linkBody.addProperty("type", "view");
+        linkBody.addProperty("scope", "organization");
+
+        List<CompletableFuture<BatchResponse>> responses = mBatchCoalescer.submitChain(Arrays.asList(
+                BatchStep.put("uploadToOneDrive",
+                              itemPath + "/content",
+                              Base64.getEncoder().encodeToString(picture),
+                              "image/png"),
+                BatchStep.post("createSharingLink", true, itemPath + "/createLink", linkBody)));
 
+        return responses.get(0).thenCombine(responses.get(1),
+                new BiFunction<BatchResponse, BatchResponse, Permission>() {
+                    @Override
+                    public Permission apply(BatchResponse upload, BatchResponse link) {
+                        checkBatchResponse(upload, "exception on upload picture to OneDrive ");
+                        checkBatchResponse(link, "exception on get OneDrive sharing link ");
+                        return mGraphServiceClient.getSerializer()
+                                                  .deserializeObject(link.getBody().toString(),
+                                                                     Permission.class);
+                    }
+                });
+    }
+
+    /**
+     * Sends any batched operations that are still waiting for their batch to fill.
+     */
+    public void flushBatches() {
+        mBatchCoalescer.flush();
+    }
+
+    /**
+     * Sends a new message with the picture attached in a single sendMail call, without
+     * blocking the calling thread. Like {@link #sendNewMessage(String, String, String, byte[])},
+     * it is only retried when Graph refused it.
+     *
+     * @param emailAddress Recipient email address
+     * @param subject      Subject of the email message
+     * @param body         Email body
+     * @param picture      The picture in bytes
+     * @return A future completed when Graph has accepted the message
+     */
+    public CompletableFuture<Void> sendNewMessageAsync(
+            final String emailAddress,
+            final String subject,
+            final String body,
+            final byte[] picture) throws SendMailException {
+        final JsonObject requestBody = new JsonObject();
+        try {
+            requestBody.add("message", createMessageWithAttachmentJson(subject, body, emailAddress, createPictureAttachment(picture)));
+            requestBody.addProperty("saveToSentItems", true);
+        } catch (Exception ex) {
+            throw new SendMailException("exception on send new message", ex);
+        }
+        return executeAsync("sendMail", false, HttpMethod.POST, "/me/sendMail", Void.class, requestBody);
+    }
+
+    /**
+     * Creates a draft message without blocking the calling thread.
+     *
+     * @param emailAddress The recipient email address
+     * @param subject      The subject to use in the mail message
+     * @param body         The body of the message
+     * @param picture      The picture to attach, or null for a draft without attachments
+     * @return A future completed with the created draft
+     */
+    public CompletableFuture<Message> createDraftMailAsync(
+            final String emailAddress,
+            final String subject,
+            final String body,
+            final byte[] picture) throws SendMailException {
+        final Object requestBody;
+        try {
+            requestBody = picture == null
+                          ? createMessage(subject, body, emailAddress)
+                          : createMessageWithAttachmentJson(subject, body, emailAddress, createPictureAttachment(picture));
+        } catch (Exception ex) {
+            throw new SendMailException("exception on send mail", ex);
+        }
+        return executeAsync("createDraft", false, HttpMethod.POST, "/me/messages", Message.class, requestBody);
+    }
+
+    /**
+     * Gets a draft message by id without blocking the calling thread.
+     */
+    public CompletableFuture<Message> getDraftMessageAsync(String messageId) {
+        return executeAsync("getDraft", true, HttpMethod.GET, "/me/messages/" + messageId, Message.class, null);
+    }
+
+    /**
+     * Posts the picture to a draft message as an inline file attachment without blocking the
+     * calling thread. Pictures too large to travel inline need an upload session, which is
+     * run by {@link #addPictureToDraftMessage(String, byte[], String)} on one of the
+     * controller's blocking call threads instead.
+     */
+    public CompletableFuture<Void> addPictureToDraftMessageAsync(
+            final String messageId,
+            final byte[] picture,
+            final String sharingLink) throws SendMailException {
+        if (picture.length > Constants.INLINE_ATTACHMENT_MAX_BYTES) {
+            return CompletableFuture.supplyAsync(new Supplier<Void>() {
+                @Override
+                public Void get() {
+                    try {
+                        addPictureToDraftMessage(messageId, picture, sharingLink);
+                        return null;
+                    } catch (SendMailException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }
+            }, BLOCKING_CALL_EXECUTOR);
         }
+        return executeAsync("addAttachment", false, HttpMethod.POST,
+                            "/me/messages/" + messageId + "/attachments", Void.class,
+                            createPictureAttachment(picture));
+    }
+
+    /**
+     * Sends a draft message without blocking the calling thread.
+     */
+    public CompletableFuture<Void> sendDraftMessageAsync(String messageId) {
+        // A sent draft leaves the Drafts folder, so sending it again fails instead of sending twice
+        return executeAsync("sendDraft", true, HttpMethod.POST,
+                            "/me/messages/" + messageId + "/microsoft.graph.send", Void.class, null);
+    }
+
+    /**
+     * Runs a Graph request under the retry policy without blocking, and records its metrics
+     * when it completes. With the HTTP/2 transport no thread waits for the response. The SDK
+     * transport can only block, so there the request runs on one of the controller's blocking
+     * call threads.
+     *
+     * @param operation   The name the operation is retried and measured under
+     * @param idempotent  True if running the operation twice has the same effect as running it once
+     * @param method      The HTTP method
+     * @param url         The url relative to the service root
+     * @param resultClass The type the JSON response is deserialized to
+     * @param body        The request body, or null for none
+     */
+    private <T> CompletableFuture<T> executeAsync(
+            final String operation,
+            final boolean idempotent,
+            final HttpMethod method,
+            final String url,
+            final Class<T> resultClass,
+            final Object body) {
+        final OperationMetrics metrics = MetricsRegistry.getInstance().operation(operation);
+        final long start = System.nanoTime();
+        final Span span = Tracer.getInstance().startSpan(operation, Tracer.current());
+        final IHttpProvider httpProvider = mGraphServiceClient.getHttpProvider();
+        CompletableFuture<T> result = mRetryPolicy.executeAsync(operation, idempotent, new Callable<CompletableFuture<T>>() {
+            @Override
+            public CompletableFuture<T> call() throws IOException {
+                final GraphRawRequest request = new GraphRawRequest(mGraphServiceClient, method, url);
+                if (httpProvider instanceof Http2HttpProvider) {
+                    OperationMetrics previous = metrics.enter();
+                    Span previousSpan = Tracer.activate(span);
+                    try {
+                        return ((Http2HttpProvider) httpProvider).sendAsync(request, resultClass, body);
+                    } finally {
+                        OperationMetrics.exit(previous);
+                        Tracer.restore(previousSpan);
+                    }
+                }
+                return CompletableFuture.supplyAsync(new Supplier<T>() {
+                    @Override
+                    public T get() {
+                        OperationMetrics previous = metrics.enter();
+                        Span previousSpan = Tracer.activate(span);
+                        try {
+                            return httpProvider.send(request, resultClass, body);
+                        } finally {
+                            OperationMetrics.exit(previous);
+                            Tracer.restore(previousSpan);
+                        }
+                    }
+                }, BLOCKING_CALL_EXECUTOR);
+            }
+        });
+        return result.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable error) {
+                if (error == null) {
+                    metrics.recordSuccess(System.nanoTime() - start);
+                }
+                else {
+                    metrics.recordError(System.nanoTime() - start);
+                    span.setError(error);
+                }
+                span.end();
+                MetricsRegistry.getInstance().recordFirstResponse();
+            }
+        });
     }
 
     /**
-     * Posts a file attachment in a draft message by message Id
+     * Posts a file attachment in a draft message by message Id. Pictures too large to travel
+     * inline are uploaded through an attachment upload session.
      *
      * @param messageId   String. The id of the draft message to add an attachment to
      * @param picture     Byte[]. The picture in bytes
      * @param sharingLink String. The sharing link to the uploaded picture
+     * @return The attachment, or null if it was uploaded through a session
      */
     public Attachment addPictureToDraftMessage(
             String messageId,
             byte[] picture,
             String sharingLink) throws SendMailException {
         Attachment attachment = null;
-        try {
-            byte[] attachementBytes = new byte[picture.length];
-            if (picture.length > 0) {
-                attachementBytes = picture;
-            }
-            else {
-                attachementBytes = getDefaultPicture();
+        if (picture.length > Constants.INLINE_ATTACHMENT_MAX_BYTES) {
+            File temp = null;
+            try {
+                temp = File.createTempFile("picture", ".png");
+                Files.write(temp.toPath(), picture);
+                uploadAttachmentThroughSession(messageId, temp.toPath(), PICTURE_ATTACHMENT_NAME);
+                return null;
+            } catch (IOException ex) {
+                throw new SendMailException("Exception on add picture to draft message", ex);
+            } finally {
+                if (temp != null) {
+                    temp.delete();
+                }
             }
+        }
+        try {
+            FileAttachment fileAttachment = createPictureAttachment(picture);
 
-            FileAttachment fileAttachment = new FileAttachment();
-            fileAttachment.oDataType = "#microsoft.graph.fileAttachment";
-            fileAttachment.contentBytes = attachementBytes;
-            fileAttachment.name = "me.png";
-            fileAttachment.size = attachementBytes.length;
-            fileAttachment.isInline = false;
-            fileAttachment.id = "blabla";
-
-            DebugLogger.getInstance().writeLog(Level.INFO, "attachement id " + fileAttachment.id);
-            attachment = mGraphServiceClient
-                    .me()
-                    .messages(messageId)
-                    .attachments()
-                    .buildRequest()
-                    .post(fileAttachment);
+            DebugLogger.getInstance().writeLog(Level.INFO, "attachement id {}", fileAttachment.id);
+            attachment = postAttachment(messageId, fileAttachment);
         } catch (Exception ex) {
             throw new SendMailException("Exception on add picture to draft message", ex);
         }
@@ -140,6 +743,107 @@ class GraphServiceController {
         return attachment;
     }
 
+    /**
+     * Attaches a file to a draft message. Small files are posted inline. Larger files are
+     * streamed from disk in chunks through an attachment upload session, so the heap never
+     * holds the file or its base64 encoding.
+     *
+     * @param messageId The id of the draft message to add an attachment to
+     * @param file      The file to attach
+     * @return The attachment, or null if it was uploaded through a session
+     */
+    public Attachment addFileToDraftMessage(String messageId, Path file) throws SendMailException {
+        try {
+            String name = file.getFileName().toString();
+            if (Files.size(file) > Constants.INLINE_ATTACHMENT_MAX_BYTES) {
+                uploadAttachmentThroughSession(messageId, file, name);
+                return null;
+            }
+            return postAttachment(messageId, createFileAttachment(name, Files.readAllBytes(file)));
+        } catch (Exception ex) {
+            throw new SendMailException("Exception on add file to draft message", ex);
+        }
+    }
+
+    /**
+     * Posts an attachment to a draft message. A second post would attach it twice, so the
+     * request is only retried when Graph refused it.
+     */
+    private Attachment postAttachment(final String messageId, final Attachment attachment) throws Exception {
+        return execute("addAttachment", false, new Callable<Attachment>() {
+            @Override
+            public Attachment call() {
+                return mGraphServiceClient
+                        .me()
+                        .messages(messageId)
+                        .attachments()
+                        .buildRequest()
+                        .post(attachment);
+            }
+        });
+    }
+
+    /**
+     * Sends a new message with a small file attached inline in a single sendMail call.
+     *
+     * @param emailAddress Recipient email address
+     * @param subject      Subject of the email message
+     * @param body         Email body
+     * @param file         The file to attach. Must fit {@link Constants#INLINE_ATTACHMENT_MAX_BYTES}
+     */
+    public void sendNewMessageWithFile(
+            final String emailAddress,
+            final String subject,
+            final String body,
+            final Path file
+    ) throws SendMailException {
+        try {
+            FileAttachment fileAttachment = createFileAttachment(file.getFileName().toString(),
+                                                                 Files.readAllBytes(file));
+            JsonObject requestBody = new JsonObject();
+            requestBody.add("message", createMessageWithAttachmentJson(subject, body, emailAddress, fileAttachment));
+            requestBody.addProperty("saveToSentItems", true);
+            postSendMail(requestBody);
+        } catch (Exception ex) {
+            throw new SendMailException("exception on send new message", ex);
+        }
+    }
+
+    /**
+     * Creates an attachment upload session on a draft message and uploads the file in chunks
+     *
+     * @param messageId The id of the draft message
+     * @param file      The file to attach
+     * @param name      The file name shown in the message
+     */
+    private void uploadAttachmentThroughSession(final String messageId, Path file, String name)
+            throws IOException, SendMailException {
+        JsonObject attachmentItem = new JsonObject();
+        attachmentItem.addProperty("attachmentType", "file");
+        attachmentItem.addProperty("name", name);
+        attachmentItem.addProperty("size", Files.size(file));
+        final JsonObject requestBody = new JsonObject();
+        requestBody.add("AttachmentItem", attachmentItem);
+
+        JsonObject uploadSession;
+        try {
+            // An abandoned upload session expires on its own, so a second one does no harm
+            uploadSession = execute("createAttachmentUploadSession", true, new Callable<JsonObject>() {
+                @Override
+                public JsonObject call() {
+                    return mGraphServiceClient
+                            .customRequest("/me/messages/" + messageId + "/attachments/createUploadSession")
+                            .buildRequest()
+                            .post(requestBody);
+                }
+            });
+        } catch (Exception ex) {
+            throw new SendMailException("Exception on create attachment upload session", ex);
+        }
+        DebugLogger.getInstance().writeLog(Level.INFO, "Uploading attachment {} in chunks", name);
+        uploadChunks(uploadSession.get("uploadUrl").getAsString(), file, ChunkedUploader.SessionKind.ATTACHMENT);
+    }
+
     /**
      * Sends a draft message to the specified recipients
      *
@@ -168,17 +872,22 @@ class GraphServiceController {
      * @param messageId String. The id of the message to send
      */
     public void sendDraftMessage(
-            String messageId,
+            final String messageId,
             int content_length) throws SendMailException {
         try {
-
-            mGraphServiceClient
-                    .me()
-                    .mailFolders("Drafts")
-                    .messages(messageId)
-                    .send()
-                    .buildRequest()
-                    .post();
+            // A sent draft leaves the Drafts folder, so sending it again fails instead of sending twice
+            execute("sendDraft", true, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    mGraphServiceClient
+                            .me()
+                            .messages(messageId)
+                            .send()
+                            .buildRequest()
+                            .post();
+                    return null;
+                }
+            });
 
         } catch (Exception ex) {
             throw new SendMailException("Exception on send draft mail", ex);
@@ -190,13 +899,18 @@ class GraphServiceController {
      *
      * @param messageId
      */
-    public Message getDraftMessage(String messageId) throws SendMailException {
+    public Message getDraftMessage(final String messageId) throws SendMailException {
         Message draftMessage = null;
         try {
-            draftMessage = mGraphServiceClient.me()
+            draftMessage = execute("getDraft", true, new Callable<Message>() {
+                @Override
+                public Message call() {
+                    return mGraphServiceClient.me()
                                               .messages(messageId)
                                               .buildRequest()
                                               .get();
+                }
+            });
         } catch (Exception ex) {
             throw new SendMailException("exception on get draft message ", ex);
         }
@@ -205,6 +919,107 @@ class GraphServiceController {
     }
 
 
+    /**
+     * Finds the message created with an outbox marker, such as a draft whose creation an
+     * earlier run started and did not record.
+     *
+     * @param outboxMarker The marker the message was created with
+     * @return The message with its id and isDraft, or null if there is none
+     */
+    public Message findMessageByOutboxMarker(final String outboxMarker) throws SendMailException {
+        final List<QueryOption> options = Arrays.asList(
+                new QueryOption("$filter", "singleValueExtendedProperties/Any(ep: ep/id eq '" + OUTBOX_MARKER_PROPERTY
+                                           + "' and ep/value eq '" + outboxMarker + "')"),
+                new QueryOption("$select", "id,isDraft"));
+        try {
+            JsonObject page = execute("findDraft", true, new Callable<JsonObject>() {
+                @Override
+                public JsonObject call() {
+                    return mGraphServiceClient
+                            .customRequest("/me/messages")
+                            .buildRequest(options)
+                            .get();
+                }
+            });
+            JsonArray messages = page.getAsJsonArray("value");
+            if (messages == null || messages.size() == 0) {
+                return null;
+            }
+            return mGraphServiceClient.getSerializer().deserializeObject(messages.get(0).toString(), Message.class);
+        } catch (Exception ex) {
+            throw new SendMailException("exception on find draft message", ex);
+        }
+    }
+
+    /**
+     * Looks up a message that may have been sent, such as a draft whose send an earlier run
+     * started and did not record
+     *
+     * @param messageId The id of the message
+     * @return The message with its id and isDraft, or null if there is none. A sent draft
+     * moves to Sent Items, where it usually has another id
+     */
+    public Message findMessage(final String messageId) throws SendMailException {
+        final List<QueryOption> options = Arrays.asList(new QueryOption("$select", "id,isDraft"));
+        try {
+            return execute("getDraft", true, new Callable<Message>() {
+                @Override
+                public Message call() {
+                    return mGraphServiceClient
+                            .me()
+                            .messages(messageId)
+                            .buildRequest(options)
+                            .get();
+                }
+            });
+        } catch (Exception ex) {
+            if (RetryPolicy.isNotFound(ex)) {
+                return null;
+            }
+            throw new SendMailException("exception on find message", ex);
+        }
+    }
+
+    /**
+     * Finds the profile picture among the attachments of a draft, such as one whose upload an
+     * earlier run started and did not record. Graph counts the attachment's properties in its
+     * size, so an attachment of the picture's name at least the picture's size matches.
+     *
+     * @param messageId The id of the draft message
+     * @param picture   The picture the attachment was created from, or empty for the default
+     * @return The attachment with its id, name and size, or null if the draft has none
+     */
+    public Attachment findPictureAttachment(final String messageId, byte[] picture) throws SendMailException {
+        long pictureBytes = picture.length > 0 ? picture.length : getDefaultPicture().length;
+        final List<QueryOption> options = Arrays.asList(new QueryOption("$select", "id,name,size"));
+        try {
+            JsonObject page = execute("findAttachment", true, new Callable<JsonObject>() {
+                @Override
+                public JsonObject call() {
+                    return mGraphServiceClient
+                            .customRequest("/me/messages/" + messageId + "/attachments")
+                            .buildRequest(options)
+                            .get();
+                }
+            });
+            JsonArray attachments = page.getAsJsonArray("value");
+            if (attachments == null) {
+                return null;
+            }
+            for (int i = 0; i < attachments.size(); i++) {
+                Attachment attachment = mGraphServiceClient.getSerializer()
+                        .deserializeObject(attachments.get(i).toString(), Attachment.class);
+                if (PICTURE_ATTACHMENT_NAME.equals(attachment.name)
+                    && attachment.size != null && attachment.size >= pictureBytes) {
+                    return attachment;
+                }
+            }
+            return null;
+        } catch (Exception ex) {
+            throw new SendMailException("exception on find attachment", ex);
+        }
+    }
+
     /**
      * Gets the local user who is authenticated with the Microsoft Graph API endpoint
      *
@@ -214,10 +1029,15 @@ class GraphServiceController {
     public User getUser() throws SendMailException {
         User user = null;
         try {
-            user = mGraphServiceClient
-                    .me()
-                    .buildRequest()
-                    .get();
+            user = execute("getMe", true, new Callable<User>() {
+                @Override
+                public User call() {
+                    return mGraphServiceClient
+                            .me()
+                            .buildRequest()
+                            .get();
+                }
+            });
         } catch (Exception ex) {
             throw new SendMailException("Exception on get me", ex);
         }
@@ -226,31 +1046,27 @@ class GraphServiceController {
     }
 
     /**
-     * Gets the signed in user's profile picture from the Microsoft Graph
+     * Gets the signed in user's profile picture from the Microsoft Graph. When the picture is
+     * in the photo cache, the request carries the cached ETag in If-None-Match and the cached
+     * bytes are returned if Graph answers 304 Not Modified.
      *
      * @return Byte array of the user's profile picture
      * @throws SendMailException
      */
     public byte[] getUserProfilePicture() throws SendMailException {
-        InputStream photoStream  = null;
-        byte[]      pictureBytes = new byte[1024];
+        byte[] pictureBytes = null;
         try {
-            photoStream = mGraphServiceClient
-                    .me()
-                    .photo()
-                    .content()
-                    .buildRequest()
-                    .get();
-            if (photoStream == null) {
+            String userId = getUserId();
+            String cachedETag = mPhotoCache == null ? null : mPhotoCache.getETag(userId, PROFILE_PHOTO_SIZE);
+            pictureBytes = downloadUserProfilePicture(userId, cachedETag);
+            if (pictureBytes == null && cachedETag != null) {
+                // The cached file disappeared after Graph validated its ETag
+                pictureBytes = downloadUserProfilePicture(userId, null);
+            }
+            if (pictureBytes == null || pictureBytes.length <= 0) {
                 DebugLogger.getInstance().writeLog(Level.INFO, "no picture found ");
                 pictureBytes = getDefaultPicture();
             }
-            else {
-                pictureBytes = inputStreamToByteArray(photoStream);
-                if (pictureBytes.length <= 0) {
-                    pictureBytes = getDefaultPicture();
-                }
-            }
         } catch (Exception ex) {
             throw new SendMailException("Exception on get user profile photo", ex);
         }
@@ -258,57 +1074,166 @@ class GraphServiceController {
         return pictureBytes;
     }
 
-
     /**
-     * Converts an inputStream to a byte array. The input stream should be a stream of profile
-     * picture bytes that comes in the response to a GET request on the  Microsoft Graph API
+     * Downloads the profile picture, conditionally if an ETag is given, and caches the result
      *
-     * @param inputStream
-     * @return
+     * @param userId     The id of the signed in user
+     * @param cachedETag The ETag of the cached picture, or null to download unconditionally
+     * @return The picture bytes, an empty array if the user has no picture, or null if the
+     * picture was not modified but is no longer in the cache
      */
-    private byte[] inputStreamToByteArray(InputStream inputStream) throws IOException {
-        byte[] pictureBytes = null;
-        try {
-            BufferedInputStream bufferedInputStream = (BufferedInputStream) inputStream;
-            byte[]              buff                = new byte[8000];
+    private byte[] downloadUserProfilePicture(final String userId, final String cachedETag) throws Exception {
+        return execute("getProfilePhoto", true, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException, SendMailException {
+                return downloadUserProfilePictureOnce(userId, cachedETag);
+            }
+        });
+    }
 
+    private byte[] downloadUserProfilePictureOnce(String userId, String cachedETag) throws IOException, SendMailException {
+        GraphRawRequest request = new GraphRawRequest(mGraphServiceClient, HttpMethod.GET, "/me/photo/$value");
+        if (cachedETag != null) {
+            request.addHeader("If-None-Match", cachedETag);
+        }
+        try (GraphRawRequest.Response response = request.send()) {
+            response.checkThrottled();
+            if (response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                DebugLogger.getInstance().writeLog(Level.INFO, "profile picture not modified ");
+                return mPhotoCache.get(userId, PROFILE_PHOTO_SIZE);
+            }
+            if (response.getStatus() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return new byte[0];
+            }
+            if (!response.isSuccess()) {
+                throw new SendMailException("Get user profile photo returned " + response.getStatus());
+            }
+            byte[] pictureBytes = StreamingDownloader.readFully(response.getBody(), response.getContentLength());
+            String eTag = response.getHeader("ETag");
+            if (mPhotoCache != null && eTag != null && pictureBytes.length > 0) {
+                mPhotoCache.put(userId, PROFILE_PHOTO_SIZE, eTag, pictureBytes);
+            }
+            return pictureBytes;
+        }
+    }
 
-            ByteArrayOutputStream bao       = new ByteArrayOutputStream();
-            int                   bytesRead = 0;
+    /**
+     * Gets the id of the signed in user, asking Graph only the first time
+     */
+    private String getUserId() throws SendMailException {
+        String userId = mUserId;
+        if (userId == null) {
+            userId = getUser().id;
+            mUserId = userId;
+        }
+        return userId;
+    }
 
-            //This seems to be executing on the main thread!!!
-            while ((bytesRead = bufferedInputStream.read(buff)) != -1) {
-                bao.write(buff, 0, bytesRead);
-            }
-            pictureBytes = bao.toByteArray();
 
-            bao.close();
-        } catch (IOException ex) {
-            DebugLogger.getInstance().writeLog(Level.SEVERE,
-                                               "Attempting to read buffered network resource",
-                                               ex);
+    /**
+     * Streams the signed in user's profile picture straight into a file, without holding it
+     * on the heap and without touching the photo cache.
+     *
+     * @param target The file to create or replace
+     * @return The number of bytes written, or 0 if the user has no picture
+     * @throws SendMailException
+     */
+    public long saveUserProfilePicture(final Path target) throws SendMailException {
+        try {
+            return execute("getProfilePhoto", true, new Callable<Long>() {
+                @Override
+                public Long call() throws IOException, SendMailException {
+                    try (GraphRawRequest.Response response =
+                                 new GraphRawRequest(mGraphServiceClient, HttpMethod.GET, "/me/photo/$value").send()) {
+                        response.checkThrottled();
+                        if (response.getStatus() == HttpURLConnection.HTTP_NOT_FOUND) {
+                            return 0L;
+                        }
+                        if (!response.isSuccess()) {
+                            throw new SendMailException("Get user profile photo returned " + response.getStatus());
+                        }
+                        return StreamingDownloader.transferToFile(response.getBody(), response.getContentLength(), target);
+                    }
+                }
+            });
+        } catch (SendMailException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new SendMailException("Exception on save user profile photo", ex);
         }
+    }
 
-        return pictureBytes;
+    /**
+     * Reads the signed in user's profile picture into a buffer borrowed from the pool. The
+     * caller owns the buffer and must release it to the pool.
+     *
+     * @param pool The pool to borrow the buffer from
+     * @return The picture, or null if the user has no picture
+     * @throws SendMailException
+     */
+    public ByteBuffer getUserProfilePicture(final ByteBufferPool pool) throws SendMailException {
+        try {
+            return execute("getProfilePhoto", true, new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() throws IOException, SendMailException {
+                    try (GraphRawRequest.Response response =
+                                 new GraphRawRequest(mGraphServiceClient, HttpMethod.GET, "/me/photo/$value").send()) {
+                        response.checkThrottled();
+                        if (response.getStatus() == HttpURLConnection.HTTP_NOT_FOUND) {
+                            return null;
+                        }
+                        if (!response.isSuccess()) {
+                            throw new SendMailException("Get user profile photo returned " + response.getStatus());
+                        }
+                        return StreamingDownloader.readIntoPooledBuffer(response.getBody(), response.getContentLength(), pool);
+                    }
+                }
+            });
+        } catch (SendMailException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new SendMailException("Exception on get user profile photo", ex);
+        }
     }
 
     /**
-     * Uploads a user picture as byte array to the user's OneDrive root folder
+     * Uploads a user picture as byte array to the user's OneDrive root folder. Pictures larger
+     * than a simple upload allows are uploaded through an upload session.
      *
      * @param picture byte[] picture byte array
      */
-    public DriveItem uploadPictureToOneDrive(byte[] picture) throws SendMailException {
+    public DriveItem uploadPictureToOneDrive(final byte[] picture) throws SendMailException {
 
         DriveItem driveItem = null;
+        if (picture.length > Constants.SIMPLE_UPLOAD_MAX_BYTES) {
+            File temp = null;
+            try {
+                temp = File.createTempFile("picture", ".png");
+                Files.write(temp.toPath(), picture);
+                return uploadFileToOneDrive(temp.toPath(), Constants.ONEDRIVE_PICTURE_FILENAME);
+            } catch (IOException ex) {
+                throw new SendMailException("exception on upload picture to OneDrive ", ex);
+            } finally {
+                if (temp != null) {
+                    temp.delete();
+                }
+            }
+        }
         try {
-            driveItem = mGraphServiceClient
-                    .me()
-                    .drive()
-                    .root()
-                    .itemWithPath("me2.png")
-                    .content()
-                    .buildRequest()
-                    .put(picture);
+            // The PUT replaces the item, so repeating it has the same result
+            driveItem = execute("uploadToOneDrive", true, new Callable<DriveItem>() {
+                @Override
+                public DriveItem call() {
+                    return mGraphServiceClient
+                            .me()
+                            .drive()
+                            .root()
+                            .itemWithPath(Constants.ONEDRIVE_PICTURE_FILENAME)
+                            .content()
+                            .buildRequest()
+                            .put(picture);
+                }
+            });
         } catch (Exception ex) {
             throw new SendMailException("exception on upload picture to OneDrive ", ex);
         }
@@ -316,6 +1241,111 @@ class GraphServiceController {
         return driveItem;
     }
 
+    /**
+     * Uploads a file of any size to the user's OneDrive root folder through an upload session.
+     * The file is sent in memory-mapped chunks and the upload resumes from the session's
+     * expected ranges after a failure. An empty file, which a session can't take, is
+     * uploaded with a simple PUT.
+     *
+     * @param file     The file to upload
+     * @param itemPath The path of the item, relative to the OneDrive root folder
+     * @return The uploaded item
+     */
+    public DriveItem uploadFileToOneDrive(Path file, final String itemPath) throws SendMailException {
+        try {
+            if (Files.size(file) == 0) {
+                // The PUT replaces the item, so repeating it has the same result
+                return execute("uploadToOneDrive", true, new Callable<DriveItem>() {
+                    @Override
+                    public DriveItem call() {
+                        return mGraphServiceClient
+                                .me()
+                                .drive()
+                                .root()
+                                .itemWithPath(itemPath)
+                                .content()
+                                .buildRequest()
+                                .put(new byte[0]);
+                    }
+                });
+            }
+            UploadSession uploadSession = execute("createUploadSession", true, new Callable<UploadSession>() {
+                @Override
+                public UploadSession call() {
+                    return mGraphServiceClient
+                            .me()
+                            .drive()
+                            .root()
+                            .itemWithPath(itemPath)
+                            .createUploadSession(new DriveItemUploadableProperties())
+                            .buildRequest()
+                            .post();
+                }
+            });
+            JsonObject item = uploadChunks(uploadSession.uploadUrl, file, ChunkedUploader.SessionKind.DRIVE_ITEM);
+            return mGraphServiceClient.getSerializer().deserializeObject(item.toString(), DriveItem.class);
+        } catch (Exception ex) {
+            throw new SendMailException("exception on upload file to OneDrive ", ex);
+        }
+    }
+
+    /**
+     * Looks for an earlier upload of the same picture to the OneDrive picture file in the
+     * upload index.
+     *
+     * @param picture The picture in bytes
+     * @return The picture with its item and sharing link, or null if it has to be uploaded
+     * @throws SendMailException
+     */
+    public SendAssets findUploadedPicture(byte[] picture) throws SendMailException {
+        if (mUploadIndex == null) {
+            return null;
+        }
+        UploadIndex.Entry entry = mUploadIndex.get(getUserId(), QuickXorHash.hash(picture));
+        if (entry == null) {
+            return null;
+        }
+        DebugLogger.getInstance().writeLog(Level.INFO, "Picture already shared at {}", entry.getWebUrl());
+        DriveItem driveItem = null;
+        if (entry.getItemId() != null) {
+            driveItem = new DriveItem();
+            driveItem.id = entry.getItemId();
+            driveItem.name = Constants.ONEDRIVE_PICTURE_FILENAME;
+        }
+        Permission permission = new Permission();
+        permission.link = new SharingLink();
+        permission.link.type = "view";
+        permission.link.scope = "organization";
+        permission.link.webUrl = entry.getWebUrl();
+        return new SendAssets(picture, driveItem, permission);
+    }
+
+    /**
+     * Records an upload of the picture to the OneDrive picture file and its sharing link in
+     * the upload index. Uploads for which OneDrive reports a different quickXorHash are not
+     * recorded.
+     *
+     * @param picture    The picture in bytes
+     * @param driveItem  The uploaded item, or null if the upload did not return it
+     * @param permission The sharing link to the item
+     * @throws SendMailException
+     */
+    public void indexUploadedPicture(byte[] picture, DriveItem driveItem, Permission permission)
+            throws SendMailException {
+        if (mUploadIndex == null || permission == null || permission.link == null || permission.link.webUrl == null) {
+            return;
+        }
+        String hash = QuickXorHash.hash(picture);
+        if (driveItem != null && driveItem.file != null && driveItem.file.hashes != null
+            && driveItem.file.hashes.quickXorHash != null && !hash.equals(driveItem.file.hashes.quickXorHash)) {
+            DebugLogger.getInstance().writeLog(Level.WARNING, "OneDrive reports quickXorHash {}, expected {}",
+                                               driveItem.file.hashes.quickXorHash, hash);
+            return;
+        }
+        mUploadIndex.put(getUserId(), hash, Constants.ONEDRIVE_PICTURE_FILENAME,
+                         driveItem == null ? null : driveItem.id, permission.link.webUrl);
+    }
+
     /**
      * Requests OneDrive to create a public sharing link to a picture stored in OneDrive.
      *
@@ -323,17 +1353,23 @@ class GraphServiceController {
      * @return Permission. The Permission object that exposes the requested sharing link
      * @throws SendMailException
      */
-    public Permission getPermissionSharingLink(String id) throws SendMailException {
+    public Permission getPermissionSharingLink(final String id) throws SendMailException {
 
         Permission permission = null;
         try {
-            permission = mGraphServiceClient
-                    .me()
-                    .drive()
-                    .items(id)
-                    .createLink("view", "organization")
-                    .buildRequest()
-                    .post();
+            // createLink returns the existing link when the item already has one of this type and scope
+            permission = execute("createSharingLink", true, new Callable<Permission>() {
+                @Override
+                public Permission call() {
+                    return mGraphServiceClient
+                            .me()
+                            .drive()
+                            .items(id)
+                            .createLink("view", "organization")
+                            .buildRequest()
+                            .post();
+                }
+            });
         } catch (Exception ex) {
             throw new SendMailException("exception on get OneDrive sharing link ", ex);
         }
@@ -342,42 +1378,119 @@ class GraphServiceController {
     }
 
     /**
-     * Gets a picture from the device external storage root folder
+     * Gets the default picture, which is loaded once and shared by all sends
      *
-     * @return byte[] the default picture in a byte array
+     * @return byte[] the default picture in a byte array. Must not be modified
      */
-    private byte[] getDefaultPicture() throws SendMailException{
-
+    private byte[] getDefaultPicture() throws SendMailException {
+        try {
+            return DefaultPicture.getInstance().getBytes();
+        } catch (IOException e) {
+            throw new SendMailException("Could not open default picture file", e);
+        }
+    }
 
-        int    bytesRead;
-        byte[] bytes = new byte[1024];
 
-        File            file = new File("/", Constants.DEFAULT_IMAGE_FILENAME);
-        FileInputStream buf  = null;
-        if (file.exists() && file.canRead()) {
-            int size = (int) file.length();
-            bytes = new byte[size];
-            try {
-                buf = new FileInputStream(file);
-                bytesRead = buf.read(bytes, 0, size);
-                DebugLogger.getInstance().writeLog(Level.INFO, "Bytes read " + String.valueOf(bytesRead));
-            } catch (FileNotFoundException e) {
-                throw new SendMailException("Could not find default picture file", e);
-
-            } catch (IOException e) {
-                throw new SendMailException("Could not open default picture file", e);
-            }
+    /**
+     * Creates the file attachment for a picture, falling back to the default picture when the
+     * picture is empty
+     *
+     * @param picture The picture in bytes
+     */
+    private FileAttachment createPictureAttachment(byte[] picture) throws SendMailException {
+        byte[] attachementBytes = new byte[picture.length];
+        if (picture.length > 0) {
+            attachementBytes = picture;
+        }
+        else {
+            attachementBytes = getDefaultPicture();
         }
-        return bytes;
-    }
 
+        FileAttachment fileAttachment = createFileAttachment(PICTURE_ATTACHMENT_NAME, attachementBytes);
+        fileAttachment.id = "blabla";
+        return fileAttachment;
+    }
 
+    /**
+     * Creates a file attachment that carries its content in the request body
+     *
+     * @param name  The file name shown in the message
+     * @param bytes The file content
+     */
     @VisibleForTesting
+    static FileAttachment createFileAttachment(String name, byte[] bytes) {
+        FileAttachment fileAttachment = new FileAttachment();
+        fileAttachment.oDataType = "#microsoft.graph.fileAttachment";
+        fileAttachment.contentBytes = bytes;
+        fileAttachment.name = name;
+        fileAttachment.size = bytes.length;
+        fileAttachment.isInline = false;
+        return fileAttachment;
+    }
+
+    /**
+     * Creates the JSON of a new message with an inline file attachment
+     */
+    private JsonObject createMessageWithAttachmentJson(
+            String subject,
+            String body,
+            String address,
+            FileAttachment fileAttachment) {
+        return createMessageWithAttachmentJson(subject, body, RecipientGroup.to(address), fileAttachment);
+    }
+
+    /**
+     * Creates the JSON of a new message to a group of recipients with an inline file attachment
+     */
+    private JsonObject createMessageWithAttachmentJson(
+            String subject,
+            String body,
+            RecipientGroup recipients,
+            FileAttachment fileAttachment) {
+        JsonObject message = toJson(createMessage(subject, body, recipients));
+        JsonArray attachments = new JsonArray();
+        attachments.add(toJson(fileAttachment));
+        message.add("attachments", attachments);
+        return message;
+    }
+
+    /**
+     * Creates the singleValueExtendedProperties of a message tagged with an outbox marker
+     */
+    private static JsonArray createOutboxMarker(String outboxMarker) {
+        JsonObject property = new JsonObject();
+        property.addProperty("id", OUTBOX_MARKER_PROPERTY);
+        property.addProperty("value", outboxMarker);
+        JsonArray properties = new JsonArray();
+        properties.add(property);
+        return properties;
+    }
+
+    /**
+     * Serializes a Graph model object with the client's serializer
+     */
+    private JsonObject toJson(Object graphObject) {
+        return new JsonParser()
+                .parse(mGraphServiceClient.getSerializer().serializeObject(graphObject))
+                .getAsJsonObject();
+    }
+
+    /**
+     * Turns a failed batch response into an exception that completes the caller's future. Its
+     * cause tells {@link RetryPolicy#isRefused(Exception)} whether Graph refused the operation
+     */
+    private static void checkBatchResponse(BatchResponse response, String message) {
+        if (!response.isSuccess()) {
+            throw new CompletionException(new SendMailException(
+                    message + " (status " + response.getStatus() + ") " + response.getBody(), response.toException()));
+        }
+    }
 
     /**
      * Creates a new Message object
      */
-    private Message createMessage(
+    @VisibleForTesting
+    static Message createMessage(
             String subject,
             String body,
             String address) {
@@ -385,21 +1498,22 @@ class GraphServiceController {
         if (address == null || address.isEmpty()) {
             throw new IllegalArgumentException("The address parameter can't be null or empty.");
         }
-        else {
-            // perform a simple validation of the email address
-            String addressParts[] = address.split("@");
-            if (addressParts.length != 2 || addressParts[0].length() == 0 || addressParts[1].indexOf('.') == -1) {
-                throw new IllegalArgumentException(
-                        String.format("The address parameter must be a valid email address {0}", address)
-                );
-            }
-        }
-        Message      message      = new Message();
-        EmailAddress emailAddress = new EmailAddress();
-        emailAddress.address = address;
-        Recipient recipient = new Recipient();
-        recipient.emailAddress = emailAddress;
-        message.toRecipients = Collections.singletonList(recipient);
+        return createMessage(subject, body, RecipientGroup.to(address));
+    }
+
+    /**
+     * Creates a new Message object addressed to a group of recipients
+     */
+    @VisibleForTesting
+    static Message createMessage(
+            String subject,
+            String body,
+            RecipientGroup recipients) {
+
+        Message message = new Message();
+        message.toRecipients = toRecipientList(recipients.getTo());
+        message.ccRecipients = toRecipientList(recipients.getCc());
+        message.bccRecipients = toRecipientList(recipients.getBcc());
         ItemBody itemBody = new ItemBody();
         itemBody.content = body;
         itemBody.contentType = BodyType.HTML;
@@ -407,4 +1521,28 @@ class GraphServiceController {
         message.subject = subject;
         return message;
     }
+
+    /**
+     * Creates the recipients of one field of a message
+     *
+     * @return The recipients, or null for an empty field so that it is left out of the request
+     */
+    private static List<Recipient> toRecipientList(List<String> addresses) {
+        if (addresses.isEmpty()) {
+            return null;
+        }
+        List<Recipient> recipients = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            if (!EmailAddresses.isValid(address)) {
+                throw new IllegalArgumentException(
+                        String.format("The address parameter must be a valid email address %s", address));
+            }
+            EmailAddress emailAddress = new EmailAddress();
+            emailAddress.address = address;
+            Recipient recipient = new Recipient();
+            recipient.emailAddress = emailAddress;
+            recipients.add(recipient);
+        }
+        return recipients;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graph.core.ClientException;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Thrown when Graph throttles a request with 429 Too Many Requests or 503 Service Unavailable.
+ * Carries the delay Graph asked for in its Retry-After header so {@link RetryPolicy} can wait
+ * exactly that long.
+ */
+public class GraphThrottledException extends ClientException {
+    private static final long serialVersionUID = 1L;
+
+    public static final int TOO_MANY_REQUESTS = 429;
+    public static final int SERVICE_UNAVAILABLE = 503;
+
+    private final int mStatus;
+    private final long mRetryAfterMillis;
+
+    /**
+     * @param status           The response status
+     * @param retryAfterMillis The delay asked for by Graph, or -1 if the response had no Retry-After
+     * @param cause            The exception describing the failed response, or null
+     */
+    public GraphThrottledException(int status, long retryAfterMillis, Throwable cause) {
+        super("Graph throttled the request (status " + status
+              + (retryAfterMillis >= 0 ? ", retry after " + retryAfterMillis + " ms)" : ")"), cause);
+        mStatus = status;
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return True if the status is one Graph uses to throttle requests
+     */
+    public static boolean isThrottlingStatus(int status) {
+        return status == TOO_MANY_REQUESTS || status == SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Parses a Retry-After header, which holds either a number of seconds or an HTTP date
+     *
+     * @param retryAfter The header value, or null
+     * @return The delay in milliseconds, or -1 if the header is missing or malformed
+     */
+    public static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException ex) {
+            // Not a number of seconds, so it should be a date
+        }
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, httpDate.parse(retryAfter.trim()).getTime() - System.currentTimeMillis());
+        } catch (ParseException ex) {
+            return -1;
+        }
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return The delay asked for by Graph, or -1 if the response had no Retry-After header
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+}
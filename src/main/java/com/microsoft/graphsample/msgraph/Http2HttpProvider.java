@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graph.authentication.IAuthenticationProvider;
+import com.microsoft.graph.concurrency.ICallback;
+import com.microsoft.graph.concurrency.IExecutors;
+import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.GraphServiceException;
+import com.microsoft.graph.http.IHttpProvider;
+import com.microsoft.graph.http.IHttpRequest;
+import com.microsoft.graph.http.IStatefulResponseHandler;
+import com.microsoft.graph.logger.ILogger;
+import com.microsoft.graph.logger.LoggerLevel;
+import com.microsoft.graph.options.HeaderOption;
+import com.microsoft.graph.serializer.ISerializer;
+import com.microsoft.graphsample.metrics.OperationMetrics;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * An {@link IHttpProvider} built on the JDK's java.net.http client. Requests to Graph are
+ * multiplexed over pooled HTTP/2 connections, so concurrent sends share a few TLS sessions
+ * instead of opening one connection each. {@link #sendAsync(IHttpRequest, Class, Object)}
+ * sends without holding a thread while the request is in flight.
+ * <p>
+ * A blocking send hands binary responses to the caller as an open stream over the connection.
+ * JSON responses are read whole before they are deserialized, and sendAsync buffers every
+ * response body in memory, so neither suits large downloads.
+ * <p>
+ * Response handling follows the SDK's DefaultHttpProvider, so the provider can be swapped in
+ * through {@link GraphClientConfig} without changing callers.
+ */
+public class Http2HttpProvider implements IHttpProvider {
+    private static final String CONTENT_TYPE_HEADER_NAME = "Content-Type";
+    private static final String JSON_CONTENT_TYPE = "application/json";
+
+    private final ISerializer mSerializer;
+    private final IAuthenticationProvider mAuthenticationProvider;
+    private final IExecutors mExecutors;
+    private final ILogger mLogger;
+    private final HttpTransportOptions mOptions;
+    private final HttpClient mHttpClient;
+
+    public Http2HttpProvider(
+            ISerializer serializer,
+            IAuthenticationProvider authenticationProvider,
+            IExecutors executors,
+            ILogger logger,
+            HttpTransportOptions options) {
+        this(serializer, authenticationProvider, executors, logger, options, newHttpClient(options));
+    }
+
+    /**
+     * Creates a provider that sends over the connections of an existing client, so providers
+     * that authenticate requests differently, for different accounts, share their connections.
+     *
+     * @param httpClient A client made by {@link #newHttpClient(HttpTransportOptions)}
+     */
+    public Http2HttpProvider(
+            ISerializer serializer,
+            IAuthenticationProvider authenticationProvider,
+            IExecutors executors,
+            ILogger logger,
+            HttpTransportOptions options,
+            HttpClient httpClient) {
+        mSerializer = serializer;
+        mAuthenticationProvider = authenticationProvider;
+        mExecutors = executors;
+        mLogger = logger;
+        mOptions = options;
+        mHttpClient = httpClient;
+    }
+
+    /**
+     * @return A JDK HTTP client configured with the transport options
+     */
+    public static HttpClient newHttpClient(HttpTransportOptions options) {
+        return HttpClient.newBuilder()
+                         .version(options.isHttp2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                         .connectTimeout(Duration.ofMillis(options.getConnectTimeoutMillis()))
+                         .followRedirects(HttpClient.Redirect.NORMAL)
+                         .build();
+    }
+
+    @Override
+    public ISerializer getSerializer() {
+        return mSerializer;
+    }
+
+    @Override
+    public <Result, BodyType> void send(
+            final IHttpRequest request,
+            final ICallback<Result> callback,
+            final Class<Result> resultClass,
+            final BodyType serializable) {
+        mExecutors.performOnBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mExecutors.performOnForeground(send(request, resultClass, serializable), callback);
+                } catch (ClientException ex) {
+                    mExecutors.performOnForeground(ex, callback);
+                }
+            }
+        });
+    }
+
+    @Override
+    public <Result, BodyType> Result send(
+            IHttpRequest request,
+            Class<Result> resultClass,
+            BodyType serializable) throws ClientException {
+        return send(request, resultClass, serializable, null);
+    }
+
+    @Override
+    public <Result, BodyType, DeserializeType> Result send(
+            IHttpRequest request,
+            Class<Result> resultClass,
+            BodyType serializable,
+            IStatefulResponseHandler<Result, DeserializeType> handler) throws ClientException {
+        JdkHttpConnection connection = null;
+        boolean streamed = false;
+        try {
+            mAuthenticationProvider.authenticateRequest(request);
+            connection = openConnection(request, serializable);
+            OperationMetrics.addBytesSentToCurrent(connection.getRequestContentLength());
+            if (handler != null) {
+                handler.configConnection(connection);
+                return handler.generateResult(request, connection, mSerializer, mLogger);
+            }
+
+            // The response code is asked for first because it sends the request
+            connection.getResponseCode();
+            OperationMetrics.addBytesReceivedToCurrent(connection.getContentLength());
+            Result result = handleResponse(request, serializable, connection, resultClass);
+            // Binary content is handed over unread; the caller owns and closes the stream
+            streamed = result instanceof InputStream;
+            return result;
+        } catch (Exception ex) {
+            throw toClientException(ex);
+        } finally {
+            if (connection != null && !streamed) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Sends a request and hands the response over unread, for callers that handle the status,
+     * headers and body themselves, such as {@link GraphRawRequest}. The request must already be
+     * authenticated.
+     *
+     * @param body The request body, or null for none
+     * @return The sent connection, with the response body streamed. The caller must close it
+     */
+    JdkHttpConnection sendRaw(IHttpRequest request, byte[] body) throws IOException {
+        JdkHttpConnection connection;
+        try {
+            connection = openConnection(request, body);
+        } catch (URISyntaxException ex) {
+            throw new IOException("Invalid request url " + request.getRequestUrl(), ex);
+        }
+        connection.getResponseCode();
+        return connection;
+    }
+
+    /**
+     * Sends a request without blocking the calling thread on the network. The response is
+     * handled like the blocking {@link #send(IHttpRequest, Class, Object)}, except that the body
+     * is buffered, so binary results are streams over memory rather than over the connection.
+     * <p>
+     * Authentication runs on the calling thread. It only blocks when the access token has to
+     * be refreshed.
+     *
+     * @return A future completed with the result, or completed exceptionally with a
+     * {@link ClientException}, such as a {@link GraphThrottledException} or a {@link GraphServiceException}
+     */
+    public <Result> CompletableFuture<Result> sendAsync(
+            final IHttpRequest request,
+            final Class<Result> resultClass,
+            final Object serializable) {
+        final JdkHttpConnection connection;
+        try {
+            mAuthenticationProvider.authenticateRequest(request);
+            connection = openConnection(request, serializable);
+        } catch (Exception ex) {
+            CompletableFuture<Result> failed = new CompletableFuture<>();
+            failed.completeExceptionally(toClientException(ex));
+            return failed;
+        }
+        // Metrics are thread bound; the response arrives on another thread
+        final OperationMetrics metrics = OperationMetrics.current();
+        if (metrics != null) {
+            metrics.addBytesSent(Math.max(0, connection.getRequestContentLength()));
+        }
+        return connection.sendAsync().thenApply(new Function<JdkHttpConnection, Result>() {
+            @Override
+            public Result apply(JdkHttpConnection response) {
+                try {
+                    if (metrics != null) {
+                        metrics.addBytesReceived(Math.max(0, response.getContentLength()));
+                    }
+                    return handleResponse(request, serializable, response, resultClass);
+                } catch (Exception ex) {
+                    throw toClientException(ex);
+                } finally {
+                    response.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Turns the response into the result, or throws for error statuses. Binary content is
+     * returned as the open response stream.
+     */
+    private <Result> Result handleResponse(
+            IHttpRequest request,
+            Object serializable,
+            JdkHttpConnection connection,
+            Class<Result> resultClass) throws IOException {
+        int status = connection.getResponseCode();
+        if (mLogger.getLoggingLevel() == LoggerLevel.DEBUG) {
+            mLogger.logDebug(request.getHttpMethod() + " " + request.getRequestUrl() + " returned " + status);
+        }
+        if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            GraphServiceException serviceException =
+                    GraphServiceException.createFromConnection(request, serializable, mSerializer, connection, mLogger);
+            if (GraphThrottledException.isThrottlingStatus(status)) {
+                throw new GraphThrottledException(status,
+                                                  GraphThrottledException.parseRetryAfter(connection.getHeader("Retry-After")),
+                                                  serviceException);
+            }
+            throw serviceException;
+        }
+        if (status == HttpURLConnection.HTTP_NO_CONTENT || status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return handleEmptyResponse(connection, resultClass);
+        }
+        String contentType = connection.getHeader(CONTENT_TYPE_HEADER_NAME);
+        if (contentType != null && contentType.contains(JSON_CONTENT_TYPE)) {
+            return handleJsonResponse(connection, resultClass);
+        }
+        if (status == HttpURLConnection.HTTP_ACCEPTED) {
+            return handleEmptyResponse(connection, resultClass);
+        }
+        @SuppressWarnings("unchecked")
+        Result stream = (Result) connection.getInputStream();
+        return stream;
+    }
+
+    private ClientException toClientException(Exception ex) {
+        if (ex instanceof ClientException) {
+            return (ClientException) ex;
+        }
+        ClientException clientException = new ClientException("Error during http request", ex);
+        mLogger.logError("Error during http request", clientException);
+        return clientException;
+    }
+
+    private JdkHttpConnection openConnection(IHttpRequest request, Object serializable)
+            throws URISyntaxException {
+        HttpRequest.BodyPublisher body;
+        String contentType = null;
+        if (serializable == null) {
+            body = HttpRequest.BodyPublishers.noBody();
+        }
+        else if (serializable instanceof byte[]) {
+            body = HttpRequest.BodyPublishers.ofByteArray((byte[]) serializable);
+            contentType = "application/octet-stream";
+        }
+        else {
+            body = HttpRequest.BodyPublishers.ofString(mSerializer.serializeObject(serializable),
+                                                       StandardCharsets.UTF_8);
+            contentType = JSON_CONTENT_TYPE;
+        }
+
+        JdkHttpConnection connection = new JdkHttpConnection(mHttpClient,
+                                                             request.getRequestUrl().toURI(),
+                                                             request.getHttpMethod().toString(),
+                                                             body,
+                                                             mOptions.getRequestTimeoutMillis());
+        boolean hasContentType = false;
+        for (HeaderOption header : request.getHeaders()) {
+            connection.addRequestHeader(header.getName(), header.getValue().toString());
+            hasContentType |= CONTENT_TYPE_HEADER_NAME.equalsIgnoreCase(header.getName());
+        }
+        if (contentType != null && !hasContentType) {
+            connection.addRequestHeader(CONTENT_TYPE_HEADER_NAME, contentType);
+        }
+        return connection;
+    }
+
+    private <Result> Result handleJsonResponse(JdkHttpConnection connection, Class<Result> resultClass)
+            throws IOException {
+        if (resultClass == null || resultClass == Void.class) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            StringBuilder json = new StringBuilder(Math.max(connection.getContentLength(), 256));
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                json.append(buffer, 0, read);
+            }
+            return mSerializer.deserializeObject(json.toString(), resultClass, connection.getResponseHeaders());
+        }
+    }
+
+    private <Result> Result handleEmptyResponse(JdkHttpConnection connection, Class<Result> resultClass) {
+        if (resultClass == null || resultClass == Void.class || resultClass == InputStream.class) {
+            return null;
+        }
+        return mSerializer.deserializeObject("{}", resultClass, connection.getResponseHeaders());
+    }
+}
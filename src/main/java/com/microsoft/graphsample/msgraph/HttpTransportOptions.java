@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graphsample.connect.Constants;
+
+/**
+ * Connection settings of the {@link Http2HttpProvider}.
+ * <p>
+ * The JDK HTTP client shares one connection pool per process, configured through the
+ * jdk.httpclient.keepalive.timeout and jdk.httpclient.connectionPoolSize system properties,
+ * the latter for HTTP/1.1 connections only. The JDK reads them once, when its first client
+ * is created, and they apply to every client in the process, so the provider leaves them
+ * alone. Pass them on the command line, or call {@link #setJdkClientProperties()} from an
+ * application's main method.
+ */
+public final class HttpTransportOptions {
+    private final long mConnectTimeoutMillis;
+    private final long mRequestTimeoutMillis;
+    private final int mKeepAliveSeconds;
+    private final int mMaxPooledConnections;
+    private final boolean mHttp2;
+
+    /**
+     * @param connectTimeoutMillis How long to wait for a connection to be established
+     * @param requestTimeoutMillis How long to wait for the response headers of a request
+     * @param keepAliveSeconds     How long an idle pooled connection is kept open
+     * @param maxPooledConnections The most idle connections kept in the pool, 0 for no limit
+     * @param http2                True to negotiate HTTP/2, false to stay on HTTP/1.1
+     */
+    public HttpTransportOptions(
+            long connectTimeoutMillis,
+            long requestTimeoutMillis,
+            int keepAliveSeconds,
+            int maxPooledConnections,
+            boolean http2) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mRequestTimeoutMillis = requestTimeoutMillis;
+        mKeepAliveSeconds = keepAliveSeconds;
+        mMaxPooledConnections = maxPooledConnections;
+        mHttp2 = http2;
+    }
+
+    /**
+     * @return The options configured in {@link Constants}
+     */
+    public static HttpTransportOptions fromConstants() {
+        return new HttpTransportOptions(Constants.HTTP_CONNECT_TIMEOUT_MILLIS,
+                                        Constants.HTTP_REQUEST_TIMEOUT_MILLIS,
+                                        Constants.HTTP_KEEP_ALIVE_SECONDS,
+                                        Constants.HTTP_MAX_POOLED_CONNECTIONS,
+                                        true);
+    }
+
+    public long getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    public long getRequestTimeoutMillis() {
+        return mRequestTimeoutMillis;
+    }
+
+    public int getKeepAliveSeconds() {
+        return mKeepAliveSeconds;
+    }
+
+    public int getMaxPooledConnections() {
+        return mMaxPooledConnections;
+    }
+
+    public boolean isHttp2() {
+        return mHttp2;
+    }
+
+    /**
+     * Sets the JDK HTTP client's keep alive and pool size properties from these options,
+     * unless they were set on the command line. For an application's main method, before any
+     * JDK HTTP client is created; they have no effect afterwards.
+     */
+    public void setJdkClientProperties() {
+        setPropertyIfAbsent("jdk.httpclient.keepalive.timeout", String.valueOf(mKeepAliveSeconds));
+        setPropertyIfAbsent("jdk.httpclient.connectionPoolSize", String.valueOf(mMaxPooledConnections));
+    }
+
+    private static void setPropertyIfAbsent(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+/**
+ * Receives the outcome of each recipient of a {@link BulkSendEngine} run.
+ * Invoked on the engine's worker threads, so implementations must be thread safe.
+ */
+public interface IBulkSendCallback {
+    void onResult(SendResult result);
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graph.http.IConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Presents one java.net.http exchange as the SDK's {@link IConnection}, so SDK code that reads
+ * responses from a connection, such as GraphServiceException.createFromConnection and
+ * stateful response handlers, works with the {@link Http2HttpProvider}.
+ * <p>
+ * The request is sent the first time the response is asked for. The response body is
+ * streamed, not buffered, unless the request is sent with {@link #sendAsync()}.
+ */
+final class JdkHttpConnection implements IConnection {
+    // Headers the JDK client manages itself and refuses to have set
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade"));
+
+    // Reads the whole body before the response is handed over, so reading it never blocks
+    private static final HttpResponse.BodyHandler<InputStream> BUFFERED_BODY =
+            new HttpResponse.BodyHandler<InputStream>() {
+                @Override
+                public HttpResponse.BodySubscriber<InputStream> apply(HttpResponse.ResponseInfo responseInfo) {
+                    return HttpResponse.BodySubscribers.mapping(
+                            HttpResponse.BodySubscribers.ofByteArray(),
+                            new Function<byte[], InputStream>() {
+                                @Override
+                                public InputStream apply(byte[] body) {
+                                    return new ByteArrayInputStream(body);
+                                }
+                            });
+                }
+            };
+
+    private final HttpClient mHttpClient;
+    private final HttpRequest.Builder mRequestBuilder;
+    private final String mMethod;
+    private final HttpRequest.BodyPublisher mBody;
+    private HttpResponse<InputStream> mResponse;
+
+    JdkHttpConnection(
+            HttpClient httpClient,
+            URI uri,
+            String method,
+            HttpRequest.BodyPublisher body,
+            long timeoutMillis) {
+        mHttpClient = httpClient;
+        mMethod = method;
+        mBody = body;
+        mRequestBuilder = HttpRequest.newBuilder(uri).timeout(Duration.ofMillis(timeoutMillis));
+    }
+
+    @Override
+    public void setFollowRedirects(boolean followRedirects) {
+        // Redirects are a client wide setting of the JDK client
+    }
+
+    @Override
+    public void addRequestHeader(String name, String value) {
+        if (mResponse != null) {
+            throw new IllegalStateException("The request has already been sent");
+        }
+        if (!RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+            mRequestBuilder.header(name, value);
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Request bodies are supplied to the connection when it is created");
+    }
+
+    /**
+     * @return The response body, for success and error responses alike
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return send().body();
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return send().statusCode();
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        // HTTP/2 has no reason phrase
+        return String.valueOf(send().statusCode());
+    }
+
+    @Override
+    public void close() {
+        if (mResponse != null) {
+            try {
+                mResponse.body().close();
+            } catch (IOException ex) {
+                // Closing releases the stream either way
+            }
+        }
+    }
+
+    /**
+     * @return The first value of each response header
+     */
+    @Override
+    public Map<String, String> getHeaders() {
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : getResponseHeaders().entrySet()) {
+            if (!header.getValue().isEmpty()) {
+                headers.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+        return headers;
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return mResponse == null ? Collections.<String, List<String>>emptyMap() : mResponse.headers().map();
+    }
+
+    /**
+     * @return The first value of the named response header, matched without regard to case,
+     * or null if the response does not have it
+     */
+    String getHeader(String name) {
+        return mResponse == null ? null : mResponse.headers().firstValue(name).orElse(null);
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return mMethod;
+    }
+
+    @Override
+    public int getContentLength() {
+        if (mResponse == null) {
+            return -1;
+        }
+        return (int) mResponse.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    /**
+     * @return The length of the request body, or -1 if it is not known
+     */
+    long getRequestContentLength() {
+        return mBody.contentLength();
+    }
+
+    @Override
+    public void setContentLength(int length) {
+        // The body publisher declares the length
+    }
+
+    /**
+     * Sends the request without blocking. The response body is buffered in memory, so it
+     * should only be used for responses of modest size, such as JSON.
+     *
+     * @return A future completed with this connection once the whole response has arrived
+     */
+    CompletableFuture<JdkHttpConnection> sendAsync() {
+        if (mResponse != null) {
+            throw new IllegalStateException("The request has already been sent");
+        }
+        return mHttpClient.sendAsync(mRequestBuilder.method(mMethod, mBody).build(), BUFFERED_BODY)
+                          .thenApply(new Function<HttpResponse<InputStream>, JdkHttpConnection>() {
+                              @Override
+                              public JdkHttpConnection apply(HttpResponse<InputStream> response) {
+                                  mResponse = response;
+                                  return JdkHttpConnection.this;
+                              }
+                          });
+    }
+
+    private HttpResponse<InputStream> send() throws IOException {
+        if (mResponse == null) {
+            try {
+                mResponse = mHttpClient.send(mRequestBuilder.method(mMethod, mBody).build(),
+                                             HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + mMethod + " response");
+            }
+        }
+        return mResponse;
+    }
+}
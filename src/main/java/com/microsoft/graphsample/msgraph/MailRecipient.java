@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+/**
+ * A recipient address with the personalization fields read alongside it, such as a name
+ * or the other columns of a CSV line. The address is also available as the "email" and
+ * "address" fields.
+ * <p>
+ * Recipients read from one file share their array of field names.
+ */
+public final class MailRecipient implements MailTemplate.Fields {
+    private static final String[] NO_FIELDS = new String[0];
+
+    private final String mAddress;
+    private final String[] mFieldNames;
+    private final String[] mFieldValues;
+
+    public MailRecipient(String address) {
+        this(address, NO_FIELDS, NO_FIELDS);
+    }
+
+    /**
+     * @param address     The recipient email address
+     * @param fieldNames  Field names, usually shared by every recipient of a file
+     * @param fieldValues Field values in the order of the names. Missing trailing values are null
+     */
+    public MailRecipient(String address, String[] fieldNames, String[] fieldValues) {
+        mAddress = address;
+        mFieldNames = fieldNames;
+        mFieldValues = fieldValues;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @param name The field name. Names are case sensitive
+     * @return The field value, or null if the recipient has no such field
+     */
+    @Override
+    public String get(String name) {
+        for (int i = 0; i < mFieldNames.length && i < mFieldValues.length; i++) {
+            if (mFieldNames[i].equals(name)) {
+                return mFieldValues[i];
+            }
+        }
+        if ("email".equals(name) || "address".equals(name)) {
+            return mAddress;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return mAddress;
+    }
+}
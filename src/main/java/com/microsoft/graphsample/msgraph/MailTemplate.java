@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An HTML mail body with {{field}} placeholders, parsed once into literal and placeholder
+ * segments so that a mail merge does not search or copy the template for every recipient.
+ * <p>
+ * Field values are HTML escaped as they are written, and each body is rendered into a buffer
+ * that is reused by the calling thread. Rendering a body allocates only the returned String.
+ * Fields without a value render as nothing.
+ * <p>
+ * Instances are immutable and can be shared by concurrent sends.
+ */
+public final class MailTemplate {
+    /**
+     * Supplies the value of the template fields
+     */
+    public interface Fields {
+        /**
+         * @param name The field name between the braces, without surrounding spaces
+         * @return The unescaped value, or null if this source has no such field
+         */
+        String get(String name);
+    }
+
+    private static final String OPEN = "{{";
+    private static final String CLOSE = "}}";
+    // Buffers that grew past this are dropped after use rather than kept by the thread
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private static final ThreadLocal<StringBuilder> sBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    private final String[] mLiterals;
+    private final String[] mFieldNames;
+    private final Set<String> mFieldNameSet;
+    private final int mLiteralLength;
+    // Longest body rendered so far, used to size the buffer before rendering
+    private volatile int mExpectedLength;
+
+    private MailTemplate(List<String> literals, List<String> fieldNames) {
+        mLiterals = literals.toArray(new String[0]);
+        mFieldNames = fieldNames.toArray(new String[0]);
+        mFieldNameSet = Collections.unmodifiableSet(new LinkedHashSet<String>(fieldNames));
+        int literalLength = 0;
+        for (String literal : mLiterals) {
+            literalLength += literal.length();
+        }
+        mLiteralLength = literalLength;
+        mExpectedLength = literalLength + 64 * mFieldNames.length;
+    }
+
+    /**
+     * @param source The template text
+     * @return The parsed template
+     * @throws IllegalArgumentException If a placeholder is not closed or has no name
+     */
+    public static MailTemplate compile(String source) {
+        List<String> literals = new ArrayList<String>();
+        List<String> fieldNames = new ArrayList<String>();
+        int position = 0;
+        int open;
+        while ((open = source.indexOf(OPEN, position)) >= 0) {
+            int close = source.indexOf(CLOSE, open + OPEN.length());
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed template placeholder at offset " + open);
+            }
+            String name = source.substring(open + OPEN.length(), close).trim();
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Empty template placeholder at offset " + open);
+            }
+            literals.add(source.substring(position, open));
+            fieldNames.add(name);
+            position = close + CLOSE.length();
+        }
+        literals.add(source.substring(position));
+        return new MailTemplate(literals, fieldNames);
+    }
+
+    /**
+     * @param file A UTF-8 template file
+     * @return The parsed template
+     * @throws IOException
+     */
+    public static MailTemplate load(Path file) throws IOException {
+        return compile(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The names of the fields the template uses, in order of first use
+     */
+    public Set<String> getFieldNames() {
+        return mFieldNameSet;
+    }
+
+    /**
+     * Renders the body, looking each field up in the recipient's fields first and then in the
+     * fields shared by every recipient.
+     *
+     * @param recipientFields Fields of the recipient, such as the name and CSV columns
+     * @param sharedFields    Fields common to the whole send, such as the sharing link. May be null
+     * @return The rendered body
+     */
+    public String render(Fields recipientFields, Fields sharedFields) {
+        StringBuilder buffer = sBuffer.get();
+        buffer.setLength(0);
+        buffer.ensureCapacity(mExpectedLength);
+        renderTo(buffer, recipientFields, sharedFields);
+        int length = buffer.length();
+        if (length > mExpectedLength) {
+            mExpectedLength = length;
+        }
+        String body = buffer.toString();
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            sBuffer.remove();
+        }
+        return body;
+    }
+
+    /**
+     * Appends the rendered body to a caller supplied buffer.
+     *
+     * @param buffer          The buffer to append to
+     * @param recipientFields Fields of the recipient
+     * @param sharedFields    Fields common to the whole send. May be null
+     */
+    public void renderTo(StringBuilder buffer, Fields recipientFields, Fields sharedFields) {
+        for (int i = 0; i < mFieldNames.length; i++) {
+            buffer.append(mLiterals[i]);
+            String value = recipientFields == null ? null : recipientFields.get(mFieldNames[i]);
+            if (value == null && sharedFields != null) {
+                value = sharedFields.get(mFieldNames[i]);
+            }
+            if (value != null) {
+                appendEscaped(buffer, value);
+            }
+        }
+        buffer.append(mLiterals[mFieldNames.length]);
+    }
+
+    /**
+     * @return The length of the template without its placeholders
+     */
+    public int getLiteralLength() {
+        return mLiteralLength;
+    }
+
+    /**
+     * Appends text escaped for use in HTML element content and quoted attribute values
+     */
+    static void appendEscaped(StringBuilder buffer, String value) {
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            String entity;
+            switch (value.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                case '\'':
+                    entity = "&#39;";
+                    break;
+                default:
+                    continue;
+            }
+            buffer.append(value, start, i).append(entity);
+            start = i + 1;
+        }
+        buffer.append(value, start, length);
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Durable record of the send jobs of a bulk run and of the steps each job completed, so that
+ * a run that was stopped, or whose process died, resumes where it left off.
+ * <p>
+ * The journal is an append-only file written through a memory mapping. Each record is a
+ * length, a CRC32 and the record itself, so a record torn by a crash is detected when the
+ * journal is opened, and the journal continues after the last whole record. The mapped pages
+ * belong to the operating system once written, so records survive the process dying without
+ * a write to disk per record. Set forceWrites to also survive a power loss, at the cost of a
+ * disk flush per record.
+ * <p>
+ * When the journal is opened, the state of every job is rebuilt from its records: completed
+ * jobs are skipped, and the others continue after their last completed step with the draft
+ * that step created. A job whose sendMail call started and neither completed nor was refused
+ * by Graph is in doubt: the mail may have been sent, so it is reported rather than sent again.
+ * A step can record a value when it starts, such as the marker a draft is created with, so
+ * that a step interrupted before it recorded its result can be looked up on resume.
+ * <p>
+ * Only unfinished jobs are kept in memory. A job is dropped when it is done, and the jobs
+ * completed by earlier runs are remembered by a 64-bit fingerprint of their key, so memory
+ * does not grow with the steps of a long recipient list. Each key is begun once per run.
+ * Methods are thread safe.
+ */
+public final class OutboxJournal implements Closeable {
+    private static final byte JOB_STARTED = 1;
+    private static final byte STEP_STARTED = 2;
+    private static final byte STEP_DONE = 3;
+    private static final byte JOB_DONE = 4;
+    private static final byte STEP_FAILED = 5;
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    private final Path mFile;
+    private final FileChannel mChannel;
+    private final boolean mForceWrites;
+    // Jobs that are not done
+    private final Map<String, Job> mJobs = new HashMap<>();
+    private final CRC32 mCrc = new CRC32();
+    private final MessageDigest mDigest;
+    private MappedByteBuffer mBuffer;
+    // Fingerprints of the jobs completed by earlier runs, sorted once recovered
+    private long[] mDoneKeys = new long[64];
+    private int mDoneKeyCount;
+    private int mRecoveredJobCount;
+
+    /**
+     * Opens a journal, creating it if it does not exist, and recovers the state of its jobs.
+     *
+     * @param file            The journal file
+     * @param initialCapacity Bytes mapped at first. The mapping doubles when it is full
+     * @param forceWrites     True to flush each record to disk before returning
+     * @throws IOException
+     */
+    public OutboxJournal(Path file, int initialCapacity, boolean forceWrites) throws IOException {
+        File directory = file.toAbsolutePath().getParent().toFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create outbox directory " + directory);
+        }
+        mFile = file;
+        mForceWrites = forceWrites;
+        mDigest = newSha256();
+        mChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = mChannel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Outbox journal " + file + " is too large");
+        }
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialCapacity, (int) size));
+        recover();
+        Arrays.sort(mDoneKeys, 0, mDoneKeyCount);
+        mRecoveredJobCount = mDoneKeyCount + mJobs.size();
+    }
+
+    /**
+     * @param directory     The directory journals are kept in
+     * @param recipientFile The recipient list of a bulk run
+     * @return The journal file of the run, named after the list's absolute path
+     */
+    public static Path fileFor(String directory, File recipientFile) throws IOException {
+        byte[] digest = newSha256().digest(recipientFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        return Paths.get(directory, String.format("%064x", new BigInteger(1, digest)) + ".journal");
+    }
+
+    private static MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * @return Jobs found in the journal when it was opened
+     */
+    public int getRecoveredJobCount() {
+        return mRecoveredJobCount;
+    }
+
+    /**
+     * Gets the job of a recipient, starting it if the journal has no record of it.
+     *
+     * @param key Identifies the job across runs, such as the recipient's position and address
+     * @return The job, with the steps it completed in earlier runs
+     */
+    public synchronized Job begin(String key) throws IOException {
+        Job job = mJobs.get(key);
+        if (job != null) {
+            return job;
+        }
+        job = new Job(this, key);
+        if (Arrays.binarySearch(mDoneKeys, 0, mDoneKeyCount, fingerprint(key)) >= 0) {
+            // Done by an earlier run. The job is not kept, as nothing will be recorded in it
+            job.mDone = true;
+            return job;
+        }
+        mJobs.put(key, job);
+        append(JOB_STARTED, key, "", "");
+        return job;
+    }
+
+    /**
+     * Closes the journal and deletes its file. Called when every job of the run is done
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        // The mapping lasts until it is collected, and some platforms cannot delete a mapped file
+        if (!mFile.toFile().delete()) {
+            mFile.toFile().deleteOnExit();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mChannel.isOpen()) {
+            mBuffer.force();
+            mChannel.close();
+        }
+    }
+
+    synchronized void stepStarted(Job job, String step, String value) throws IOException {
+        append(STEP_STARTED, job.mKey, step, value == null ? "" : value);
+        job.mStartedStep = step;
+        job.mStartedValue = value == null || value.isEmpty() ? null : value;
+    }
+
+    synchronized void stepDone(Job job, String step, String value) throws IOException {
+        append(STEP_DONE, job.mKey, step, value == null ? "" : value);
+        job.mStartedStep = null;
+        job.mStartedValue = null;
+        job.mDoneSteps.put(step, value == null ? "" : value);
+    }
+
+    synchronized void stepFailed(Job job, String step) throws IOException {
+        append(STEP_FAILED, job.mKey, step, "");
+        job.mStartedStep = null;
+        job.mStartedValue = null;
+    }
+
+    synchronized void jobDone(Job job) throws IOException {
+        append(JOB_DONE, job.mKey, "", "");
+        job.mDone = true;
+        job.mStartedStep = null;
+        job.mStartedValue = null;
+        job.mDoneSteps.clear();
+        mJobs.remove(job.mKey);
+    }
+
+    /**
+     * Replays the records up to the first one that is incomplete or corrupt, and positions
+     * the journal to append after the last valid record
+     */
+    private void recover() {
+        ByteBuffer buffer = mBuffer.duplicate();
+        int position = 0;
+        int records = 0;
+        while (buffer.capacity() - position >= HEADER_BYTES) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > MAX_RECORD_BYTES || position + HEADER_BYTES + length > buffer.capacity()) {
+                break;
+            }
+            int crc = buffer.getInt(position + 4);
+            mCrc.reset();
+            buffer.limit(position + HEADER_BYTES + length).position(position + HEADER_BYTES);
+            mCrc.update(buffer.slice());
+            buffer.limit(buffer.capacity());
+            if ((int) mCrc.getValue() != crc) {
+                break;
+            }
+            buffer.position(position + HEADER_BYTES);
+            try {
+                replay(buffer.get(), readString(buffer), readString(buffer), readString(buffer));
+            } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                break;
+            }
+            position += HEADER_BYTES + length;
+            records++;
+        }
+        // Clears what follows the last valid record, so a torn record is not read after a shorter one
+        for (int i = position; i < Math.min(buffer.capacity(), position + HEADER_BYTES + MAX_RECORD_BYTES); i++) {
+            if (mBuffer.get(i) != 0) {
+                mBuffer.put(i, (byte) 0);
+            }
+        }
+        mBuffer.position(position);
+        if (records > 0) {
+            DebugLogger.getInstance().writeLog(Level.INFO, "Recovered {} outbox records from {}", records, mFile);
+        }
+    }
+
+    private void replay(byte type, String key, String step, String value) {
+        if (type == JOB_DONE) {
+            mJobs.remove(key);
+            addDoneKey(fingerprint(key));
+            return;
+        }
+        Job job = mJobs.get(key);
+        if (job == null) {
+            job = new Job(this, key);
+            mJobs.put(key, job);
+        }
+        switch (type) {
+            case JOB_STARTED:
+                break;
+            case STEP_STARTED:
+                job.mStartedStep = step;
+                job.mStartedValue = value.isEmpty() ? null : value;
+                break;
+            case STEP_DONE:
+                job.mStartedStep = null;
+                job.mStartedValue = null;
+                job.mDoneSteps.put(step, value);
+                break;
+            case STEP_FAILED:
+                job.mStartedStep = null;
+                job.mStartedValue = null;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown outbox record type " + type);
+        }
+    }
+
+    private void addDoneKey(long fingerprint) {
+        if (mDoneKeyCount == mDoneKeys.length) {
+            mDoneKeys = Arrays.copyOf(mDoneKeys, mDoneKeys.length * 2);
+        }
+        mDoneKeys[mDoneKeyCount++] = fingerprint;
+    }
+
+    /**
+     * @return The first 64 bits of the key's SHA-256. Among a million keys, two share a
+     * fingerprint with a chance of about one in thirty-seven million
+     */
+    private long fingerprint(String key) {
+        byte[] digest = mDigest.digest(key.getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(digest).getLong();
+    }
+
+    private void append(byte type, String key, String step, String value) throws IOException {
+        if (!mChannel.isOpen()) {
+            throw new IOException("The outbox journal is closed");
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] stepBytes = step.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 3 * 2 + keyBytes.length + stepBytes.length + valueBytes.length;
+        if (length > MAX_RECORD_BYTES) {
+            throw new IOException("Outbox record of " + length + " bytes is too large");
+        }
+        if (mBuffer.remaining() < HEADER_BYTES + length) {
+            grow(HEADER_BYTES + length);
+        }
+        int start = mBuffer.position();
+        mBuffer.position(start + HEADER_BYTES);
+        mBuffer.put(type);
+        writeString(keyBytes);
+        writeString(stepBytes);
+        writeString(valueBytes);
+
+        ByteBuffer record = mBuffer.duplicate();
+        record.position(start + HEADER_BYTES).limit(start + HEADER_BYTES + length);
+        mCrc.reset();
+        mCrc.update(record);
+        mBuffer.putInt(start + 4, (int) mCrc.getValue());
+        // The length goes in last; until then the record reads as the end of the journal
+        mBuffer.putInt(start, length);
+        if (mForceWrites) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Maps a larger region of the file, keeping the append position
+     */
+    private void grow(int needed) throws IOException {
+        long capacity = Math.max((long) mBuffer.capacity() * 2, (long) mBuffer.position() + needed);
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Outbox journal " + mFile + " is full");
+        }
+        int position = mBuffer.position();
+        mBuffer.force();
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        mBuffer.position(position);
+    }
+
+    private void writeString(byte[] bytes) {
+        mBuffer.putShort((short) bytes.length);
+        mBuffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The journaled state of one send. Steps are named by {@link SendPlan.Step}. A job is used
+     * by one thread at a time.
+     */
+    public static final class Job {
+        private final OutboxJournal mJournal;
+        private final String mKey;
+        private final Map<String, String> mDoneSteps = new HashMap<>();
+        private volatile String mStartedStep;
+        private volatile String mStartedValue;
+        private volatile boolean mDone;
+
+        Job(OutboxJournal journal, String key) {
+            mJournal = journal;
+            mKey = key;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return True if the send completed, in this run or an earlier one
+         */
+        public boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * @return True if the step completed
+         */
+        public boolean isStepDone(SendPlan.Step step) {
+            synchronized (mJournal) {
+                return mDoneSteps.containsKey(step.name());
+            }
+        }
+
+        /**
+         * @return The value the step recorded when it completed, such as the id of the draft
+         * it created, or null if it did not complete or recorded none
+         */
+        public String getStepValue(SendPlan.Step step) {
+            synchronized (mJournal) {
+                String value = mDoneSteps.get(step.name());
+                return value == null || value.isEmpty() ? null : value;
+            }
+        }
+
+        /**
+         * @return The step that started and did not complete, or null if there is none
+         */
+        public String getStartedStep() {
+            return mStartedStep;
+        }
+
+        /**
+         * @return The value the started step recorded when it started, or null if there is
+         * no started step or it recorded none
+         */
+        public String getStartedValue() {
+            return mStartedValue;
+        }
+
+        public void stepStarted(SendPlan.Step step) throws IOException {
+            stepStarted(step, null);
+        }
+
+        /**
+         * @param value What identifies the step's effect before it completes, such as the
+         *              marker the draft it creates carries, or null
+         */
+        public void stepStarted(SendPlan.Step step, String value) throws IOException {
+            mJournal.stepStarted(this, step.name(), value);
+        }
+
+        /**
+         * @param value What the step produced that later steps need, or null
+         */
+        public void stepDone(SendPlan.Step step, String value) throws IOException {
+            mJournal.stepDone(this, step.name(), value);
+        }
+
+        /**
+         * Records that the step failed without taking effect, so it can run again
+         */
+        public void stepFailed(SendPlan.Step step) throws IOException {
+            mJournal.stepFailed(this, step.name());
+        }
+
+        public void done() throws IOException {
+            mJournal.jobDone(this);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * On-disk cache of profile photos. Each entry is keyed by user id and photo size and records
+ * the ETag Graph returned with the photo, so the photo can be revalidated with an
+ * If-None-Match request instead of being downloaded again.
+ * <p>
+ * Photo bytes are stored once per content hash, so users that share a photo share a file.
+ * When the stored photos exceed the byte budget, the least recently used entries are evicted.
+ * <p>
+ * The index is written when photos are stored or evicted. Reads only mark the entry as used in
+ * memory, and the index is written for them at most once per {@link #INDEX_SAVE_INTERVAL_MILLIS},
+ * or by {@link #flush()}.
+ */
+public class ProfilePhotoCache {
+    private static final String INDEX_FILENAME = "index.properties";
+    // Least time between two index writes that only record reads
+    static final long INDEX_SAVE_INTERVAL_MILLIS = 60000;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    // True if reads changed the access times since the index was last written
+    private boolean mDirty;
+    private long mLastSaveMillis;
+
+    /**
+     * @param directory The cache directory. Created if it does not exist
+     * @param maxBytes  The byte budget for the stored photos
+     */
+    public ProfilePhotoCache(File directory, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create photo cache directory " + directory);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        loadIndex();
+    }
+
+    /**
+     * @return The ETag of the cached photo, or null if the photo is not cached
+     */
+    public synchronized String getETag(String userId, String size) {
+        Entry entry = mEntries.get(key(userId, size));
+        return entry == null ? null : entry.mETag;
+    }
+
+    /**
+     * Reads a cached photo and marks it as recently used.
+     *
+     * @return The photo bytes, or null if the photo is not cached or its file is gone
+     */
+    public synchronized byte[] get(String userId, String size) {
+        String key = key(userId, size);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(blobFile(entry.mHash).toPath());
+            long now = System.currentTimeMillis();
+            entry.mLastAccess = now;
+            mDirty = true;
+            if (now - mLastSaveMillis >= INDEX_SAVE_INTERVAL_MILLIS) {
+                saveIndexQuietly();
+            }
+            return bytes;
+        } catch (IOException ex) {
+            mEntries.remove(key);
+            log("Dropping unreadable cached photo " + key, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the access times of reads that were not written yet.
+     */
+    public synchronized void flush() {
+        if (mDirty) {
+            saveIndexQuietly();
+        }
+    }
+
+    /**
+     * Stores a photo with the ETag it was served with and evicts old entries if the cache is
+     * over budget.
+     */
+    public synchronized void put(String userId, String size, String eTag, byte[] bytes) {
+        try {
+            String hash = sha256(bytes);
+            File blob = blobFile(hash);
+            if (!blob.exists()) {
+                File temp = File.createTempFile("photo", ".tmp", mDirectory);
+                Files.write(temp.toPath(), bytes);
+                Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            Entry previous = mEntries.put(key(userId, size),
+                                          new Entry(eTag, hash, bytes.length, System.currentTimeMillis()));
+            if (previous != null) {
+                deleteIfUnreferenced(previous.mHash);
+            }
+            evict();
+            saveIndex();
+        } catch (IOException ex) {
+            log("Could not cache photo for " + userId, ex);
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the distinct stored photos fit the budget.
+     */
+    private void evict() {
+        List<Map.Entry<String, Entry>> byAge = new ArrayList<>(mEntries.entrySet());
+        Collections.sort(byAge, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                return Long.compare(a.getValue().mLastAccess, b.getValue().mLastAccess);
+            }
+        });
+        long total = storedBytes();
+        for (Map.Entry<String, Entry> oldest : byAge) {
+            if (total <= mMaxBytes) {
+                break;
+            }
+            mEntries.remove(oldest.getKey());
+            if (deleteIfUnreferenced(oldest.getValue().mHash)) {
+                total -= oldest.getValue().mLength;
+            }
+        }
+    }
+
+    private long storedBytes() {
+        Map<String, Long> blobs = new HashMap<>();
+        for (Entry entry : mEntries.values()) {
+            blobs.put(entry.mHash, entry.mLength);
+        }
+        long total = 0;
+        for (long length : blobs.values()) {
+            total += length;
+        }
+        return total;
+    }
+
+    private boolean deleteIfUnreferenced(String hash) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mHash.equals(hash)) {
+                return false;
+            }
+        }
+        return blobFile(hash).delete();
+    }
+
+    private void loadIndex() {
+        File index = new File(mDirectory, INDEX_FILENAME);
+        if (!index.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(index)) {
+            properties.load(in);
+        } catch (IOException | IllegalArgumentException ex) {
+            // A malformed unicode escape fails the whole load with IllegalArgumentException
+            log("Ignoring unreadable photo cache index", ex);
+            return;
+        }
+        int skipped = 0;
+        for (String key : properties.stringPropertyNames()) {
+            String[] fields = properties.getProperty(key).split("\t");
+            try {
+                if (fields.length == 4 && blobFile(fields[1]).exists()) {
+                    mEntries.put(key, new Entry(fields[0], fields[1],
+                                                Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                }
+            } catch (NumberFormatException ex) {
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            DebugLogger.getInstance().writeLog(Level.WARNING, "Skipped {} malformed photo cache index entries", skipped);
+        }
+    }
+
+    /**
+     * Writes the index for reads. A failed write only loses access times, so it is logged
+     */
+    private void saveIndexQuietly() {
+        try {
+            saveIndex();
+        } catch (IOException ex) {
+            log("Could not save photo cache index", ex);
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            Entry value = entry.getValue();
+            properties.setProperty(entry.getKey(),
+                                   value.mETag + "\t" + value.mHash + "\t" + value.mLength + "\t" + value.mLastAccess);
+        }
+        File temp = File.createTempFile("index", ".tmp", mDirectory);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "Profile photo cache");
+        }
+        Files.move(temp.toPath(), new File(mDirectory, INDEX_FILENAME).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mDirty = false;
+        mLastSaveMillis = System.currentTimeMillis();
+    }
+
+    private File blobFile(String hash) {
+        return new File(mDirectory, hash + ".bin");
+    }
+
+    private static String key(String userId, String size) {
+        return userId + "/" + size;
+    }
+
+    private static String sha256(byte[] bytes) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static void log(String message, Exception ex) {
+        DebugLogger.getInstance().writeLog(Level.WARNING, message, ex);
+    }
+
+    private static final class Entry {
+        final String mETag;
+        final String mHash;
+        final long mLength;
+        long mLastAccess;
+
+        Entry(String eTag, String hash, long length, long lastAccess) {
+            mETag = eTag;
+            mHash = hash;
+            mLength = length;
+            mLastAccess = lastAccess;
+        }
+    }
+}
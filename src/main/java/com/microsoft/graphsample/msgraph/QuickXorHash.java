@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import java.util.Base64;
+
+/**
+ * The quickXorHash OneDrive computes for every file it stores, reported in the file facet of a
+ * driveItem as file.hashes.quickXorHash. Each byte is XORed into a 160-bit state at a position
+ * that advances 11 bits per byte, and the length is XORed into the last 64 bits.
+ * <p>
+ * Computing the same hash locally lets content be matched against what OneDrive holds
+ * without downloading it. Instances are not thread safe.
+ */
+public final class QuickXorHash {
+    private static final int WIDTH_IN_BITS = 160;
+    private static final int SHIFT = 11;
+    private static final int CELLS = (WIDTH_IN_BITS - 1) / 64 + 1;
+
+    private final long[] mData = new long[CELLS];
+    private int mShiftSoFar;
+    private long mLengthSoFar;
+
+    /**
+     * @param content The content to hash
+     * @return The hash base64 encoded, as OneDrive reports it
+     */
+    public static String hash(byte[] content) {
+        QuickXorHash hash = new QuickXorHash();
+        hash.update(content, 0, content.length);
+        return Base64.getEncoder().encodeToString(hash.digest());
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        int vectorArrayIndex = mShiftSoFar / 64;
+        int vectorOffset = mShiftSoFar % 64;
+        int iterations = Math.min(length, WIDTH_IN_BITS);
+
+        for (int i = 0; i < iterations; i++) {
+            boolean isLastCell = vectorArrayIndex == CELLS - 1;
+            int bitsInVectorCell = isLastCell ? WIDTH_IN_BITS % 64 : 64;
+
+            // Bytes WIDTH_IN_BITS apart land on the same bits, so they are XORed together first
+            long xoredByte = 0;
+            for (int j = offset + i; j < offset + length; j += WIDTH_IN_BITS) {
+                xoredByte ^= bytes[j] & 0xFF;
+            }
+            if (vectorOffset <= bitsInVectorCell - 8) {
+                mData[vectorArrayIndex] ^= xoredByte << vectorOffset;
+            }
+            else {
+                // The byte straddles two cells
+                int nextIndex = isLastCell ? 0 : vectorArrayIndex + 1;
+                mData[vectorArrayIndex] ^= xoredByte << vectorOffset;
+                mData[nextIndex] ^= xoredByte >>> (bitsInVectorCell - vectorOffset);
+            }
+
+            vectorOffset += SHIFT;
+            while (vectorOffset >= bitsInVectorCell) {
+                vectorArrayIndex = isLastCell ? 0 : vectorArrayIndex + 1;
+                vectorOffset -= bitsInVectorCell;
+            }
+        }
+        mShiftSoFar = (int) ((mShiftSoFar + (long) SHIFT * (length % WIDTH_IN_BITS)) % WIDTH_IN_BITS);
+        mLengthSoFar += length;
+    }
+
+    /**
+     * @return The 20 byte hash of the bytes passed to {@link #update(byte[], int, int)}
+     */
+    public byte[] digest() {
+        byte[] digest = new byte[WIDTH_IN_BITS / 8];
+        for (int i = 0; i < digest.length; i++) {
+            digest[i] = (byte) (mData[i / 8] >>> (8 * (i % 8)));
+        }
+        for (int i = 0; i < 8; i++) {
+            digest[WIDTH_IN_BITS / 8 - 8 + i] ^= (byte) (mLengthSoFar >>> (8 * i));
+        }
+        return digest;
+    }
+}
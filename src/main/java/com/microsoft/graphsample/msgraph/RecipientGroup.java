@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The To, Cc and Bcc recipients of one message. Instances are immutable.
+ */
+public final class RecipientGroup {
+    /**
+     * The recipient field of a message
+     */
+    public enum Field {
+        TO, CC, BCC
+    }
+
+    private final List<String> mTo;
+    private final List<String> mCc;
+    private final List<String> mBcc;
+
+    public RecipientGroup(List<String> to, List<String> cc, List<String> bcc) {
+        mTo = Collections.unmodifiableList(new ArrayList<String>(to));
+        mCc = Collections.unmodifiableList(new ArrayList<String>(cc));
+        mBcc = Collections.unmodifiableList(new ArrayList<String>(bcc));
+        if (size() == 0) {
+            throw new IllegalArgumentException("A message needs at least one recipient.");
+        }
+    }
+
+    /**
+     * @return A group with a single To recipient
+     */
+    public static RecipientGroup to(String address) {
+        return new RecipientGroup(Collections.singletonList(address),
+                                  Collections.<String>emptyList(),
+                                  Collections.<String>emptyList());
+    }
+
+    /**
+     * @return A group with all the addresses in one field
+     */
+    public static RecipientGroup of(Field field, List<String> addresses) {
+        List<String> none = Collections.emptyList();
+        switch (field) {
+            case TO:
+                return new RecipientGroup(addresses, none, none);
+            case CC:
+                return new RecipientGroup(none, addresses, none);
+            default:
+                return new RecipientGroup(none, none, addresses);
+        }
+    }
+
+    public List<String> getTo() {
+        return mTo;
+    }
+
+    public List<String> getCc() {
+        return mCc;
+    }
+
+    public List<String> getBcc() {
+        return mBcc;
+    }
+
+    /**
+     * @return Every address of the group, To first, then Cc and Bcc
+     */
+    public List<String> getAddresses() {
+        List<String> addresses = new ArrayList<String>(size());
+        addresses.addAll(mTo);
+        addresses.addAll(mCc);
+        addresses.addAll(mBcc);
+        return addresses;
+    }
+
+    public int size() {
+        return mTo.size() + mCc.size() + mBcc.size();
+    }
+
+    @Override
+    public String toString() {
+        return size() == 1 ? getAddresses().get(0) : size() + " recipients";
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Packs recipients into groups that each receive one message, for mail whose content is the
+ * same for every recipient.
+ * <p>
+ * Recipients are read lazily. Invalid addresses are rejected and addresses seen before, after
+ * {@link EmailAddresses#normalize(String) normalization}, are skipped, so each recipient gets
+ * the mail once. The normalized addresses seen are kept for the whole run.
+ */
+public class RecipientPacker implements Iterator<RecipientGroup> {
+    private final Iterator<MailRecipient> mRecipients;
+    private final int mMaxPerMessage;
+    private final RecipientGroup.Field mField;
+    private final IBulkSendCallback mRejectedCallback;
+    private final Set<String> mSeen = new HashSet<>();
+    private RecipientGroup mNext;
+    private long mInvalidCount;
+    private long mDuplicateCount;
+
+    /**
+     * @param recipients       Recipients, consumed lazily
+     * @param maxPerMessage    The most recipients of one message
+     * @param field            The field the recipients are put in
+     * @param rejectedCallback Receives a failure for each invalid address. May be null
+     */
+    public RecipientPacker(
+            Iterator<MailRecipient> recipients,
+            int maxPerMessage,
+            RecipientGroup.Field field,
+            IBulkSendCallback rejectedCallback) {
+        if (maxPerMessage < 1) {
+            throw new IllegalArgumentException("The maxPerMessage parameter must be at least 1.");
+        }
+        mRecipients = recipients;
+        mMaxPerMessage = maxPerMessage;
+        mField = field;
+        mRejectedCallback = rejectedCallback;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext == null) {
+            mNext = pack();
+        }
+        return mNext != null;
+    }
+
+    @Override
+    public RecipientGroup next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RecipientGroup group = mNext;
+        mNext = null;
+        return group;
+    }
+
+    /**
+     * @return Recipients rejected because their address is not valid
+     */
+    public long getInvalidCount() {
+        return mInvalidCount;
+    }
+
+    /**
+     * @return Recipients skipped because their address was already packed
+     */
+    public long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    private RecipientGroup pack() {
+        List<String> addresses = new ArrayList<>(mMaxPerMessage);
+        while (addresses.size() < mMaxPerMessage && mRecipients.hasNext()) {
+            String address = mRecipients.next().getAddress();
+            if (!EmailAddresses.isValid(address)) {
+                mInvalidCount++;
+                DebugLogger.getInstance().writeLog(Level.WARNING, "Skipping invalid address {}", address);
+                if (mRejectedCallback != null) {
+                    mRejectedCallback.onResult(SendResult.failure(
+                            address, new IllegalArgumentException("Invalid email address"), 0));
+                }
+                continue;
+            }
+            if (!mSeen.add(EmailAddresses.normalize(address))) {
+                mDuplicateCount++;
+                DebugLogger.getInstance().writeLog(Level.INFO, "Skipping duplicate address {}", address);
+                continue;
+            }
+            addresses.add(address);
+        }
+        return addresses.isEmpty() ? null : RecipientGroup.of(mField, addresses);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graphsample.connect.DebugLogger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+
+/**
+ * Streams recipients from a file one line at a time, so recipient lists of any
+ * size can be sent without loading them into memory.
+ * <p>
+ * Files ending in .jsonl or .json are read as JSON lines, one object per line with the
+ * address in an "email" or "address" property. Any other file is read as CSV with the
+ * address in the first column. A leading CSV header line is not a recipient.
+ * <p>
+ * The other properties of a JSON line, and the other columns of a CSV file with a header,
+ * become the recipient's {@link MailTemplate} fields, named by the property or header.
+ */
+public class RecipientSource implements Iterator<MailRecipient>, Closeable {
+    private static final String[] NO_FIELDS = new String[0];
+
+    private final BufferedReader mReader;
+    private final boolean mJsonLines;
+    private String[] mCsvHeader = NO_FIELDS;
+    private MailRecipient mNext;
+    private long mLineNumber;
+    private long mSkippedLines;
+
+    public RecipientSource(File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        mJsonLines = name.endsWith(".jsonl") || name.endsWith(".json");
+        mReader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext == null) {
+            mNext = readNext();
+        }
+        return mNext != null;
+    }
+
+    @Override
+    public MailRecipient next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MailRecipient next = mNext;
+        mNext = null;
+        return next;
+    }
+
+    /**
+     * @return The number of non blank lines that did not contain an address
+     */
+    public long getSkippedLineCount() {
+        return mSkippedLines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    private MailRecipient readNext() {
+        try {
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                mLineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                MailRecipient recipient = mJsonLines ? parseJsonLine(line) : parseCsvLine(line);
+                if (recipient != null) {
+                    return recipient;
+                }
+                // A CSV header is expected on the first line and is not worth reporting
+                if (mJsonLines || mLineNumber > 1) {
+                    mSkippedLines++;
+                    DebugLogger.getInstance().writeLog(Level.WARNING, "No recipient address on line {}", mLineNumber);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return null;
+    }
+
+    private MailRecipient parseJsonLine(String line) {
+        try {
+            JSONObject json = new JSONObject(line);
+            String address = json.optString("email", json.optString("address", null));
+            if (address == null || address.isEmpty()) {
+                return null;
+            }
+            String[] names = new String[json.length()];
+            String[] values = new String[names.length];
+            int count = 0;
+            for (Iterator<?> keys = json.keys(); keys.hasNext(); count++) {
+                names[count] = keys.next().toString();
+                Object value = json.opt(names[count]);
+                values[count] = value == null || value == JSONObject.NULL ? null : value.toString();
+            }
+            return new MailRecipient(address, names, values);
+        } catch (JSONException ex) {
+            return null;
+        }
+    }
+
+    private MailRecipient parseCsvLine(String line) {
+        String[] columns = splitCsvLine(line);
+        String address = columns[0];
+        if (address.indexOf('@') < 0) {
+            if (mLineNumber == 1) {
+                mCsvHeader = columns;
+            }
+            return null;
+        }
+        return new MailRecipient(address, mCsvHeader, columns);
+    }
+
+    /**
+     * Splits a CSV line into trimmed columns. Quoted columns may contain commas and
+     * doubled quotes.
+     */
+    static String[] splitCsvLine(String line) {
+        List<String> columns = new ArrayList<String>();
+        StringBuilder column = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    column.append('"');
+                    i++;
+                }
+                else if (c == '"') {
+                    quoted = false;
+                }
+                else {
+                    column.append(c);
+                }
+            }
+            else if (c == '"') {
+                quoted = true;
+            }
+            else if (c == ',') {
+                columns.add(column.toString().trim());
+                column.setLength(0);
+            }
+            else {
+                column.append(c);
+            }
+        }
+        columns.add(column.toString().trim());
+        return columns.toArray(new String[0]);
+    }
+}
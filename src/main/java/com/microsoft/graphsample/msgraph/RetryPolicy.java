@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graph.http.GraphServiceException;
+import com.microsoft.graphsample.connect.Constants;
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+
+/**
+ * Retries Graph operations that fail for a transient reason, such as throttling.
+ * <ul>
+ * <li>Every operation declares whether it is idempotent. Idempotent operations are retried
+ * after throttling, server errors and I/O failures. Operations that are not idempotent, such
+ * as sending a message, are only retried when Graph could not have acted on the request: a
+ * 429, a 503 with Retry-After, or a connection that was never established.</li>
+ * <li>The wait honours Retry-After when Graph sends it. Otherwise it is an exponential
+ * backoff with full jitter, so clients that were throttled together do not retry together.</li>
+ * <li>Retries draw from a budget that grows with the number of first attempts. When many
+ * requests fail at once the budget runs out and failures are returned instead of retried, so
+ * retries cannot multiply the load on a service that is already throttling.</li>
+ * </ul>
+ * Attempts, retries, throttled responses and give ups are counted per operation.
+ * Asynchronous operations get the same treatment from {@link #executeAsync(String, boolean, Callable)}.
+ */
+public class RetryPolicy {
+    // Budget amounts are kept in thousandths of a retry
+    private static final long BUDGET_UNIT = 1000;
+
+    private static volatile RetryPolicy INSTANCE;
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final long mBudgetDeposit;
+    private final long mBudgetCapacity;
+    private final AtomicLong mBudget;
+    private final ConcurrentHashMap<String, Counters> mCounters = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxAttempts     The most attempts of one operation, including the first
+     * @param baseDelayMillis The backoff before the first retry. It doubles with each retry
+     * @param maxDelayMillis  The longest wait before a retry. Operations whose Retry-After asks
+     *                        for longer are not retried
+     * @param budgetRatio     The retries earned by each first attempt, for example 0.1 for one
+     *                        retry per ten operations
+     * @param budgetReserve   The retries that can be spent before any were earned, which is
+     *                        also the most the budget can hold
+     */
+    public RetryPolicy(
+            int maxAttempts,
+            long baseDelayMillis,
+            long maxDelayMillis,
+            double budgetRatio,
+            int budgetReserve) {
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mBudgetDeposit = (long) (budgetRatio * BUDGET_UNIT);
+        mBudgetCapacity = budgetReserve * BUDGET_UNIT;
+        mBudget = new AtomicLong(mBudgetCapacity);
+    }
+
+    /**
+     * @return The policy shared by all Graph operations of the process, configured in {@link Constants}
+     */
+    public static RetryPolicy getInstance() {
+        if (INSTANCE == null) {
+            synchronized (RetryPolicy.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new RetryPolicy(Constants.RETRY_MAX_ATTEMPTS,
+                                               Constants.RETRY_BASE_DELAY_MILLIS,
+                                               Constants.RETRY_MAX_DELAY_MILLIS,
+                                               Constants.RETRY_BUDGET_RATIO,
+                                               Constants.RETRY_BUDGET_RESERVE);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Runs an operation, retrying it while it fails for a reason this policy considers
+     * transient for the operation.
+     *
+     * @param operation  The name the operation is counted under
+     * @param idempotent True if running the operation twice has the same effect as running it once
+     * @param call       The operation
+     * @return The result of the first successful attempt
+     * @throws Exception The failure of the last attempt
+     */
+    public <T> T execute(String operation, boolean idempotent, Callable<T> call) throws Exception {
+        Counters counters = getCounters(operation);
+        depositBudget();
+        for (int attempt = 1; ; attempt++) {
+            counters.mAttempts.increment();
+            try {
+                return call.call();
+            } catch (Exception ex) {
+                long delayMillis = getRetryDelayMillis(operation, counters, attempt, ex, idempotent);
+                if (delayMillis < 0) {
+                    throw ex;
+                }
+                sleep(delayMillis);
+            }
+        }
+    }
+
+    /**
+     * Runs an asynchronous operation like {@link #execute(String, boolean, Callable)}. Waits
+     * before retries are scheduled rather than slept, so no thread is held while waiting.
+     *
+     * @param operation  The name the operation is counted under
+     * @param idempotent True if running the operation twice has the same effect as running it once
+     * @param call       Starts one attempt of the operation
+     * @return A future completed with the result of the first successful attempt, or with
+     * the failure of the last attempt
+     */
+    public <T> CompletableFuture<T> executeAsync(
+            final String operation,
+            final boolean idempotent,
+            final Callable<CompletableFuture<T>> call) {
+        final Counters counters = getCounters(operation);
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        depositBudget();
+        attemptAsync(operation, idempotent, call, counters, 1, result);
+        return result;
+    }
+
+    private <T> void attemptAsync(
+            final String operation,
+            final boolean idempotent,
+            final Callable<CompletableFuture<T>> call,
+            final Counters counters,
+            final int attempt,
+            final CompletableFuture<T> result) {
+        counters.mAttempts.increment();
+        CompletableFuture<T> future;
+        try {
+            future = call.call();
+        } catch (Exception ex) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+        }
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable error) {
+                if (error == null) {
+                    result.complete(value);
+                    return;
+                }
+                Exception ex = unwrap(error);
+                long delayMillis = getRetryDelayMillis(operation, counters, attempt, ex, idempotent);
+                if (delayMillis < 0) {
+                    result.completeExceptionally(ex);
+                    return;
+                }
+                CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        attemptAsync(operation, idempotent, call, counters, attempt + 1, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Counts an attempt of an operation whose retries are scheduled by the caller, as the
+     * batch coalescer does for batched operations
+     *
+     * @param attempt The attempt, 1 for the first
+     */
+    void recordAttempt(String operation, int attempt) {
+        if (attempt == 1) {
+            depositBudget();
+        }
+        getCounters(operation).mAttempts.increment();
+    }
+
+    /**
+     * Decides whether a failed attempt of an operation whose retries are scheduled by the
+     * caller is retried, with the same rules, delays and budget as {@link #execute(String, boolean, Callable)}
+     *
+     * @return The wait before the next attempt, or -1 if the failure is final
+     */
+    long getRetryDelayMillis(String operation, int attempt, Exception ex, boolean idempotent) {
+        return getRetryDelayMillis(operation, getCounters(operation), attempt, ex, idempotent);
+    }
+
+    /**
+     * Decides whether a failed attempt is retried, and counts and logs the decision
+     *
+     * @return The wait before the next attempt, or -1 if the failure is final
+     */
+    private long getRetryDelayMillis(
+            String operation,
+            Counters counters,
+            int attempt,
+            Exception ex,
+            boolean idempotent) {
+        GraphThrottledException throttled = findCause(ex, GraphThrottledException.class);
+        if (throttled != null) {
+            counters.mThrottled.increment();
+        }
+        if (!isRetryable(ex, throttled, idempotent)) {
+            return -1;
+        }
+        long delayMillis = getDelayMillis(attempt, throttled);
+        if (attempt >= mMaxAttempts || delayMillis > mMaxDelayMillis) {
+            counters.mGaveUp.increment();
+            return -1;
+        }
+        if (!withdrawBudget()) {
+            counters.mBudgetExhausted.increment();
+            return -1;
+        }
+        counters.mRetries.increment();
+        DebugLogger logger = DebugLogger.getInstance();
+        if (logger.isEnabled(Level.INFO)) {
+            logger.writeLog(Level.INFO, String.format("%s failed on attempt %d, retrying in %d ms: %s",
+                                                      operation, attempt, delayMillis, ex.getMessage()));
+        }
+        return delayMillis;
+    }
+
+    /**
+     * @return The counters of every operation run so far, by operation name
+     */
+    public Map<String, Counters> getCounters() {
+        return Collections.unmodifiableMap(new TreeMap<>(mCounters));
+    }
+
+    /**
+     * @return The retries that can still be spent, in whole retries
+     */
+    public long getRemainingBudget() {
+        return mBudget.get() / BUDGET_UNIT;
+    }
+
+    private Counters getCounters(String operation) {
+        Counters counters = mCounters.get(operation);
+        if (counters == null) {
+            Counters existing = mCounters.putIfAbsent(operation, counters = new Counters());
+            if (existing != null) {
+                counters = existing;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Decides whether a failure is worth another attempt
+     */
+    private static boolean isRetryable(Exception ex, GraphThrottledException throttled, boolean idempotent) {
+        if (throttled != null) {
+            // A 429 is refused before Graph acts on it. A 503 only says so when it comes with Retry-After
+            return idempotent
+                   || throttled.getStatus() == GraphThrottledException.TOO_MANY_REQUESTS
+                   || throttled.getRetryAfterMillis() >= 0;
+        }
+        GraphServiceException serviceException = findCause(ex, GraphServiceException.class);
+        if (serviceException != null) {
+            int status = serviceException.getResponseCode();
+            if (status == GraphThrottledException.TOO_MANY_REQUESTS) {
+                return true;
+            }
+            return idempotent && isServerError(status);
+        }
+        BatchStepException stepException = findCause(ex, BatchStepException.class);
+        if (stepException != null) {
+            return idempotent && isServerError(stepException.getStatus());
+        }
+        if (findCause(ex, ConnectException.class) != null || findCause(ex, UnknownHostException.class) != null) {
+            // The request never left this machine
+            return true;
+        }
+        return idempotent
+               && findCause(ex, IOException.class) != null
+               && findCause(ex, InterruptedIOException.class) == null;
+    }
+
+    /**
+     * @return True if the failure shows that Graph did not act on the request, so a request
+     * that must not take effect twice can be sent again later. A 500 or a lost connection
+     * leaves it unknown
+     */
+    static boolean isRefused(Exception ex) {
+        GraphThrottledException throttled = findCause(ex, GraphThrottledException.class);
+        if (throttled != null) {
+            return isRetryable(ex, throttled, false);
+        }
+        GraphServiceException serviceException = findCause(ex, GraphServiceException.class);
+        if (serviceException != null) {
+            int status = serviceException.getResponseCode();
+            return status >= 400 && status < 500;
+        }
+        BatchStepException stepException = findCause(ex, BatchStepException.class);
+        if (stepException != null) {
+            // Includes 424, answered for a step that did not run because one before it failed
+            int status = stepException.getStatus();
+            return status >= 400 && status < 500;
+        }
+        // The request was never built or never left this machine
+        return findCause(ex, IllegalArgumentException.class) != null
+               || findCause(ex, ConnectException.class) != null
+               || findCause(ex, UnknownHostException.class) != null;
+    }
+
+    /**
+     * @return True if Graph answered that the requested resource does not exist
+     */
+    static boolean isNotFound(Exception ex) {
+        GraphServiceException serviceException = findCause(ex, GraphServiceException.class);
+        return serviceException != null && serviceException.getResponseCode() == 404;
+    }
+
+    private static boolean isServerError(int status) {
+        return status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @return Retry-After when Graph sent it, otherwise a full jitter exponential backoff
+     */
+    private long getDelayMillis(int attempt, GraphThrottledException throttled) {
+        if (throttled != null && throttled.getRetryAfterMillis() >= 0) {
+            // A little jitter on top keeps clients that got the same Retry-After apart
+            return throttled.getRetryAfterMillis() + ThreadLocalRandom.current().nextLong(mBaseDelayMillis + 1);
+        }
+        long ceiling = Math.min(mMaxDelayMillis, mBaseDelayMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private void depositBudget() {
+        long budget;
+        do {
+            budget = mBudget.get();
+            if (budget >= mBudgetCapacity) {
+                return;
+            }
+        } while (!mBudget.compareAndSet(budget, Math.min(mBudgetCapacity, budget + mBudgetDeposit)));
+    }
+
+    private boolean withdrawBudget() {
+        long budget;
+        do {
+            budget = mBudget.get();
+            if (budget < BUDGET_UNIT) {
+                return false;
+            }
+        } while (!mBudget.compareAndSet(budget, budget - BUDGET_UNIT));
+        return true;
+    }
+
+    private static void sleep(long delayMillis) throws InterruptedIOException {
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * @return The failure a future was completed with, without the wrapping CompletionException
+     */
+    static Exception unwrap(Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+    }
+
+    private static <E extends Throwable> E findCause(Throwable ex, Class<E> type) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return type.cast(cause);
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retry counters of one operation
+     */
+    public static final class Counters {
+        private final LongAdder mAttempts = new LongAdder();
+        private final LongAdder mRetries = new LongAdder();
+        private final LongAdder mThrottled = new LongAdder();
+        private final LongAdder mGaveUp = new LongAdder();
+        private final LongAdder mBudgetExhausted = new LongAdder();
+
+        public long getAttempts() {
+            return mAttempts.sum();
+        }
+
+        public long getRetries() {
+            return mRetries.sum();
+        }
+
+        /**
+         * @return Attempts Graph answered with 429 or 503
+         */
+        public long getThrottled() {
+            return mThrottled.sum();
+        }
+
+        /**
+         * @return Operations that failed after their last attempt or a too long Retry-After
+         */
+        public long getGaveUp() {
+            return mGaveUp.sum();
+        }
+
+        /**
+         * @return Retries not made because the retry budget was spent
+         */
+        public long getBudgetExhausted() {
+            return mBudgetExhausted.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d attempts, %d retries, %d throttled, %d gave up, %d over budget",
+                                 getAttempts(), getRetries(), getThrottled(), getGaveUp(), getBudgetExhausted());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graph.models.extensions.DriveItem;
+import com.microsoft.graph.models.extensions.Permission;
+
+/**
+ * The recipient independent part of a send: the signed in user's profile picture, the
+ * OneDrive item it was uploaded to and the sharing link to that item.
+ * Instances are immutable and can be shared by concurrent sends.
+ * <p>
+ * The assets supply the "link" field of the {@link MailTemplate}.
+ */
+public final class SendAssets implements MailTemplate.Fields {
+    private final byte[] mPhotoBytes;
+    private final DriveItem mDriveItem;
+    private final Permission mPermission;
+
+    public SendAssets(byte[] photoBytes, DriveItem driveItem, Permission permission) {
+        mPhotoBytes = photoBytes;
+        mDriveItem = driveItem;
+        mPermission = permission;
+    }
+
+    /**
+     * @return The picture bytes. Callers must not modify the returned array.
+     */
+    public byte[] getPhotoBytes() {
+        return mPhotoBytes;
+    }
+
+    /**
+     * @return The uploaded OneDrive item, or null if the assets were prepared in a batch
+     */
+    public DriveItem getDriveItem() {
+        return mDriveItem;
+    }
+
+    public Permission getPermission() {
+        return mPermission;
+    }
+
+    @Override
+    public String get(String name) {
+        if ("link".equals(name) && mPermission != null && mPermission.link != null) {
+            return mPermission.link.webUrl;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The Graph operations chosen by the {@link SendPlanner} to send one message. Each step is
+ * one round trip to Graph.
+ */
+public final class SendPlan {
+
+    public enum Step {
+        // POST /me/sendMail with the attachment inline
+        SEND_MAIL,
+        // POST /me/messages with the attachment inline
+        CREATE_DRAFT_WITH_ATTACHMENT,
+        // POST /me/messages without attachments
+        CREATE_DRAFT,
+        // GET /me/messages/{id}
+        GET_DRAFT,
+        // POST /me/messages/{id}/attachments
+        ADD_ATTACHMENT,
+        // POST /me/messages/{id}/send
+        SEND_DRAFT
+    }
+
+    // The chain the sample originally ran: create, re-read, attach and send the draft
+    static final SendPlan DRAFT_CHAIN = new SendPlan(
+            Step.CREATE_DRAFT, Step.GET_DRAFT, Step.ADD_ATTACHMENT, Step.SEND_DRAFT);
+
+    private final List<Step> mSteps;
+
+    SendPlan(Step... steps) {
+        mSteps = Collections.unmodifiableList(Arrays.asList(steps));
+    }
+
+    public List<Step> getSteps() {
+        return mSteps;
+    }
+
+    public int getRoundTrips() {
+        return mSteps.size();
+    }
+
+    /**
+     * @return The round trips saved compared to the original draft chain
+     */
+    public int getRoundTripsSaved() {
+        return DRAFT_CHAIN.getRoundTrips() - getRoundTrips();
+    }
+
+    @Override
+    public String toString() {
+        return mSteps + " (" + getRoundTrips() + " round trips, " + getRoundTripsSaved() + " saved)";
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses the fewest Graph operations that can send a message.
+ * <ul>
+ * <li>A message that does not have to exist as a draft is sent with one sendMail call that
+ * carries the attachment inline.</li>
+ * <li>A draft is created with its attachment inline and sent, without re-reading the draft
+ * the create call already returned.</li>
+ * <li>An attachment too large to travel inline is added to the draft in a separate call,
+ * which streams it through an attachment upload session.</li>
+ * </ul>
+ * The planner counts the round trips it planned and saved so runs can be compared with the
+ * original four step draft chain.
+ */
+public class SendPlanner {
+    private final int mInlineAttachmentMaxBytes;
+    private final AtomicLong mPlannedRoundTrips = new AtomicLong();
+    private final AtomicLong mSavedRoundTrips = new AtomicLong();
+
+    /**
+     * @param inlineAttachmentMaxBytes The largest attachment sent inside a message body
+     */
+    public SendPlanner(int inlineAttachmentMaxBytes) {
+        mInlineAttachmentMaxBytes = inlineAttachmentMaxBytes;
+    }
+
+    /**
+     * @param attachmentBytes The size of the attachment, 0 for none
+     * @param draftRequired   True if the caller needs the message to exist as a draft
+     */
+    public SendPlan plan(long attachmentBytes, boolean draftRequired) {
+        SendPlan plan;
+        if (attachmentBytes > mInlineAttachmentMaxBytes) {
+            plan = new SendPlan(SendPlan.Step.CREATE_DRAFT, SendPlan.Step.ADD_ATTACHMENT, SendPlan.Step.SEND_DRAFT);
+        }
+        else if (draftRequired) {
+            plan = new SendPlan(SendPlan.Step.CREATE_DRAFT_WITH_ATTACHMENT, SendPlan.Step.SEND_DRAFT);
+        }
+        else {
+            plan = new SendPlan(SendPlan.Step.SEND_MAIL);
+        }
+        mPlannedRoundTrips.addAndGet(plan.getRoundTrips());
+        mSavedRoundTrips.addAndGet(plan.getRoundTripsSaved());
+        return plan;
+    }
+
+    /**
+     * @return The round trips of every plan made so far
+     */
+    public long getPlannedRoundTrips() {
+        return mPlannedRoundTrips.get();
+    }
+
+    /**
+     * @return The round trips saved by every plan made so far, compared to the draft chain
+     */
+    public long getSavedRoundTrips() {
+        return mSavedRoundTrips.get();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+/**
+ * The outcome of sending a mail to one recipient.
+ */
+public final class SendResult {
+    private final String mRecipient;
+    private final Exception mError;
+    private final long mElapsedNanos;
+
+    private SendResult(String recipient, Exception error, long elapsedNanos) {
+        mRecipient = recipient;
+        mError = error;
+        mElapsedNanos = elapsedNanos;
+    }
+
+    public static SendResult success(String recipient, long elapsedNanos) {
+        return new SendResult(recipient, null, elapsedNanos);
+    }
+
+    public static SendResult failure(String recipient, Exception error, long elapsedNanos) {
+        return new SendResult(recipient, error, elapsedNanos);
+    }
+
+    public String getRecipient() {
+        return mRecipient;
+    }
+
+    public boolean isSuccess() {
+        return mError == null;
+    }
+
+    /**
+     * @return The exception that failed the send, or null if the send succeeded
+     */
+    public Exception getError() {
+        return mError;
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return mRecipient + (isSuccess() ? " sent" : " failed: " + mError.getMessage())
+               + " (" + (mElapsedNanos / 1000000) + " ms)";
+    }
+}
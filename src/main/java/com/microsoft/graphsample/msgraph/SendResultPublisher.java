@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends the mail to every recipient with {@link GraphSendMail#sendMailAsync(MailRecipient, SendAssets)}
+ * and publishes the outcome of each send.
+ * <p>
+ * Sends are started only while fewer than the in-flight limit are running and the subscriber
+ * has requested more results than are already on their way, so a slow subscriber slows the
+ * sends down instead of letting results pile up. No thread is held while a send waits for
+ * Graph; results are delivered on the threads that complete the Graph requests, so
+ * subscribers must not block.
+ * <p>
+ * The recipients are read as sends are started. A publisher serves one subscriber.
+ */
+public class SendResultPublisher implements Flow.Publisher<SendResult> {
+    private final GraphSendMail mGraphSendMail;
+    private final Iterator<MailRecipient> mRecipients;
+    private final SendAssets mAssets;
+    private final int mMaxInFlight;
+    private final AtomicBoolean mSubscribed = new AtomicBoolean();
+
+    /**
+     * @param graphSendMail The send pipeline
+     * @param recipients    Recipients, consumed lazily
+     * @param assets        The result of {@link GraphSendMail#prepareAssets()}
+     * @param maxInFlight   The most sends running at once
+     */
+    public SendResultPublisher(
+            GraphSendMail graphSendMail,
+            Iterator<MailRecipient> recipients,
+            SendAssets assets,
+            int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("The maxInFlight parameter must be at least 1.");
+        }
+        mGraphSendMail = graphSendMail;
+        mRecipients = recipients;
+        mAssets = assets;
+        mMaxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super SendResult> subscriber) {
+        if (!mSubscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The publisher already has a subscriber"));
+            return;
+        }
+        SendSubscription subscription = new SendSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+    /**
+     * Starts sends and delivers results. All state is changed in {@link #drain()}, which runs
+     * on one thread at a time, except for the counters and queue that completing sends update.
+     */
+    private final class SendSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super SendResult> mSubscriber;
+        private final AtomicInteger mWorkInProgress = new AtomicInteger();
+        private final AtomicLong mRequested = new AtomicLong();
+        private final AtomicInteger mInFlight = new AtomicInteger();
+        private final ConcurrentLinkedQueue<SendResult> mResults = new ConcurrentLinkedQueue<>();
+        private volatile boolean mCancelled;
+        private volatile Throwable mInvalidRequest;
+        // Sends started whose result has not been delivered yet
+        private long mOutstanding;
+        private boolean mDone;
+
+        SendSubscription(Flow.Subscriber<? super SendResult> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mInvalidRequest = new IllegalArgumentException("Requested " + n + " results; must be positive");
+            }
+            else {
+                long requested;
+                do {
+                    requested = mRequested.get();
+                } while (requested != Long.MAX_VALUE
+                         && !mRequested.compareAndSet(requested, requested + n < 0 ? Long.MAX_VALUE : requested + n));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        void drain() {
+            if (mWorkInProgress.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!mDone) {
+                    drainOnce();
+                }
+                missed = mWorkInProgress.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drainOnce() {
+            if (mInvalidRequest != null) {
+                finish(mInvalidRequest);
+                return;
+            }
+            SendResult result;
+            while (!mCancelled && mRequested.get() > 0 && (result = mResults.poll()) != null) {
+                if (mRequested.get() != Long.MAX_VALUE) {
+                    mRequested.decrementAndGet();
+                }
+                mOutstanding--;
+                mSubscriber.onNext(result);
+            }
+            if (mCancelled) {
+                mDone = true;
+                return;
+            }
+            try {
+                while (mInFlight.get() < mMaxInFlight && mOutstanding < mRequested.get() && mRecipients.hasNext()) {
+                    MailRecipient recipient = mRecipients.next();
+                    mOutstanding++;
+                    mInFlight.incrementAndGet();
+                    start(recipient);
+                }
+                if (mOutstanding == 0 && !mRecipients.hasNext()) {
+                    finish(null);
+                }
+            } catch (RuntimeException ex) {
+                // The recipients could not be read. Sends already started still finish
+                finish(ex);
+            }
+        }
+
+        private void start(final MailRecipient recipient) {
+            final long sendStart = System.nanoTime();
+            CompletableFuture<SendResult> send = mGraphSendMail.sendMailAsync(recipient, mAssets);
+            send.whenComplete(new BiConsumer<SendResult, Throwable>() {
+                @Override
+                public void accept(SendResult result, Throwable error) {
+                    try {
+                        // Failed sends come as results; a future that still fails, such as when
+                        // building the result threw, is reported as the recipient's failure
+                        mResults.offer(error == null ? result : SendResult.failure(
+                                recipient.getAddress(), RetryPolicy.unwrap(error), System.nanoTime() - sendStart));
+                    } finally {
+                        mInFlight.decrementAndGet();
+                        drain();
+                    }
+                }
+            });
+        }
+
+        private void finish(Throwable error) {
+            mDone = true;
+            if (error == null) {
+                mSubscriber.onComplete();
+            }
+            else {
+                mSubscriber.onError(error);
+            }
+        }
+    }
+}
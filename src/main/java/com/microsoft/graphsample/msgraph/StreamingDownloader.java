@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads response bodies such as profile pictures without intermediate copies. When the
+ * Content-Length is known the destination is sized once and the body is read straight into
+ * it. Bodies can also be streamed to a file or into a buffer borrowed from a
+ * {@link ByteBufferPool}.
+ * <p>
+ * None of the methods close the input stream; the caller owns it.
+ */
+final class StreamingDownloader {
+    // Starting size when the response does not declare its length
+    private static final int UNKNOWN_LENGTH_INITIAL_SIZE = 16 * 1024;
+
+    private StreamingDownloader() {
+    }
+
+    /**
+     * Reads the whole body into a new array. With a known length this is the only copy of the
+     * body on the heap. Without one, the array grows by doubling and is trimmed once at the end.
+     *
+     * @param inputStream   The response body
+     * @param contentLength The Content-Length of the response, or -1 if unknown
+     * @return The body, sized exactly
+     * @throws IOException If the stream fails or ends before the declared length
+     */
+    static byte[] readFully(InputStream inputStream, long contentLength) throws IOException {
+        if (contentLength > Integer.MAX_VALUE - 8) {
+            throw new IOException("Response of " + contentLength + " bytes does not fit in an array");
+        }
+        if (contentLength >= 0) {
+            byte[] bytes = new byte[(int) contentLength];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = inputStream.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    throw new EOFException("Response ended after " + offset + " of " + contentLength + " bytes");
+                }
+                offset += read;
+            }
+            return bytes;
+        }
+
+        byte[] bytes = new byte[UNKNOWN_LENGTH_INITIAL_SIZE];
+        int length = 0;
+        int read;
+        while ((read = inputStream.read(bytes, length, bytes.length - length)) >= 0) {
+            length += read;
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+        }
+        return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Streams the body into a file through NIO channels, without staging it on the heap.
+     *
+     * @param inputStream   The response body
+     * @param contentLength The Content-Length of the response, or -1 if unknown
+     * @param target        The file to create or replace
+     * @return The number of bytes written
+     */
+    static long transferToFile(InputStream inputStream, long contentLength, Path target) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(inputStream);
+        try (FileChannel file = FileChannel.open(target,
+                                                 StandardOpenOption.CREATE,
+                                                 StandardOpenOption.WRITE,
+                                                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            long chunk = contentLength > 0 ? contentLength : UNKNOWN_LENGTH_INITIAL_SIZE;
+            long position = 0;
+            long transferred;
+            // The source channel blocks until data arrives, so a transfer of 0 bytes means the
+            // response has ended
+            while ((contentLength < 0 || position < contentLength)
+                   && (transferred = file.transferFrom(source, position, chunk)) > 0) {
+                position += transferred;
+            }
+            if (contentLength >= 0 && position != contentLength) {
+                throw new EOFException("Response ended after " + position + " of " + contentLength + " bytes");
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Reads the body into a buffer borrowed from the pool. The caller owns the returned buffer
+     * and must give it back with {@link ByteBufferPool#release(ByteBuffer)} once done with it.
+     *
+     * @param inputStream   The response body
+     * @param contentLength The Content-Length of the response. Must be known
+     * @param pool          The pool to borrow the buffer from
+     * @return A buffer flipped for reading, holding exactly the body
+     */
+    static ByteBuffer readIntoPooledBuffer(InputStream inputStream, long contentLength, ByteBufferPool pool)
+            throws IOException {
+        if (contentLength < 0 || contentLength > Integer.MAX_VALUE) {
+            throw new IOException("A pooled download needs a known Content-Length");
+        }
+        ByteBuffer buffer = pool.acquire((int) contentLength);
+        try {
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer) < 0) {
+                    throw new EOFException("Response ended after " + buffer.position()
+                                           + " of " + contentLength + " bytes");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } catch (IOException ex) {
+            pool.release(buffer);
+            throw ex;
+        }
+    }
+}
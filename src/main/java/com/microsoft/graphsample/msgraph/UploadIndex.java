@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.graphsample.msgraph;
+
+import com.microsoft.graphsample.connect.DebugLogger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * On-disk index of content uploaded to OneDrive. Each entry is keyed by user id and the
+ * content's {@link QuickXorHash} and records the item the content was uploaded to and the
+ * sharing link created for it, so a send of the same content can skip the upload and the
+ * createLink call.
+ * <p>
+ * Entries expire after the time to live, which bounds how long a link that was removed in
+ * OneDrive is handed out. Uploading other content to an item path drops the entries of
+ * that path, since the item no longer holds their content.
+ */
+public class UploadIndex {
+    private final File mFile;
+    private final long mTimeToLiveMillis;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * @param file             The index file. Its directory is created if it does not exist
+     * @param timeToLiveMillis How long an entry is used after the upload it records
+     */
+    public UploadIndex(File file, long timeToLiveMillis) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create upload index directory " + directory);
+        }
+        mFile = file;
+        mTimeToLiveMillis = timeToLiveMillis;
+        load();
+    }
+
+    /**
+     * @return The upload of the content, or null if it is not indexed or its entry expired
+     */
+    public synchronized Entry get(String userId, String hash) {
+        String key = key(userId, hash);
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mExpiresAt <= System.currentTimeMillis()) {
+            mEntries.remove(key);
+            save();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Records an upload and its sharing link, replacing the entries of other content at the
+     * same item path.
+     *
+     * @param itemPath The path the content was uploaded to, relative to the OneDrive root
+     * @param itemId   The id of the uploaded item, or null if the upload did not return it
+     * @param webUrl   The sharing link to the item
+     */
+    public synchronized void put(String userId, String hash, String itemPath, String itemId, String webUrl) {
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.mUserId.equals(userId) && entry.mItemPath.equals(itemPath)) {
+                entries.remove();
+            }
+        }
+        mEntries.put(key(userId, hash), new Entry(userId, itemPath, itemId == null ? "" : itemId, webUrl,
+                                                  System.currentTimeMillis() + mTimeToLiveMillis));
+        save();
+    }
+
+    /**
+     * Drops the entry of the content, for example when its link turned out to be broken
+     */
+    public synchronized void remove(String userId, String hash) {
+        if (mEntries.remove(key(userId, hash)) != null) {
+            save();
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(mFile)) {
+            properties.load(in);
+        } catch (IOException | IllegalArgumentException ex) {
+            // A malformed unicode escape fails the whole load with IllegalArgumentException
+            log("Ignoring unreadable upload index", ex);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int skipped = 0;
+        for (String key : properties.stringPropertyNames()) {
+            String[] fields = properties.getProperty(key).split("\t", -1);
+            try {
+                long expiresAt = fields.length == 5 ? Long.parseLong(fields[4]) : 0;
+                if (expiresAt > now) {
+                    mEntries.put(key, new Entry(fields[0], fields[1], fields[2], fields[3], expiresAt));
+                }
+            } catch (NumberFormatException ex) {
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            DebugLogger.getInstance().writeLog(Level.WARNING, "Skipped {} malformed upload index entries", skipped);
+        }
+    }
+
+    /**
+     * Writes the index. A failed write only costs later runs their hits, so it is logged
+     */
+    private void save() {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            Entry value = entry.getValue();
+            properties.setProperty(entry.getKey(), value.mUserId + "\t" + value.mItemPath + "\t" + value.mItemId
+                                                   + "\t" + value.mWebUrl + "\t" + value.mExpiresAt);
+        }
+        try {
+            File temp = File.createTempFile("uploads", ".tmp", mFile.getAbsoluteFile().getParentFile());
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, "OneDrive upload index");
+            }
+            Files.move(temp.toPath(), mFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            log("Could not save upload index", ex);
+        }
+    }
+
+    private static String key(String userId, String hash) {
+        return userId + "/" + hash;
+    }
+
+    private static void log(String message, Exception ex) {
+        DebugLogger.getInstance().writeLog(Level.WARNING, message, ex);
+    }
+
+    /**
+     * An indexed upload
+     */
+    public static final class Entry {
+        final String mUserId;
+        final String mItemPath;
+        final String mItemId;
+        final String mWebUrl;
+        final long mExpiresAt;
+
+        Entry(String userId, String itemPath, String itemId, String webUrl, long expiresAt) {
+            mUserId = userId;
+            mItemPath = itemPath;
+            mItemId = itemId;
+            mWebUrl = webUrl;
+            mExpiresAt = expiresAt;
+        }
+
+        /**
+         * @return The id of the uploaded item, or null if it is not known
+         */
+        public String getItemId() {
+            return mItemId.isEmpty() ? null : mItemId;
+        }
+
+        public String getWebUrl() {
+            return mWebUrl;
+        }
+    }
+}